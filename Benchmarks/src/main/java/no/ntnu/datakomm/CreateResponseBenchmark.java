@@ -0,0 +1,54 @@
+package no.ntnu.datakomm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of answering one request of the warm-up protocol, both through
+ * {@link ClientHandler#createResponse(String)} and directly on byte buffers, the way the servers
+ * do it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CreateResponseBenchmark {
+
+    @Param({"1+2", "123456+-654321", "bla+bla", "2147483647+1"})
+    public String request;
+
+    private ByteBuffer requestBuffer;
+    private final ByteBuffer responseBuffer = ByteBuffer.allocate(64);
+
+    @Setup
+    public void setUp() {
+        this.requestBuffer = ByteBuffer.wrap(this.request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Benchmark
+    public String createResponse() {
+        return ClientHandler.createResponse(this.request);
+    }
+
+    @Benchmark
+    public ByteBuffer respondInBuffer() {
+        this.responseBuffer.clear();
+        RequestParser.respond(this.requestBuffer, 0, this.requestBuffer.limit(), this.responseBuffer);
+        return this.responseBuffer;
+    }
+}
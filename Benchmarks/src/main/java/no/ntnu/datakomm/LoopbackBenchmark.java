@@ -0,0 +1,128 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end round trips over loopback against an in-process {@link SimpleTcpServer}, in both
+ * server modes. Throughput and the latency distribution are measured for single requests, and
+ * for batches of pipelined requests.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int PIPELINE_DEPTH = 100;
+
+    /**
+     * The server, shared by all the benchmark threads.
+     */
+    @State(Scope.Benchmark)
+    public static class ServerState {
+        @Param({"BLOCKING", "SELECTOR"})
+        public SimpleTcpServer.Mode mode;
+
+        int port;
+        private SimpleTcpServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws IOException, InterruptedException {
+            try (ServerSocket probe = new ServerSocket(0)) {
+                this.port = probe.getLocalPort();
+            }
+            this.server = new SimpleTcpServer(this.mode, this.port);
+            Thread serverThread = new Thread(this.server::run, "loopback-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            waitUntilListening(this.port);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            this.server.stop();
+        }
+    }
+
+    /**
+     * One client connection per benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class ClientState {
+        private Socket socket;
+        private OutputStream out;
+        private BufferedReader in;
+        private final byte[] request = "12+30\n".getBytes(StandardCharsets.US_ASCII);
+        private byte[] pipelinedRequests;
+
+        @Setup(Level.Trial)
+        public void connect(ServerState server) throws IOException {
+            this.socket = new Socket("localhost", server.port);
+            this.out = this.socket.getOutputStream();
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(),
+                    StandardCharsets.US_ASCII));
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < PIPELINE_DEPTH; i++) {
+                requests.append(i).append('+').append(i).append('\n');
+            }
+            this.pipelinedRequests = requests.toString().getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @TearDown(Level.Trial)
+        public void disconnect() throws IOException {
+            this.out.write("game over\n".getBytes(StandardCharsets.US_ASCII));
+            this.socket.close();
+        }
+    }
+
+    @Benchmark
+    public String roundTrip(ClientState client) throws IOException {
+        client.out.write(client.request);
+        client.out.flush();
+        return client.in.readLine();
+    }
+
+    @Benchmark
+    public String pipelinedBatch(ClientState client) throws IOException {
+        client.out.write(client.pipelinedRequests);
+        client.out.flush();
+        String response = null;
+        for (int i = 0; i < PIPELINE_DEPTH; i++) {
+            response = client.in.readLine();
+        }
+        return response;
+    }
+
+    private static void waitUntilListening(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket probe = new Socket("localhost", port)) {
+                probe.getOutputStream().write("game over\n".getBytes(StandardCharsets.US_ASCII));
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("The server did not start on port " + port);
+    }
+}
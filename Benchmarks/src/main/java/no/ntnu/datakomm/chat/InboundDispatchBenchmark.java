@@ -0,0 +1,135 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of handling one line received from the chat server: recognizing the command, splitting the
+ * arguments and notifying a listener. This is the work the listening thread of {@link TCPClient}
+ * does for every incoming line. {@link #decodeBatch()} adds the splitting of the received bytes
+ * into lines, as {@link InboundDecoder} does on the socket.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InboundDispatchBenchmark {
+
+    @Param({
+            "msg alice Hello everyone, how is the weather today?",
+            "privmsg bob A private message to a single recipient",
+            "users alice bob charlie dave eve frank grace heidi ivan judy",
+            "loginok",
+            "msgok 42"
+    })
+    public String line;
+
+    // Number of lines decoded per call of decodeBatch
+    private static final int BATCH_LINES = 1000;
+
+    private TCPClient client;
+    private InboundDecoder decoder;
+    private ReadableByteChannel received;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.client = new TCPClient();
+        this.client.addListener(new ChatListener() {
+            @Override
+            public void onDisconnect() {
+                blackhole.consume(false);
+            }
+
+            @Override
+            public void onLoginResult(boolean success, String errMsg) {
+                blackhole.consume(success);
+            }
+
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                blackhole.consume(message);
+            }
+
+            @Override
+            public void onMessageError(String errMsg) {
+                blackhole.consume(errMsg);
+            }
+
+            @Override
+            public void onUserList(String[] usernames) {
+                blackhole.consume(usernames);
+            }
+
+            @Override
+            public void onSupportedCommands(String[] commands) {
+                blackhole.consume(commands);
+            }
+
+            @Override
+            public void onCommandError(String errMsg) {
+                blackhole.consume(errMsg);
+            }
+        });
+    }
+
+    @Setup
+    public void setUpDecoder() {
+        this.decoder = new InboundDecoder();
+        byte[] bytes = (this.line + "\n").getBytes(StandardCharsets.UTF_8);
+        ByteBuffer batch = ByteBuffer.allocateDirect(bytes.length * BATCH_LINES);
+        for (int i = 0; i < BATCH_LINES; i++) {
+            batch.put(bytes);
+        }
+        batch.flip();
+        // A channel that delivers the same batch of lines on every read, like a busy socket
+        this.received = new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) {
+                ByteBuffer source = batch.duplicate();
+                source.limit(Math.min(source.limit(), dst.remaining()));
+                int length = source.remaining();
+                dst.put(source);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    @Benchmark
+    public void dispatchLine() {
+        this.client.handleServerResponse(this.line);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_LINES)
+    public int decodeBatch() throws IOException {
+        return this.decoder.read(this.received, this.client::handleServerLine);
+    }
+}
@@ -0,0 +1,46 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of {@link TextMessage#hashCode()} and {@link TextMessage#equals(Object)}, used whenever
+ * received messages are looked up.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TextMessageBenchmark {
+    private static final String TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
+
+    private final TextMessage message = new TextMessage("UnitTestCC", false, TEXT);
+    private final TextMessage sameMessage = new TextMessage("UnitTestCC", false, new String(TEXT));
+    private final TextMessage otherMessage = new TextMessage("UnitTestCC", true, TEXT);
+
+    @Benchmark
+    public int hashCodeOf() {
+        return this.message.hashCode();
+    }
+
+    @Benchmark
+    public boolean equalsSame() {
+        return this.message.equals(this.sameMessage);
+    }
+
+    @Benchmark
+    public boolean equalsOther() {
+        return this.message.equals(this.otherMessage);
+    }
+}
@@ -3,7 +3,10 @@ module no.ntnu.datakomm.chat {
   requires javafx.controls;
   requires javafx.fxml;
   requires java.logging;
+  requires java.management;
+  requires no.ntnu.datakomm.common;
 
   opens no.ntnu.datakomm.chat to javafx.fxml;
   exports no.ntnu.datakomm.chat;
+  exports no.ntnu.datakomm.chat.server;
 }
\ No newline at end of file
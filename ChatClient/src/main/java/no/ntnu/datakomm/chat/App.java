@@ -3,6 +3,8 @@ package no.ntnu.datakomm.chat;
 import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javafx.application.Application;
 import javafx.application.Platform;
@@ -16,6 +18,7 @@ import javafx.stage.Stage;
  * Class representing the main Graphical User Interface (GUI). JavaFX interface.
  */
 public class App extends Application {
+    private final static Logger logger = Logging.getLogger(App.class);
 
     public static void main(String[] args) {
         launch(args);
@@ -47,18 +50,18 @@ public class App extends Application {
                 primaryStage.show();
                 loaded = true;
             } catch (URISyntaxException | IOException e) {
-                System.out.println("Error while loading FXML: " + e.getMessage());
+                logger.log(Level.SEVERE, "Error while loading FXML: " + e.getMessage());
             }
         }
         if (!loaded) {
             if (fxmlUrl == null) {
-                System.out.println("FXML file not found!");
+                logger.log(Level.SEVERE, "FXML file not found!");
             }
             if (cssUrl == null) {
-                System.out.println("CSS file not found!");
+                logger.log(Level.SEVERE, "CSS file not found!");
             }
             if (iconUrl == null) {
-                System.out.println("Icon file not found!");
+                logger.log(Level.SEVERE, "Icon file not found!");
             }
             Platform.exit();
         }
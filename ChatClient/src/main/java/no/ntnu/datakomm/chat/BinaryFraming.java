@@ -0,0 +1,262 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The optional binary framing of the chat protocol, shared by the client and the server.
+ * <p>
+ * A connection starts with the line-based text protocol. The client may send the line
+ * {@value #NEGOTIATION_REQUEST} before anything else; a server supporting binary framing answers
+ * {@value #NEGOTIATION_ACCEPTED} and both sides continue with binary frames. Any other answer
+ * (for example {@code cmderr}) means the connection stays in text mode.
+ * <p>
+ * Every frame carries one command: a varint (unsigned LEB128) length, an opcode byte and the
+ * payload. The length counts the opcode and the payload. The opcode stands for the command word
+ * and the payload is the rest of the text command in UTF-8, so a frame and a line can be
+ * converted into each other. Unlike a line, the payload may contain newlines.
+ * <p>
+ * A user list too long for one frame is sent as several {@code users} frames: every frame but the
+ * last one ends with a space.
+ */
+public final class BinaryFraming {
+
+    /**
+     * The line sent by the client to ask for binary framing.
+     */
+    public static final String NEGOTIATION_REQUEST = "binary";
+
+    /**
+     * The line sent by the server when it switches to binary framing.
+     */
+    public static final String NEGOTIATION_ACCEPTED = "binaryok";
+
+    /**
+     * The longest frame, including the length and the opcode.
+     */
+    public static final int MAX_FRAME_LENGTH = 8192;
+
+    /**
+     * The longest payload, in the longest frame: after a two byte length and the opcode.
+     */
+    public static final int MAX_PAYLOAD_LENGTH = MAX_FRAME_LENGTH - 3;
+
+    /**
+     * The commands of the protocol, one opcode each.
+     */
+    public enum Opcode {
+        LOGIN(1, "login"),
+        LOGINOK(2, "loginok"),
+        LOGINERR(3, "loginerr"),
+        MSG(4, "msg"),
+        PRIVMSG(5, "privmsg"),
+        MSGOK(6, "msgok"),
+        MSGERR(7, "msgerr"),
+        CMDERR(8, "cmderr"),
+        USERS(9, "users"),
+        SUPPORTED(10, "supported"),
+        HELP(11, "help"),
+        JOINED(12, "joined"),
+        LEFT(13, "left");
+
+        private static final Opcode[] BY_CODE = new Opcode[256];
+        private static final Map<String, Opcode> BY_WORD = new HashMap<>();
+
+        static {
+            for (Opcode opcode : values()) {
+                BY_CODE[opcode.code] = opcode;
+                BY_WORD.put(opcode.word, opcode);
+            }
+        }
+
+        private final int code;
+        private final String word;
+        // The command word in ASCII, to recognize it in received bytes
+        final byte[] wordBytes;
+
+        Opcode(int code, String word) {
+            this.code = code;
+            this.word = word;
+            this.wordBytes = word.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        /**
+         * @return the command word of the text protocol
+         */
+        public String getWord() {
+            return word;
+        }
+
+        /**
+         * @param word a command word of the text protocol
+         * @return the opcode for the command word, or null if there is none
+         */
+        public static Opcode ofWord(String word) {
+            return BY_WORD.get(word);
+        }
+    }
+
+    /**
+     * One decoded frame. The payload is a slice of the buffer the frame was decoded from: it is
+     * only valid until that buffer is reused. The payload text is decoded on request only.
+     */
+    public static final class Frame {
+        private Opcode opcode;
+        private int code;
+        private final ByteBuffer payload;
+
+        /**
+         * @param buffer the buffer the frames will be decoded from
+         */
+        public Frame(ByteBuffer buffer) {
+            this.payload = buffer.duplicate();
+        }
+
+        /**
+         * @return the opcode of the frame, or null if the opcode is unknown
+         */
+        public Opcode getOpcode() {
+            return opcode;
+        }
+
+        /**
+         * @return the opcode byte, also for unknown opcodes
+         */
+        public int getCode() {
+            return code;
+        }
+
+        /**
+         * @return a view of the payload bytes, not copied
+         */
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+
+        /**
+         * @return the payload decoded as text
+         */
+        public String getArgument() {
+            if (!payload.hasRemaining()) {
+                return "";
+            }
+            return new String(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining(),
+                    StandardCharsets.UTF_8);
+        }
+    }
+
+    private BinaryFraming() {
+    }
+
+    /**
+     * Decode the next frame from a heap buffer, if it is complete.
+     *
+     * @param in    the received bytes, between position and limit. On success the position is
+     *              moved past the frame, otherwise it is left unchanged.
+     * @param frame filled with the decoded frame. It must have been created for this buffer.
+     * @return true if a complete frame was decoded, false if more bytes are needed
+     * @throws ProtocolException when the frame is longer than {@link #MAX_FRAME_LENGTH}
+     */
+    public static boolean decode(ByteBuffer in, Frame frame) throws ProtocolException {
+        int start = in.position();
+        int length = 0;
+        int shift = 0;
+        int index = start;
+        while (true) {
+            if (index >= in.limit()) {
+                return false;
+            }
+            byte b = in.get(index++);
+            length |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                break;
+            }
+            shift += 7;
+            if (shift > 21) {
+                throw new ProtocolException("Frame length too long");
+            }
+        }
+        if (length < 1 || index - start + length > MAX_FRAME_LENGTH) {
+            throw new ProtocolException("Invalid frame length: " + length);
+        }
+        if (in.limit() - index < length) {
+            return false;
+        }
+        frame.code = in.get(index) & 0xFF;
+        frame.opcode = Opcode.BY_CODE[frame.code];
+        frame.payload.limit(index + length).position(index + 1);
+        in.position(index + length);
+        return true;
+    }
+
+    /**
+     * Encode a command of the text protocol as a frame.
+     *
+     * @param line the command, without a newline
+     * @return a buffer with the frame, ready to be written
+     * @throws IllegalArgumentException when the command word has no opcode, or the command is too
+     *                                  long
+     */
+    public static ByteBuffer encode(String line) {
+        int space = line.indexOf(' ');
+        String word = space < 0 ? line : line.substring(0, space);
+        Opcode opcode = Opcode.ofWord(word);
+        if (opcode == null) {
+            throw new IllegalArgumentException("No opcode for command: " + word);
+        }
+        return encode(opcode, space < 0 ? "" : line.substring(space + 1));
+    }
+
+    /**
+     * Encode a command as a frame.
+     *
+     * @param opcode   the command
+     * @param argument the rest of the command, may contain newlines
+     * @return a buffer with the frame, ready to be written
+     * @throws IllegalArgumentException when the command is too long
+     */
+    public static ByteBuffer encode(Opcode opcode, String argument) {
+        byte[] payload = argument.getBytes(StandardCharsets.UTF_8);
+        int length = payload.length + 1;
+        int lengthSize = varintSize(length);
+        if (lengthSize + length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("Command too long: " + length + " bytes");
+        }
+        ByteBuffer frame = ByteBuffer.allocate(lengthSize + length);
+        int value = length;
+        while ((value & ~0x7F) != 0) {
+            frame.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        frame.put((byte) value);
+        frame.put((byte) opcode.code);
+        frame.put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * @param line a command of the text protocol, without a newline
+     * @return true if the command is short enough to be encoded as a frame
+     */
+    public static boolean fitsInFrame(String line) {
+        int space = line.indexOf(' ');
+        int length = 1;
+        if (space >= 0) {
+            length += line.substring(space + 1).getBytes(StandardCharsets.UTF_8).length;
+        }
+        return varintSize(length) + length <= MAX_FRAME_LENGTH;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,70 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized heap buffers, so connections do not allocate a new read buffer each.
+ * Buffers can be acquired and released by any thread.
+ */
+public final class ByteBufferPool {
+
+    /**
+     * Buffers large enough for the longest frame, see {@link BinaryFraming#MAX_FRAME_LENGTH}.
+     */
+    public static final ByteBufferPool FRAME_BUFFERS = new ByteBufferPool(BinaryFraming.MAX_FRAME_LENGTH, 256);
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * @param bufferSize the capacity of every buffer
+     * @param maxPooled  the maximum number of free buffers kept; more released buffers are left to
+     *                   the garbage collector
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * @return a cleared buffer, taken from the pool or newly allocated
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocate(bufferSize);
+        }
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give a buffer back to the pool. It must not be used (nor any slice of it) afterwards.
+     *
+     * @param buffer a buffer acquired from this pool; a buffer of another size is ignored
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (pooled.incrementAndGet() <= maxPooled) {
+            pool.add(buffer);
+        } else {
+            // The pool is full: take back the place counted for this buffer
+            pooled.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of free buffers in the pool
+     */
+    public int getPooledCount() {
+        return pooled.get();
+    }
+}
@@ -0,0 +1,77 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+/**
+ * Displays one {@link ChatEntry} in the chat window. The list view only creates cells for the
+ * visible rows and reuses them while scrolling, so the GUI elements are created once per cell and
+ * only their texts and styles change.
+ */
+class ChatEntryCell extends ListCell<ChatEntry> {
+    // Style classes that depend on the entry, removed before a cell is reused
+    private static final String[] ENTRY_STYLES = {"warning", "info", "sentMessage", "failedMessage",
+            "otherMessage", "private"};
+
+    private final HBox message = new HBox();
+    private final VBox messageContent = new VBox();
+    private final Label messageSender = new Label();
+    private final Label messageText = new Label();
+    private final Pane spacer = new Pane();
+
+    ChatEntryCell() {
+        messageSender.getStyleClass().add("sender");
+        messageText.getStyleClass().add("message");
+        messageText.setWrapText(true);
+        HBox.setHgrow(spacer, Priority.ALWAYS);
+        spacer.setMinSize(10, 1);
+        getStyleClass().add("chatEntry");
+        // Let long messages wrap inside the cell instead of widening the list
+        setPrefWidth(0);
+    }
+
+    @Override
+    protected void updateItem(ChatEntry entry, boolean empty) {
+        super.updateItem(entry, empty);
+        if (empty || entry == null) {
+            setGraphic(null);
+            return;
+        }
+
+        TextMessage msg = entry.getMessage();
+        messageSender.getStyleClass().removeAll(ENTRY_STYLES);
+        ObservableList<String> textStyle = messageText.getStyleClass();
+        textStyle.removeAll(ENTRY_STYLES);
+        if (msg.isPrivate()) {
+            messageSender.setText("Private from " + msg.getSender() + ":");
+            messageSender.getStyleClass().add("private");
+        } else {
+            messageSender.setText(msg.getSender() + ":");
+        }
+        messageText.setText(msg.getText());
+        messageText.maxWidthProperty().bind(widthProperty().subtract(40));
+
+        if (entry.isWarning()) {
+            // This message is a warning/info, add specific style to it
+            textStyle.add(msg.getSender().equals("err") ? "warning" : "info");
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(messageContent);
+        } else if (entry.isLocal()) {
+            textStyle.add(entry.isFailed() ? "failedMessage" : "sentMessage");
+            // Add empty space first (left), then the message (right)
+            messageContent.getChildren().setAll(messageText);
+            message.getChildren().setAll(spacer, messageContent);
+        } else {
+            textStyle.add("otherMessage");
+            // Add message first (left), then empty space (right)
+            messageContent.getChildren().setAll(messageSender, messageText);
+            message.getChildren().setAll(messageContent, spacer);
+        }
+        setGraphic(message);
+    }
+}
@@ -0,0 +1,156 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import no.ntnu.datakomm.common.MetricsRegistry;
+
+/**
+ * Hosts many chat sessions (for example bots, or the users of a gateway to another chat system)
+ * on a few selector threads, instead of a {@link TCPClient} with its own listening thread per
+ * session. Every session gets the same {@link ChatListener} events as a {@link TCPClient}.
+ * <p>
+ * The sessions are spread over the threads round-robin; one thread per core is a good start.
+ * Sessions use the text protocol, and do not reconnect automatically.
+ * <pre>
+ * ChatGateway gateway = new ChatGateway(4);
+ * gateway.start();
+ * GatewaySession bot = gateway.connect(new InetSocketAddress("localhost", 1300));
+ * bot.addListener(listener);
+ * bot.login("bot1").thenRun(() -&gt; bot.sendPublicMessage("Hello"));
+ * </pre>
+ */
+public class ChatGateway {
+    private final static Logger logger = Logging.getLogger(ChatGateway.class);
+
+    private final int threadCount;
+    private GatewayLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile boolean running = false;
+    private volatile SocketProfile socketProfile = SocketProfile.configured();
+
+    // All the open sessions
+    private final Set<GatewaySession> sessions = ConcurrentHashMap.newKeySet();
+    // Counters and timers of all the sessions together, see getMetrics()
+    private final ClientMetrics metrics = new ClientMetrics(new MetricsRegistry(Logging.PACKAGE, "ChatGateway"));
+
+    /**
+     * @param threadCount the number of selector threads
+     */
+    public ChatGateway(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Invalid number of gateway threads: " + threadCount);
+        }
+        this.threadCount = threadCount;
+        metrics.getRegistry().gauge("sessions", sessions::size);
+    }
+
+    /**
+     * @param socketProfile the options of the sessions opened from now on
+     */
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * Start the selector threads.
+     *
+     * @throws IOException when a selector can not be opened
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("The gateway is already running");
+        }
+        GatewayLoop[] started = new GatewayLoop[threadCount];
+        try {
+            for (int i = 0; i < threadCount; i++) {
+                started[i] = new GatewayLoop("chat-gateway-" + i, metrics, sessions::remove);
+            }
+        } catch (IOException e) {
+            for (GatewayLoop loop : started) {
+                if (loop != null) {
+                    loop.stop();
+                }
+            }
+            throw e;
+        }
+        loops = started;
+        running = true;
+        logger.log(Level.INFO, "Chat gateway started with " + threadCount + " threads");
+    }
+
+    /**
+     * Close all the sessions and stop the threads. Waits for the threads to finish. The listeners
+     * of the sessions are not notified.
+     */
+    public void stop() {
+        GatewayLoop[] stopped;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            stopped = loops;
+        }
+        for (GatewayLoop loop : stopped) {
+            loop.stop();
+        }
+        sessions.clear();
+        logger.log(Level.INFO, "Chat gateway stopped");
+    }
+
+    /**
+     * Open a new session. Returns at once: the connection is established in the background, and
+     * commands sent meanwhile are written once it is. If it can not be established, the session's
+     * listeners get {@link ChatListener#onDisconnect()} and the requests sent fail.
+     *
+     * @param server the address of the chat server, resolved
+     * @return the session
+     * @throws IOException when the address is not resolved, or a socket can not be opened
+     */
+    public GatewaySession connect(InetSocketAddress server) throws IOException {
+        if (server.isUnresolved()) {
+            throw new UnknownHostException(server.getHostString());
+        }
+        if (!running) {
+            throw new IllegalStateException("The gateway is not running");
+        }
+        GatewayLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            socketProfile.configure(channel);
+            boolean connected = channel.connect(server);
+            GatewaySession session = new GatewaySession(loop, channel, metrics);
+            sessions.add(session);
+            loop.register(session, connected);
+            return session;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of open sessions
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the metrics of all the sessions together: connections, bytes and commands sent and
+     * received per command word, errors, login round-trip time and the time spent notifying the
+     * listeners
+     */
+    public MetricsRegistry getMetrics() {
+        return metrics.getRegistry();
+    }
+}
@@ -0,0 +1,306 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+/**
+ * The chat history shown in the GUI. Only a window of at most {@code retention} consecutive
+ * entries is kept in memory (and shown); every entry is also appended to a spill file on disk, from
+ * which older (or newer) entries are paged back into the window when the user scrolls.
+ * <p>
+ * Normally the window follows the tail: new entries are added at the bottom and the oldest ones
+ * leave the window at the top. When the user has paged back, new entries are only written to
+ * disk until the window returns to the tail.
+ * <p>
+ * The spill file is written through a buffer, so appending an entry normally costs no system call;
+ * the buffer is written out when it is full and before entries are paged in. Only the position of
+ * every {@value #INDEX_STRIDE}th entry is kept in memory, the entries in between are found by
+ * reading forward from there.
+ * <p>
+ * The spill file is a temporary file in the system's temp directory, holding the messages as plain
+ * UTF-8 text: they are not encrypted, and can be read by whoever can read that directory. It is
+ * deleted when the history is closed, or else when the application exits.
+ * <p>
+ * Must be used on the GUI thread only.
+ */
+class ChatHistory implements Closeable {
+    private final static Logger logger = Logging.getLogger(ChatHistory.class);
+
+    private final int retention;
+    private final ObservableList<ChatEntry> window = FXCollections.observableArrayList();
+    // Index of the first entry of the window in the whole history
+    private int windowStart = 0;
+    // Number of entries in the whole history
+    private int size = 0;
+
+    // Entries are paged in from one position of the index
+    private static final int INDEX_STRIDE = 64;
+    private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+    private Path spillFile;
+    // Appends to the spill file, and reads from it
+    private DataOutputStream spillOut;
+    private RandomAccessFile spillIn;
+    // Number of bytes written to the spill file, including the ones still in the buffer
+    private long spillLength = 0;
+    // Position in the spill file of every INDEX_STRIDE-th entry: entry i * INDEX_STRIDE starts at index[i]
+    private long[] index = new long[64];
+
+    /**
+     * @param retention the maximum number of entries kept in memory
+     */
+    ChatHistory(int retention) {
+        if (retention < 1) {
+            throw new IllegalArgumentException("Retention must be positive: " + retention);
+        }
+        this.retention = retention;
+        try {
+            spillFile = Files.createTempFile("chat-history", ".spill");
+            spillFile.toFile().deleteOnExit();
+            spillOut = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(spillFile.toFile()), SPILL_BUFFER_SIZE));
+            spillIn = new RandomAccessFile(spillFile.toFile(), "r");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No spill file, older chat history will be lost: " + e.getMessage());
+            close();
+        }
+    }
+
+    /**
+     * @return the entries currently in memory, to be shown in the GUI
+     */
+    ObservableList<ChatEntry> getWindow() {
+        return window;
+    }
+
+    /**
+     * @return true when the window holds the newest entries
+     */
+    boolean isAtTail() {
+        return windowStart + window.size() == size;
+    }
+
+    /**
+     * @return true when there are older entries than the ones in the window
+     */
+    boolean hasOlder() {
+        return windowStart > 0;
+    }
+
+    /**
+     * Add a new entry at the end of the history.
+     *
+     * @param entry the entry to add
+     */
+    void append(ChatEntry entry) {
+        appendAll(Collections.singletonList(entry));
+    }
+
+    /**
+     * Add new entries at the end of the history. The window changes only once, however many entries
+     * are added.
+     *
+     * @param entries the entries to add, oldest first
+     */
+    void appendAll(List<ChatEntry> entries) {
+        // Index of the first entry that goes into the window
+        int firstShown = isAtTail() ? 0 : entries.size();
+        for (int i = 0; i < entries.size(); i++) {
+            if (!writeToSpill(entries.get(i)) && firstShown > i) {
+                // Without the spill file the entries outside the window can not be paged in again,
+                // continue with the newest entries
+                window.clear();
+                firstShown = i;
+            }
+            size++;
+        }
+        if (firstShown < entries.size()) {
+            window.addAll(entries.subList(Math.max(firstShown, entries.size() - retention), entries.size()));
+            int excess = window.size() - retention;
+            if (excess > 0) {
+                window.remove(0, excess);
+            }
+            windowStart = size - window.size();
+        }
+    }
+
+    /**
+     * Load older entries from disk at the top of the window. The same number of entries leave the
+     * window at the bottom if it would get larger than the retention.
+     *
+     * @param count the maximum number of entries to load
+     * @return the number of entries loaded
+     */
+    int pageOlder(int count) {
+        int from = Math.max(0, windowStart - count);
+        List<ChatEntry> older = readFromSpill(from, windowStart);
+        if (older.isEmpty()) {
+            return 0;
+        }
+        window.addAll(0, older);
+        windowStart = from;
+        int excess = window.size() - retention;
+        if (excess > 0) {
+            window.remove(window.size() - excess, window.size());
+        }
+        return older.size();
+    }
+
+    /**
+     * Load newer entries from disk at the bottom of the window. The same number of entries leave
+     * the window at the top if it would get larger than the retention.
+     *
+     * @param count the maximum number of entries to load
+     * @return the number of entries loaded
+     */
+    int pageNewer(int count) {
+        int windowEnd = windowStart + window.size();
+        List<ChatEntry> newer = readFromSpill(windowEnd, Math.min(size, windowEnd + count));
+        if (newer.isEmpty()) {
+            return 0;
+        }
+        window.addAll(newer);
+        int excess = window.size() - retention;
+        if (excess > 0) {
+            window.remove(0, excess);
+            windowStart += excess;
+        }
+        return newer.size();
+    }
+
+    /**
+     * Make the window show the newest entries again.
+     */
+    void jumpToTail() {
+        if (!isAtTail()) {
+            int from = Math.max(0, size - retention);
+            List<ChatEntry> newest = readFromSpill(from, size);
+            if (newest.size() == size - from) {
+                window.setAll(newest);
+                windowStart = from;
+            }
+        }
+    }
+
+    /**
+     * Close and delete the spill file. Only the entries in the window are kept.
+     */
+    @Override
+    public void close() {
+        try {
+            if (spillOut != null) {
+                spillOut.close();
+            }
+            if (spillIn != null) {
+                spillIn.close();
+            }
+            if (spillFile != null) {
+                Files.deleteIfExists(spillFile);
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not close spill file: " + e.getMessage());
+        }
+        spillOut = null;
+        spillIn = null;
+        spillFile = null;
+    }
+
+    /**
+     * @return true when the entry was written
+     */
+    private boolean writeToSpill(ChatEntry entry) {
+        if (spillOut == null) {
+            return false;
+        }
+        try {
+            if (size % INDEX_STRIDE == 0) {
+                int slot = size / INDEX_STRIDE;
+                if (slot == index.length) {
+                    index = Arrays.copyOf(index, index.length * 2);
+                }
+                index[slot] = spillLength;
+            }
+            TextMessage message = entry.getMessage();
+            spillOut.writeBoolean(entry.isLocal());
+            spillOut.writeBoolean(entry.isWarning());
+            spillOut.writeBoolean(entry.isFailed());
+            spillOut.writeBoolean(message.isPrivate());
+            spillLength += 4;
+            spillLength += writeString(spillOut, message.getSender());
+            spillLength += writeString(spillOut, message.getText());
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not write to spill file, older chat history will be lost: "
+                    + e.getMessage());
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * @return the entries from index {@code from} (inclusive) to {@code to} (exclusive), or an
+     * empty list if they can not be read
+     */
+    private List<ChatEntry> readFromSpill(int from, int to) {
+        List<ChatEntry> entries = new ArrayList<>(Math.max(0, to - from));
+        if (spillIn == null || from >= to) {
+            return entries;
+        }
+        try {
+            spillOut.flush();
+            int first = from - from % INDEX_STRIDE;
+            spillIn.seek(index[first / INDEX_STRIDE]);
+            for (int i = first; i < from; i++) {
+                // Skip the entries between the indexed one and the first one wanted
+                spillIn.skipBytes(4);
+                spillIn.skipBytes(spillIn.readInt());
+                spillIn.skipBytes(spillIn.readInt());
+            }
+            for (int i = from; i < to; i++) {
+                boolean local = spillIn.readBoolean();
+                boolean warning = spillIn.readBoolean();
+                boolean failed = spillIn.readBoolean();
+                boolean priv = spillIn.readBoolean();
+                String sender = readString(spillIn);
+                String text = readString(spillIn);
+                entries.add(new ChatEntry(new TextMessage(sender, priv, text), local, warning, failed));
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Could not read from spill file: " + e.getMessage());
+            entries.clear();
+        }
+        return entries;
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = (value != null ? value : "").getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        return 4 + bytes.length;
+    }
+
+    private static String readString(RandomAccessFile in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -60,4 +60,49 @@ public interface ChatListener {
      */
     public void onCommandError(String errMsg);
 
+    /**
+     * This method is called when the server tells that a user has logged in. Only servers
+     * supporting the presence extension of the protocol send these notifications. Does nothing by
+     * default.
+     *
+     * @param username the user who joined the chat
+     */
+    default void onUserJoined(String username) {
+    }
+
+    /**
+     * This method is called when the server tells that a user has left (disconnected). Only
+     * servers supporting the presence extension of the protocol send these notifications. Does
+     * nothing by default.
+     *
+     * @param username the user who left the chat
+     */
+    default void onUserLeft(String username) {
+    }
+
+    /**
+     * This method is called when the client waits before trying to get back a lost connection,
+     * see {@link TCPClient#setReconnectPolicy(ReconnectPolicy)}. Called after
+     * {@link #onDisconnect()}, and again before every new attempt. Does nothing by default.
+     *
+     * @param attempt     the attempt, starting at 1
+     * @param delayMillis the time until the attempt (ms)
+     */
+    default void onReconnecting(int attempt, long delayMillis) {
+    }
+
+    /**
+     * This method is called when a lost connection is back: the client is logged in again with the
+     * same username, and the messages sent meanwhile are delivered. Does nothing by default.
+     */
+    default void onReconnected() {
+    }
+
+    /**
+     * This method is called when the client gives up getting back a lost connection. The messages
+     * sent meanwhile are lost. Does nothing by default.
+     */
+    default void onReconnectFailed() {
+    }
+
 }
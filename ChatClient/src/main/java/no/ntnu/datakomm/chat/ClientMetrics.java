@@ -0,0 +1,147 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import no.ntnu.datakomm.common.LatencyHistogram;
+import no.ntnu.datakomm.common.MetricsRegistry;
+
+/**
+ * The metrics a {@link TCPClient} reports into its {@link MetricsRegistry}. Every method is
+ * lock-free and can be called for every command. The counters per command word are created the
+ * first time the command is seen, so only the commands in use show up.
+ */
+final class ClientMetrics {
+    private final MetricsRegistry registry;
+    private final LongAdder connections;
+    private final LongAdder reconnects;
+    private final LongAdder connectionsLost;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder writes;
+    private final LongAdder errors;
+    private final LongAdder unknownCommandsSent;
+    private final LongAdder[] commandsSent = new LongAdder[BinaryFraming.Opcode.values().length];
+    private final LongAdder[] commandsReceived = new LongAdder[BinaryFraming.Opcode.values().length];
+    private final LatencyHistogram loginRoundTrip;
+    private final LatencyHistogram listenerDispatch;
+
+    /**
+     * @param registry the registry to create the metrics in
+     */
+    ClientMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        this.connections = registry.counter("connections");
+        this.reconnects = registry.counter("reconnects");
+        this.connectionsLost = registry.counter("connections.lost");
+        this.bytesIn = registry.counter("bytes.in");
+        this.bytesOut = registry.counter("bytes.out");
+        // Every write carries all the commands queued meanwhile, compare with the commands sent
+        this.writes = registry.counter("writes");
+        this.errors = registry.counter("errors");
+        this.unknownCommandsSent = registry.counter("commands.sent.other");
+        // From sending the login command until the server's answer is received
+        this.loginRoundTrip = registry.histogram("login.rtt.us");
+        // Time spent handing one event over to all the listeners, on the thread reading the socket
+        this.listenerDispatch = registry.histogram("listener.dispatch.ns");
+    }
+
+    /**
+     * @return the registry holding the metrics
+     */
+    MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * A connection to the server is established. Every connection after the first one counts as
+     * a reconnect.
+     */
+    void connected() {
+        if (connections.sum() > 0) {
+            reconnects.increment();
+        }
+        connections.increment();
+    }
+
+    /**
+     * The connection of a new session is established, which is never a reconnect (see
+     * {@link ChatGateway}).
+     */
+    void sessionConnected() {
+        connections.increment();
+    }
+
+    /**
+     * The connection was closed by the server, or reading from it failed.
+     */
+    void connectionLost() {
+        connectionsLost.increment();
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    void bytesReceived(int count) {
+        bytesIn.add(count);
+    }
+
+    /**
+     * @param command the command line sent, starting with the command word
+     * @param bytes   the number of bytes written to the socket
+     */
+    void commandSent(String command, int bytes) {
+        bytesOut.add(bytes);
+        int space = command.indexOf(' ');
+        BinaryFraming.Opcode opcode = BinaryFraming.Opcode.ofWord(space < 0 ? command : command.substring(0, space));
+        if (opcode != null) {
+            counter(commandsSent, "commands.sent.", opcode).increment();
+        } else {
+            unknownCommandsSent.increment();
+        }
+    }
+
+    /**
+     * The writer has written a buffer of commands to the socket.
+     */
+    void bufferWritten() {
+        writes.increment();
+    }
+
+    /**
+     * @param depth the number of commands waiting to be written
+     */
+    void queuedCommands(LongSupplier depth) {
+        registry.gauge("commands.queued", depth);
+    }
+
+    void commandReceived(BinaryFraming.Opcode opcode) {
+        counter(commandsReceived, "commands.received.", opcode).increment();
+    }
+
+    /**
+     * @param sentNanos when the login command was sent
+     */
+    void loginAnswered(long sentNanos) {
+        loginRoundTrip.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - sentNanos));
+    }
+
+    /**
+     * @param startNanos when the dispatching of the event started
+     */
+    void listenersNotified(long startNanos) {
+        listenerDispatch.record(System.nanoTime() - startNanos);
+    }
+
+    private LongAdder counter(LongAdder[] counters, String prefix, BinaryFraming.Opcode opcode) {
+        LongAdder counter = counters[opcode.ordinal()];
+        if (counter == null) {
+            // Two threads may get here at the same time, the registry gives both the same counter
+            counter = registry.counter(prefix + opcode.getWord());
+            counters[opcode.ordinal()] = counter;
+        }
+        return counter;
+    }
+}
@@ -0,0 +1,60 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.function.Consumer;
+
+/**
+ * Decides on which thread the events received from the server are delivered to the listeners.
+ * By default events are delivered on the thread reading from the socket, see {@link #sameThread()}.
+ * A dispatcher with queues, like {@link QueuedEventDispatcher} or {@link PerListenerEventDispatcher},
+ * keeps a slow listener from delaying the reading of the socket.
+ */
+public interface EventDispatcher {
+
+    /**
+     * Deliver one event to one listener.
+     *
+     * @param listener the listener to notify
+     * @param event    the event, a call of one of the listener's methods
+     */
+    void dispatch(ChatListener listener, Consumer<ChatListener> event);
+
+    /**
+     * Called when a listener is registered, before any event is dispatched to it, so the
+     * dispatcher can prepare what it needs for it.
+     *
+     * @param listener the listener which will receive events
+     */
+    default void listenerAdded(ChatListener listener) {
+    }
+
+    /**
+     * Called when a listener is unregistered, so the dispatcher can release what it holds for it.
+     *
+     * @param listener the listener which will not receive more events
+     */
+    default void listenerRemoved(ChatListener listener) {
+    }
+
+    /**
+     * Stop delivering events and release the threads of the dispatcher, if any.
+     */
+    default void shutdown() {
+    }
+
+    /**
+     * @return a dispatcher calling the listeners directly on the thread reading from the socket
+     */
+    static EventDispatcher sameThread() {
+        return (listener, event) -> event.accept(listener);
+    }
+
+    /**
+     * What a dispatcher does with an event when the queue of a listener is full.
+     */
+    enum OverflowPolicy {
+        // Wait for room in the queue. No event is lost, but the reading of the socket stops meanwhile
+        BLOCK,
+        // Throw the event away and count it. The reading of the socket never waits for a listener
+        DROP
+    }
+}
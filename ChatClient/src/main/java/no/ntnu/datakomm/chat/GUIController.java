@@ -2,16 +2,22 @@ package no.ntnu.datakomm.chat;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
-import javafx.scene.layout.HBox;
-import javafx.scene.layout.Pane;
-import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
-import static java.lang.Thread.sleep;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javafx.collections.ObservableList;
+import static java.lang.Thread.sleep;
 
 /**
  * The graphical interface containing all the user interface controls: buttons, inputs, etc.
@@ -20,6 +26,7 @@ import javafx.collections.ObservableList;
  * react on every incoming event.
  */
 public class GUIController implements ChatListener {
+    private final static Logger logger = Logging.getLogger(GUIController.class);
 
     // The following variables are bound to GUI controls. For example, submitBtn is bound to the
     // "Submit" button in the GUI. The binding is done by JavaFX, by using correct attributes in the FXML layout file.
@@ -40,7 +47,7 @@ public class GUIController implements ChatListener {
     private VBox userList;
 
     @FXML
-    private VBox textOutput;
+    private ListView<ChatEntry> textOutput;
 
     @FXML
     private TextArea textInput;
@@ -57,8 +64,19 @@ public class GUIController implements ChatListener {
     @FXML
     private TitledPane serverStatus;
 
-    @FXML
-    private ScrollPane outputScroll;
+    // Number of chat messages kept in memory, older ones are paged in from disk when scrolling up.
+    // Can be changed with the system property chat.history.retention
+    private static final int HISTORY_RETENTION = Integer.getInteger("chat.history.retention", 1000);
+    // Number of chat messages paged in from disk at a time
+    private static final int HISTORY_PAGE_SIZE = 100;
+    // Seconds between two reports of the client's metrics in the log, 0 for none. Can be changed
+    // with the system property chat.metrics.interval
+    private static final int METRICS_INTERVAL = Integer.getInteger("chat.metrics.interval", 0);
+
+    // The messages shown in the chat window
+    private ChatHistory history;
+    // Messages received by the network thread, waiting to be shown
+    private InboundMessageQueue inboundMessages;
 
     // The TCP client that can connect, send commands, etc.
     private TCPClient tcpClient;
@@ -66,26 +84,79 @@ public class GUIController implements ChatListener {
     // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
     // the GUI.
     private Thread userPollThread;
+    // The user list is polled again after this time (ms), doubled every time the list did not change
+    private static final long USER_POLL_MIN_INTERVAL = 3000;
+    private static final long USER_POLL_MAX_INTERVAL = 60000;
+
+    // The users shown in the user list
+    private final UserSet users = new UserSet();
 
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
         tcpClient = new TCPClient();
+        tcpClient.setReconnectPolicy(ReconnectPolicy.DEFAULT);
+        tcpClient.getMetrics().registerMBean();
+        if (METRICS_INTERVAL > 0) {
+            tcpClient.getMetrics().startReporting(METRICS_INTERVAL, TimeUnit.SECONDS);
+        }
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        setupChatHistory();
         setKeyAndClickListeners();
     }
 
+    /**
+     * Show the chat history in the chat window. The list view only creates GUI elements for the
+     * visible messages, and the history only keeps a limited number of messages in memory: older
+     * (or newer) messages are loaded when the user scrolls to the top (or bottom) of the list.
+     */
+    private void setupChatHistory() {
+        history = new ChatHistory(HISTORY_RETENTION);
+        inboundMessages = new InboundMessageQueue(this::showInboundMessages);
+        textOutput.setItems(history.getWindow());
+        textOutput.setCellFactory(list -> new ChatEntryCell());
+        // Messages can not be selected
+        textOutput.setSelectionModel(null);
+        textOutput.setFocusTraversable(false);
+        // The scroll bar exists only when the list view has been shown
+        textOutput.skinProperty().addListener((observable, oldSkin, newSkin) -> {
+            for (Node node : textOutput.lookupAll(".scroll-bar")) {
+                if (node instanceof ScrollBar && ((ScrollBar) node).getOrientation() == Orientation.VERTICAL) {
+                    ScrollBar scrollBar = (ScrollBar) node;
+                    scrollBar.valueProperty().addListener((obs, oldValue, newValue)
+                            -> pageHistory(scrollBar, newValue.doubleValue()));
+                }
+            }
+        });
+    }
+
+    /**
+     * Load more messages from the history when the user scrolled to the top or bottom of the chat
+     * window.
+     */
+    private void pageHistory(ScrollBar scrollBar, double position) {
+        if (position <= scrollBar.getMin() && history.hasOlder()) {
+            int loaded = history.pageOlder(HISTORY_PAGE_SIZE);
+            // Stay at the message that was at the top before loading
+            textOutput.scrollTo(loaded);
+        } else if (position >= scrollBar.getMax() && !history.isAtTail()) {
+            int lastShown = history.getWindow().size() - 1;
+            int loaded = history.pageNewer(HISTORY_PAGE_SIZE);
+            // The window may have lost messages at the top, stay at the message that was last before loading
+            int removed = lastShown + 1 + loaded - history.getWindow().size();
+            textOutput.scrollTo(Math.max(0, lastShown - removed));
+        }
+    }
+
     /**
      * Initialize handling for all GUI events: clicking on buttons, and key presses
      */
     private void setKeyAndClickListeners() {
         connectBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Connect" button
-            if (tcpClient.isConnectionActive()) {
+            if (isConnectedOrReconnecting()) {
                 tcpClient.disconnect();
                 updateButtons(false);
             } else {
@@ -125,16 +196,20 @@ public class GUIController implements ChatListener {
         String msgToSend = textInput.getText();
         if (!msgToSend.isEmpty()) {
             TextMessage msg;
-            if (tcpClient.isConnectionActive()) {
+            if (isConnectedOrReconnecting()) {
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
                 // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
+                boolean sent;
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
                     String recipient = msgParts[1];
                     String message = msgParts[2];
-                    tcpClient.sendPrivateMessage(recipient, message);
+                    sent = tcpClient.sendPrivateMessage(recipient, message);
                 } else {
-                    tcpClient.sendPublicMessage(msgToSend);
+                    sent = tcpClient.sendPublicMessage(msgToSend);
+                }
+                if (!sent) {
+                    serverStatus.setText("Could not send message: " + tcpClient.getLastError());
                 }
                 msg = new TextMessage("", false, msgToSend);
             } else {
@@ -145,6 +220,13 @@ public class GUIController implements ChatListener {
         }
     }
 
+    /**
+     * @return true when messages can be sent: now, or (queued) when the lost connection is back
+     */
+    private boolean isConnectedOrReconnecting() {
+        return tcpClient.isConnectionActive() || tcpClient.isReconnecting();
+    }
+
     /**
      * Add a message to the GUI chat window
      *
@@ -154,58 +236,50 @@ public class GUIController implements ChatListener {
      * @param warning When true, this message is a warning that must be displayed to the user
      */
     private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
-
-        HBox message = new HBox();
-        VBox messageContent = new VBox();
-        String senderText;
-        Label messageSender = new Label();
-        messageSender.getStyleClass().add("sender");
-        if (msg.isPrivate()) {
-            senderText = "Private from " + msg.getSender() + ":";
-            messageSender.getStyleClass().add("private");
-        } else {
-            senderText = msg.getSender() + ":";
+        boolean failed = false;
+        if (local && !warning && !isConnectedOrReconnecting()) {
+            // Trying to send a message without an active connection
+            serverStatus.setText("Please login to send messages to server");
+            failed = true;
         }
-        messageSender.setText(senderText);
-        Label messageText = new Label(msg.getText());
-        ObservableList<String> textStyle = messageText.getStyleClass();
-        textStyle.add("message");
-        messageText.setWrapText(true);
-        Pane spacer = new Pane();
-        HBox.setHgrow(spacer, Priority.ALWAYS);
-        spacer.setMinSize(10, 1);
-        if (warning) {
-            // This message is a warning/info, add specific style to it
-            messageContent.getChildren().addAll(messageText);
-            message.getChildren().addAll(messageContent);
-            if (msg.getSender().equals("err")) {
-                textStyle.add("warning");
-            } else {
-                textStyle.add("info");
-            }
-        } else {
-            // Regular message
-            if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
-                // Add empty space first (left), then the message (right)
-                messageContent.getChildren().addAll(messageText);
-                message.getChildren().addAll(spacer, messageContent);
-            } else {
-                textStyle.add("otherMessage");
-                // Add message first (left), then empty space (right)
-                messageContent.getChildren().addAll(messageSender, messageText);
-                message.getChildren().addAll(messageContent, spacer);
-            }
+        if (local) {
+            // Our own messages are always shown, even when the user has scrolled back in the history
+            history.jumpToTail();
+        }
+        boolean follow = history.isAtTail();
+        history.append(new ChatEntry(msg, local, warning, failed));
+        if (follow) {
+            textOutput.scrollTo(history.getWindow().size() - 1);
+        }
+    }
+
+    /**
+     * Queue a message received from the server (or a warning/info about it) to be shown in the chat
+     * window. Can be called from any thread, the message is shown in the next frame.
+     *
+     * @param msg     The message to be displayed
+     * @param warning When true, this message is a warning that must be displayed to the user
+     */
+    private void queueInboundMessage(TextMessage msg, boolean warning) {
+        inboundMessages.add(new ChatEntry(msg, warning, warning, false));
+    }
+
+    /**
+     * Show a batch of received messages in the chat window, in one layout pass.
+     */
+    private void showInboundMessages(List<ChatEntry> entries) {
+        boolean follow = history.isAtTail();
+        history.appendAll(entries);
+        if (follow) {
+            textOutput.scrollTo(history.getWindow().size() - 1);
         }
-        textOutput.getChildren().add(message);
+    }
+
+    /**
+     * @return the queue of received messages waiting to be shown, with its depth and drain time
+     */
+    InboundMessageQueue getInboundMessages() {
+        return inboundMessages;
     }
 
     /**
@@ -260,6 +334,12 @@ public class GUIController implements ChatListener {
             // now we enable it
             connectBtn.setDisable(false);
 
+            if (!connected) {
+                // The user list is loaded again on the next connection
+                users.clear();
+                userList.getChildren().clear();
+            }
+
             // Enable/disable buttons: Login, help, submit
             loginBtn.setDisable(!connected);
             submitBtn.setDisable(!connected);
@@ -286,19 +366,39 @@ public class GUIController implements ChatListener {
                 // This block of code will run in the polling thread
                 ////////////////////////////////////////////////////////////////
                 long threadId = Thread.currentThread().getId();
-                System.out.println("Started user polling in Thread "
-                        + threadId);
-                while (tcpClient.isConnectionActive()) {
-                    // TcpClient will ask server to send the latest user list. The response from the server will
-                    // not be handled here! Here we only ask for update and go to sleep. Then repeat.
-                    tcpClient.refreshUserList();
+                logger.log(Level.FINE, "Started user polling in Thread " + threadId);
+                long interval = USER_POLL_MIN_INTERVAL;
+                Set<String> lastUsers = null;
+                while (tcpClient.isConnectionActive() && !tcpClient.isPresenceSupported()) {
+                    // TcpClient will ask server to send the latest user list. The GUI is updated by onUserList(),
+                    // here we only check whether the list changed to decide when to ask again.
+                    try {
+                        Set<String> current = new HashSet<>(tcpClient.users().get(USER_POLL_MAX_INTERVAL,
+                                TimeUnit.MILLISECONDS));
+                        // Poll less and less often while nothing changes
+                        interval = current.equals(lastUsers)
+                                ? Math.min(interval * 2, USER_POLL_MAX_INTERVAL) : USER_POLL_MIN_INTERVAL;
+                        lastUsers = current;
+                    } catch (ExecutionException | TimeoutException e) {
+                        logger.log(Level.WARNING, "User list request failed: " + e.getMessage());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
                     try {
-                        sleep(3000);
+                        sleep(interval);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
+                        break;
                     }
                 }
-                System.out.println("User polling thread " + threadId + " exiting...");
+                if (tcpClient.isPresenceSupported()) {
+                    // From now on the server pushes every change. Get the complete list once more, in case
+                    // someone joined or left before the pushing started.
+                    logger.log(Level.FINE, "Server pushes user presence, polling stopped");
+                    tcpClient.refreshUserList();
+                }
+                logger.log(Level.FINE, "User polling thread " + threadId + " exiting...");
                 // Make sure we start the thread again next time
                 userPollThread = null;
                 ////////////////////////////////////////////////////////////////
@@ -322,14 +422,11 @@ public class GUIController implements ChatListener {
     @Override
     public void onLoginResult(boolean success, String errMsg) {
         // Update the GUI. Do it on the GUI thread with Platform.runLater()
-        Platform.runLater(() -> {
-            if (success) {
-                serverStatus.setText("Server - login successful");
-            } else {
-                serverStatus.setText("Server - login failed");
-                addMsgToGui(true, new TextMessage("err", false, errMsg), true);
-            }
-        });
+        Platform.runLater(() -> serverStatus.setText(success ? "Server - login successful"
+                : "Server - login failed"));
+        if (!success) {
+            queueInboundMessage(new TextMessage("err", false, errMsg), true);
+        }
     }
 
     /**
@@ -339,8 +436,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageReceived(TextMessage message) {
-        // Show the message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(false, message, false));
+        // Show the message in the GUI, together with the other messages received in this frame
+        queueInboundMessage(message, false);
     }
 
     /**
@@ -351,9 +448,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onMessageError(String errMsg) {
-        // Show error message in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> addMsgToGui(true, new TextMessage("err", false,
-                "Error: " + errMsg), true));
+        // Show error message in the GUI, in the order it was received
+        queueInboundMessage(new TextMessage("err", false, "Error: " + errMsg), true);
     }
 
     /**
@@ -364,23 +460,60 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
-        // Update the user list. Do it on the GUI thread.
+        // Update the user list, only the users that changed. Do it on the GUI thread.
+        Platform.runLater(() -> users.replaceAll(usernames,
+                (user, index) -> userList.getChildren().remove(index),
+                (user, index) -> userList.getChildren().add(index, createUserLabel(user))));
+    }
+
+    /**
+     * This method is called when the server tells that a user has logged in
+     *
+     * @param username the user who joined the chat
+     */
+    @Override
+    public void onUserJoined(String username) {
         Platform.runLater(() -> {
-            userList.getChildren().clear();
-            for (String user : usernames) {
-                Label text = new Label(user);
-                text.getStyleClass().add("user");
-                // Set an "on-click" listener for the item in the user list - allow to send a private message
-                text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
-                    textInput.requestFocus();
-                    textInput.end();
-                });
-                userList.getChildren().add(text);
+            int index = users.add(username);
+            if (index >= 0) {
+                userList.getChildren().add(index, createUserLabel(username));
             }
         });
     }
 
+    /**
+     * This method is called when the server tells that a user has left
+     *
+     * @param username the user who left the chat
+     */
+    @Override
+    public void onUserLeft(String username) {
+        Platform.runLater(() -> {
+            int index = users.remove(username);
+            if (index >= 0) {
+                userList.getChildren().remove(index);
+            }
+        });
+    }
+
+    /**
+     * Create the element showing one user in the user list
+     *
+     * @param user the username
+     * @return the element to add to the user list
+     */
+    private Label createUserLabel(String user) {
+        Label text = new Label(user);
+        text.getStyleClass().add("user");
+        // Set an "on-click" listener for the item in the user list - allow to send a private message
+        text.setOnMouseClicked(event -> {
+            textInput.setText("/privmsg " + user + " ");
+            textInput.requestFocus();
+            textInput.end();
+        });
+        return text;
+    }
+
     /**
      * This method is called when a list of currently supported commands is
      * received
@@ -389,18 +522,16 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onSupportedCommands(String[] commands) {
-        // Show the commands in the GUI. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            StringBuilder listOfCommands = new StringBuilder(
-                    "Commands available: ");
-            for (String c : commands) {
-                listOfCommands.append(c).append(" ");
-            }
-            listOfCommands.append(
-                    "\nNB! These are chat protocol commands and won't work by just typing them");
-            addMsgToGui(true, new TextMessage("info", false, "Info: "
-                    + listOfCommands.toString()), true);
-        });
+        // Show the commands in the GUI, in the order they were received
+        StringBuilder listOfCommands = new StringBuilder(
+                "Commands available: ");
+        for (String c : commands) {
+            listOfCommands.append(c).append(" ");
+        }
+        listOfCommands.append(
+                "\nNB! These are chat protocol commands and won't work by just typing them");
+        queueInboundMessage(new TextMessage("info", false, "Info: "
+                + listOfCommands.toString()), true);
     }
 
     /**
@@ -410,11 +541,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onCommandError(String errMsg) {
-        // Shoe error message. Do it on the GUI thread.
-        Platform.runLater(() -> {
-            TextMessage msg = new TextMessage("err", false, "Error: " + errMsg);
-            addMsgToGui(true, msg, true);
-        });
+        // Show error message, in the order it was received
+        queueInboundMessage(new TextMessage("err", false, "Error: " + errMsg), true);
     }
 
     /**
@@ -423,7 +551,37 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onDisconnect() {
-        System.out.println("Socket closed by the remote end");
+        logger.log(Level.INFO, "Socket closed by the remote end");
+        if (!tcpClient.isReconnecting()) {
+            updateButtons(false);
+        }
+    }
+
+    /**
+     * This method is called while the client tries to get back a lost connection. The buttons stay
+     * enabled, messages sent meanwhile are queued.
+     */
+    @Override
+    public void onReconnecting(int attempt, long delayMillis) {
+        String status = String.format("Connection lost, reconnecting in %.1f s (attempt %d)",
+                delayMillis / 1000.0, attempt);
+        Platform.runLater(() -> serverStatus.setText(status));
+    }
+
+    /**
+     * This method is called when the lost connection is back, with the same login.
+     */
+    @Override
+    public void onReconnected() {
+        updateButtons(true);
+        startUserPolling();
+    }
+
+    /**
+     * This method is called when the client gives up getting back the lost connection.
+     */
+    @Override
+    public void onReconnectFailed() {
         updateButtons(false);
     }
 }
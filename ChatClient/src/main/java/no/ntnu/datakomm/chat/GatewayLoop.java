@@ -0,0 +1,278 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One selector thread of a {@link ChatGateway}, serving the connections of many sessions. Other
+ * threads hand work over as tasks, or by scheduling a session to be flushed; the selector is only
+ * woken up when it is waiting.
+ */
+final class GatewayLoop {
+    private final static Logger logger = Logging.getLogger(GatewayLoop.class);
+    // How long a disconnected session waits at most for the server to close its side
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Consumer<GatewaySession> closeHandler;
+    private final ClientMetrics metrics;
+    private volatile boolean running = true;
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Queue<GatewaySession> sessionsToFlush = new ConcurrentLinkedQueue<>();
+    // True while the selector is (about to be) waiting, and must be woken up for new work
+    private final AtomicBoolean selecting = new AtomicBoolean();
+    // Shared by the sessions of this thread: the commands are encoded here and written at once
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(InboundDecoder.BUFFER_SIZE);
+    // Disconnected sessions waiting for the server to close its side, used by this thread only
+    private final List<GatewaySession> drainingSessions = new ArrayList<>();
+
+    /**
+     * Start the selector thread.
+     *
+     * @param name         the name of the thread
+     * @param metrics      where to count errors and lost connections
+     * @param closeHandler called on the selector thread when a session is closed
+     * @throws IOException when the selector can not be opened
+     */
+    GatewayLoop(String name, ClientMetrics metrics, Consumer<GatewaySession> closeHandler) throws IOException {
+        this.selector = Selector.open();
+        this.metrics = metrics;
+        this.closeHandler = closeHandler;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Run a task on the selector thread.
+     *
+     * @param task the task
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Flush a session on the selector thread, after commands were queued.
+     *
+     * @param session the session
+     */
+    void scheduleFlush(GatewaySession session) {
+        sessionsToFlush.add(session);
+        wakeup();
+    }
+
+    /**
+     * Start serving a session, once its channel is registered.
+     *
+     * @param session   the session
+     * @param connected true if the channel connected at once, false while it is connecting
+     */
+    void register(GatewaySession session, boolean connected) {
+        execute(() -> {
+            try {
+                SelectionKey key = session.getChannel().register(selector,
+                        connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, session);
+                session.setKey(key);
+                if (connected) {
+                    session.connected(writeBuffer);
+                }
+            } catch (IOException e) {
+                failed(session, e);
+            }
+        });
+    }
+
+    /**
+     * Stop the thread and close all its sessions. Waits for the thread to finish.
+     */
+    void stop() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void wakeup() {
+        if (selecting.compareAndSet(true, false)) {
+            selector.wakeup();
+        }
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selecting.set(true);
+                if (tasks.isEmpty() && sessionsToFlush.isEmpty()) {
+                    // Woken up in time to close the sessions whose server does not close its side
+                    selector.select(drainingSessions.isEmpty() ? 0 : CLOSE_TIMEOUT_MILLIS);
+                } else {
+                    selector.selectNow();
+                }
+                selecting.set(false);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                GatewaySession session;
+                while ((session = sessionsToFlush.poll()) != null) {
+                    flush(session);
+                }
+                closeDrainedSessions();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.log(Level.WARNING, "Gateway thread stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                close((GatewaySession) key.attachment(), false);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        GatewaySession session = (GatewaySession) key.attachment();
+        try {
+            if (session.isDraining()) {
+                if (key.isValid() && key.isReadable() && !session.drain(writeBuffer)) {
+                    closeChannel(session, null);
+                }
+                return;
+            }
+            if (key.isValid() && key.isConnectable()) {
+                session.getChannel().finishConnect();
+                session.connected(writeBuffer);
+            }
+            if (key.isValid() && key.isReadable() && !session.read()) {
+                lost(session, "Connection closed by server");
+                return;
+            }
+            if (key.isValid() && key.isWritable() && session.flush(writeBuffer) && session.isCloseWhenFlushed()) {
+                shutdown(session);
+            }
+        } catch (IOException e) {
+            failed(session, e);
+        }
+    }
+
+    /**
+     * @return true when everything is written, false when the rest waits for the socket or the
+     * session is closed
+     */
+    private boolean flush(GatewaySession session) {
+        if (session.isOpen()) {
+            try {
+                return session.flush(writeBuffer);
+            } catch (IOException e) {
+                failed(session, e);
+            }
+        }
+        return false;
+    }
+
+    private void failed(GatewaySession session, IOException e) {
+        metrics.error();
+        // The session may have been writing
+        writeBuffer.clear();
+        logger.log(Level.FINE, () -> "Gateway connection failed: " + e.getMessage());
+        lost(session, e.getMessage() != null ? e.getMessage() : e.toString());
+    }
+
+    private void lost(GatewaySession session, String reason) {
+        if (session.isOpen()) {
+            metrics.connectionLost();
+            closeChannel(session, reason);
+            session.onDisconnect();
+        }
+    }
+
+    /**
+     * Close a session's connection. Called on the selector thread.
+     *
+     * @param session the session
+     * @param flush   true to write the commands queued so far, then wait for the server to close
+     *                its side, before closing. If the socket does not take them all at once, the
+     *                output is shut down when they are written.
+     */
+    void close(GatewaySession session, boolean flush) {
+        if (!session.isOpen()) {
+            return;
+        }
+        if (!flush) {
+            closeChannel(session, null);
+        } else if (flush(session)) {
+            shutdown(session);
+        } else if (session.isOpen()) {
+            session.closeWhenFlushed();
+        }
+    }
+
+    private void shutdown(GatewaySession session) {
+        try {
+            session.shutdownOutput(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_TIMEOUT_MILLIS));
+            drainingSessions.add(session);
+        } catch (IOException e) {
+            logger.log(Level.FINE, () -> "Could not shut down gateway connection: " + e.getMessage());
+            closeChannel(session, null);
+        }
+    }
+
+    /**
+     * Forget the disconnected sessions the server has closed, and close the ones it did not close
+     * in time.
+     */
+    private void closeDrainedSessions() {
+        long now = System.nanoTime();
+        Iterator<GatewaySession> sessions = drainingSessions.iterator();
+        while (sessions.hasNext()) {
+            GatewaySession session = sessions.next();
+            if (!session.isOpen()) {
+                sessions.remove();
+            } else if (now - session.getDrainDeadline() >= 0) {
+                logger.log(Level.FINE, "Server did not close the connection in time");
+                sessions.remove();
+                closeChannel(session, null);
+            }
+        }
+    }
+
+    private void closeChannel(GatewaySession session, String reason) {
+        try {
+            session.getChannel().close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, () -> "Could not close gateway connection: " + e.getMessage());
+        }
+        writeBuffer.clear();
+        session.closed(reason);
+        closeHandler.accept(session);
+    }
+}
@@ -0,0 +1,445 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One chat session of a {@link ChatGateway}: a connection to a chat server, with the same
+ * commands and {@link ChatListener} events as a {@link TCPClient}, but without threads of its
+ * own. Its connection is served by one of the gateway's selector threads.
+ * <p>
+ * The methods can be called from any thread and never block: commands are queued and written by
+ * the selector thread, several at a time. Commands sent before the connection is established are
+ * written once it is. The listeners are called on the selector thread, which serves many other
+ * sessions: a listener doing slow work should get its events through a queue, see
+ * {@link #setEventDispatcher(EventDispatcher)}.
+ */
+public final class GatewaySession {
+    /**
+     * The number of commands that can wait to be written.
+     */
+    public static final int MAX_QUEUED_COMMANDS = 1000;
+    // The read buffer of every session starts this small, and only grows for long lines (such as
+    // the user list of a busy server)
+    static final int READ_BUFFER_SIZE = 4096;
+    private final static Logger logger = Logging.getLogger(GatewaySession.class);
+    // Calls the listeners on the selector thread. A failing listener must not stop the thread,
+    // which serves the other sessions too.
+    private static final EventDispatcher GUARDED_DISPATCHER = (listener, event) -> {
+        try {
+            event.accept(listener);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Chat listener failed", e);
+        }
+    };
+
+    private final GatewayLoop loop;
+    private final SocketChannel channel;
+    private final ClientMetrics metrics;
+    private final ServerResponseHandler responses;
+
+    private final Queue<String> outbound = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedCommands = new AtomicInteger();
+    // True while the session is in the loop's list of sessions to flush
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+    private volatile String lastError = null;
+
+    // Used by the selector thread only
+    private final InboundDecoder decoder = new InboundDecoder(READ_BUFFER_SIZE, InboundDecoder.BUFFER_SIZE);
+    private SelectionKey key;
+    // Bytes the socket did not take yet, written when it is writable again
+    private ByteBuffer pendingOutput;
+    // False once the selector thread has closed the session. The channel alone does not tell:
+    // it is also closed when connecting fails.
+    private boolean open = true;
+    // Set when the user disconnects while output is waiting for the socket
+    private boolean closeWhenFlushed = false;
+    // Set once the output is shut down after a disconnect: what still arrives is dropped until
+    // the server closes its side, or until this time (System.nanoTime())
+    private boolean draining = false;
+    private long drainDeadline;
+
+    /**
+     * @param loop    the selector thread serving the session
+     * @param channel the channel, in non-blocking mode, connecting or connected
+     * @param metrics where to count the commands and bytes, shared by all the sessions
+     */
+    GatewaySession(GatewayLoop loop, SocketChannel channel, ClientMetrics metrics) {
+        this.loop = loop;
+        this.channel = channel;
+        this.metrics = metrics;
+        this.responses = new ServerResponseHandler(metrics);
+        this.responses.setEventDispatcher(GUARDED_DISPATCHER);
+    }
+
+    /**
+     * Send a login request to the chat server, without waiting for the response.
+     *
+     * @param username Username to use
+     * @return a future completed with the result of the login when the server's response arrives,
+     * or completed exceptionally if the request can not be sent or the connection is closed first
+     */
+    public CompletableFuture<LoginResult> login(String username) {
+        return responses.login(username, this::send);
+    }
+
+    /**
+     * Send a request for the list of currently connected users, without waiting for the response.
+     *
+     * @return a future completed with the usernames when the server's response arrives, or
+     * completed exceptionally if the request can not be sent or the connection is closed first
+     */
+    public CompletableFuture<List<String>> users() {
+        return responses.users(this::send);
+    }
+
+    /**
+     * Send a public message to all the recipients.
+     *
+     * @param message Message to send
+     * @return true if message is queued to be sent, false on error (see {@link #getLastError()})
+     */
+    public boolean sendPublicMessage(String message) {
+        return send("msg " + message);
+    }
+
+    /**
+     * Send a private message to a single recipient.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if message is queued to be sent, false on error (see {@link #getLastError()})
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+        return send("privmsg " + recipient + " " + message);
+    }
+
+    /**
+     * Send a request for the list of commands that server supports.
+     */
+    public void askSupportedCommands() {
+        send("help");
+    }
+
+    /**
+     * Close the connection, after writing the commands queued so far and letting the server read
+     * them. The listeners are not notified.
+     */
+    public void disconnect() {
+        if (!closed) {
+            closed = true;
+            loop.execute(() -> loop.close(this, true));
+        }
+    }
+
+    /**
+     * @return true from the moment the connection is established until it is closed
+     */
+    public boolean isConnectionActive() {
+        return connected && !closed;
+    }
+
+    /**
+     * @return true when the server has been seen to push presence notifications ({@code joined} and
+     * {@code left}), so the user list does not need to be polled
+     */
+    public boolean isPresenceSupported() {
+        return responses.isPresenceSupported();
+    }
+
+    /**
+     * Get the last error message
+     *
+     * @return Error message or "" if there has been no error
+     */
+    public String getLastError() {
+        String error = lastError;
+        return error != null ? error : "";
+    }
+
+    /**
+     * Register a new listener for events (login result, incoming message, etc)
+     *
+     * @param listener
+     */
+    public void addListener(ChatListener listener) {
+        responses.addListener(listener);
+    }
+
+    /**
+     * Unregister an event listener
+     *
+     * @param listener
+     */
+    public void removeListener(ChatListener listener) {
+        responses.removeListener(listener);
+    }
+
+    /**
+     * Set how the events are delivered to the listeners. By default the listeners are called
+     * directly on the selector thread, and exceptions thrown by them are logged.
+     *
+     * The dispatcher replaced is shut down, so a dispatcher must not be shared between clients.
+     *
+     * @param eventDispatcher the dispatcher to use for all the following events
+     */
+    public void setEventDispatcher(EventDispatcher eventDispatcher) {
+        responses.setEventDispatcher(eventDispatcher);
+    }
+
+    /**
+     * Queue a command to be written by the selector thread.
+     *
+     * @param command the command line, without a newline
+     * @return true if queued
+     */
+    private boolean send(String command) {
+        if (closed) {
+            if (lastError == null) {
+                lastError = "Connection closed";
+            }
+            return false;
+        }
+        if (queuedCommands.incrementAndGet() > MAX_QUEUED_COMMANDS) {
+            queuedCommands.decrementAndGet();
+            lastError = "Too many commands waiting to be sent";
+            return false;
+        }
+        outbound.add(command);
+        if (connected && flushScheduled.compareAndSet(false, true)) {
+            loop.scheduleFlush(this);
+        }
+        return true;
+    }
+
+    /////////////////////////////////////////////////////////////////////////////////////////////
+    // The following methods are called on the selector thread only.
+    /////////////////////////////////////////////////////////////////////////////////////////////
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return true until the selector thread closes the session
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return true when the session is to be closed once its output is written
+     */
+    boolean isCloseWhenFlushed() {
+        return closeWhenFlushed;
+    }
+
+    void closeWhenFlushed() {
+        closeWhenFlushed = true;
+    }
+
+    /**
+     * @return true while waiting for the server to close its side after a disconnect
+     */
+    boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return when to stop waiting for the server to close its side (System.nanoTime())
+     */
+    long getDrainDeadline() {
+        return drainDeadline;
+    }
+
+    /**
+     * Tell the server that nothing more is sent, once everything queued is written. Closing at
+     * once, with responses unread in the socket's receive buffer, would reset the connection,
+     * and the server could lose the commands it has not read yet.
+     *
+     * @param deadline when to close anyway if the server does not close its side (System.nanoTime())
+     */
+    void shutdownOutput(long deadline) throws IOException {
+        channel.shutdownOutput();
+        draining = true;
+        drainDeadline = deadline;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Read and drop what the server still sends after a disconnect. The listeners are not
+     * notified any more.
+     *
+     * @param buffer the selector thread's write buffer, empty, used as scratch space
+     * @return false when the server has closed its side
+     */
+    boolean drain(ByteBuffer buffer) throws IOException {
+        try {
+            int bytesRead;
+            while ((bytesRead = channel.read(buffer)) > 0) {
+                buffer.clear();
+            }
+            return bytesRead == 0;
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * The connection is established: start reading, and write the commands queued meanwhile.
+     *
+     * @param buffer the selector thread's write buffer
+     */
+    void connected(ByteBuffer buffer) throws IOException {
+        connected = true;
+        metrics.sessionConnected();
+        key.interestOps(SelectionKey.OP_READ);
+        flushScheduled.set(true);
+        flush(buffer);
+    }
+
+    /**
+     * Read what the server has sent, and handle every complete command.
+     *
+     * @return false when the server has closed the connection
+     */
+    boolean read() throws IOException {
+        int bytesRead = decoder.read(channel, responses::handle);
+        if (bytesRead < 0) {
+            return false;
+        }
+        metrics.bytesReceived(bytesRead);
+        return true;
+    }
+
+    /**
+     * Write the queued commands: as many as fit in the buffer at a time, in one write. When the
+     * socket does not take everything, the rest is kept and written when the socket is writable.
+     *
+     * @param buffer the selector thread's write buffer, empty
+     * @return true when everything is written, false when the rest waits for the socket
+     */
+    boolean flush(ByteBuffer buffer) throws IOException {
+        flushScheduled.set(false);
+        if (pendingOutput != null && !writePendingOutput()) {
+            return false;
+        }
+        String command;
+        while ((command = outbound.poll()) != null) {
+            queuedCommands.decrementAndGet();
+            byte[] line = (command + "\n").getBytes(StandardCharsets.UTF_8);
+            metrics.commandSent(command, line.length);
+            if (line.length > buffer.remaining() && !write(buffer)) {
+                keepPendingOutput(buffer, line);
+                return false;
+            }
+            if (line.length > buffer.capacity()) {
+                // The buffer is empty now, write the long line on its own
+                pendingOutput = ByteBuffer.wrap(line);
+                if (!writePendingOutput()) {
+                    return false;
+                }
+            } else {
+                buffer.put(line);
+            }
+        }
+        if (buffer.position() > 0 && !write(buffer)) {
+            keepPendingOutput(buffer, null);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Write the buffer.
+     *
+     * @return true when written completely (the buffer is cleared), false when the socket did not
+     * take all of it (the rest remains in the buffer)
+     */
+    private boolean write(ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining() && channel.write(buffer) > 0) {
+            // Until everything is written or the socket's send buffer is full
+        }
+        metrics.bufferWritten();
+        if (buffer.hasRemaining()) {
+            return false;
+        }
+        buffer.clear();
+        return true;
+    }
+
+    /**
+     * Keep the bytes not written (the rest of the buffer), and a line not written yet, until the
+     * socket is writable again.
+     */
+    private void keepPendingOutput(ByteBuffer buffer, byte[] line) {
+        int lineLength = line != null ? line.length : 0;
+        pendingOutput = ByteBuffer.allocate(buffer.remaining() + lineLength);
+        pendingOutput.put(buffer);
+        if (line != null) {
+            pendingOutput.put(line);
+        }
+        pendingOutput.flip();
+        buffer.clear();
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * @return true when the pending output is written completely
+     */
+    private boolean writePendingOutput() throws IOException {
+        channel.write(pendingOutput);
+        metrics.bufferWritten();
+        if (pendingOutput.hasRemaining()) {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            return false;
+        }
+        pendingOutput = null;
+        key.interestOps(SelectionKey.OP_READ);
+        return true;
+    }
+
+    /**
+     * The connection is closed: drop what is still queued and fail the requests waiting for a
+     * response.
+     *
+     * @param reason why, or null when closed by the user
+     */
+    void closed(String reason) {
+        open = false;
+        closed = true;
+        if (reason != null) {
+            lastError = reason;
+        }
+        outbound.clear();
+        queuedCommands.set(0);
+        pendingOutput = null;
+        responses.connectionClosed();
+    }
+
+    /**
+     * Notify listeners that socket was closed by the remote end (server or
+     * Internet error)
+     */
+    void onDisconnect() {
+        responses.notifyListeners(ChatListener::onDisconnect);
+    }
+}
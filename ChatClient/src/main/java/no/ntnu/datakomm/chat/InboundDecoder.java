@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.function.Consumer;
+
+/**
+ * Splits the bytes received from the server into lines, without creating a string per line. The
+ * bytes are read from the channel into one direct buffer, which is reused for the whole
+ * connection, and every complete line is handed over as an {@link InboundLine} view.
+ * <p>
+ * The buffer can start small and grow, up to its maximum size, when a line does not fit. A line
+ * longer than the maximum is skipped.
+ */
+final class InboundDecoder {
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private ByteBuffer buffer;
+    private final int maxBufferSize;
+    private final InboundLine line = new InboundLine();
+    // True while the rest of an over-long line is being skipped
+    private boolean discardingLine = false;
+
+    InboundDecoder() {
+        this(BUFFER_SIZE, BUFFER_SIZE);
+    }
+
+    /**
+     * @param initialBufferSize the size of the buffer to start with. Smaller buffers suit many
+     *                          connections with little traffic each.
+     * @param maxBufferSize     the size the buffer may grow to, and so the longest line
+     */
+    InboundDecoder(int initialBufferSize, int maxBufferSize) {
+        this.buffer = ByteBuffer.allocateDirect(initialBufferSize);
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Read once from the channel, and handle every line completed by the bytes read.
+     *
+     * @param channel the channel to read from, in blocking or non-blocking mode
+     * @param handler called for every complete line. The line view is only valid during the call.
+     * @return the number of bytes read, or -1 when the end of the stream is reached
+     * @throws IOException when reading fails
+     */
+    int read(ReadableByteChannel channel, Consumer<InboundLine> handler) throws IOException {
+        int bytesRead = channel.read(buffer);
+        if (bytesRead < 0) {
+            return bytesRead;
+        }
+        buffer.flip();
+        int lineStart = 0;
+        int limit = buffer.limit();
+        for (int i = 0; i < limit; i++) {
+            if (buffer.get(i) == '\n') {
+                if (discardingLine) {
+                    discardingLine = false;
+                } else {
+                    int lineEnd = i > lineStart && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                    line.setLine(buffer, lineStart, lineEnd);
+                    handler.accept(line);
+                }
+                lineStart = i + 1;
+            }
+        }
+        buffer.position(lineStart);
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            if (buffer.capacity() < maxBufferSize) {
+                // A full buffer without a newline: make room for the rest of the line
+                ByteBuffer larger = ByteBuffer.allocateDirect(Math.min(maxBufferSize, buffer.capacity() * 2));
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            } else {
+                // The line is too long: skip the rest of it
+                buffer.clear();
+                discardingLine = true;
+            }
+        }
+        return bytesRead;
+    }
+}
@@ -0,0 +1,167 @@
+package no.ntnu.datakomm.chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A view of one command received from the server, directly on the bytes in the receive buffer:
+ * a text line or the payload of a binary frame. The command word is recognized by comparing bytes;
+ * the arguments are only decoded into strings when they are asked for.
+ * <p>
+ * The view is reused for every command and is only valid until the buffer is read into again.
+ */
+final class InboundLine {
+    private ByteBuffer buffer;
+    private BinaryFraming.Opcode command;
+    private int argumentStart;
+    private int end;
+    // For decoding from a direct buffer, which has no array
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Point the view at a text line.
+     *
+     * @param buffer the buffer holding the line
+     * @param start  the index of the first byte of the line
+     * @param end    the index after the last byte of the line, without the newline
+     */
+    void setLine(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.end = end;
+        int wordEnd = start;
+        while (wordEnd < end && buffer.get(wordEnd) != ' ') {
+            wordEnd++;
+        }
+        this.command = match(buffer, start, wordEnd);
+        this.argumentStart = wordEnd < end ? wordEnd + 1 : end;
+    }
+
+    /**
+     * Point the view at the payload of a binary frame.
+     *
+     * @param opcode  the opcode of the frame, or null if unknown
+     * @param payload the payload, between position and limit
+     */
+    void setFrame(BinaryFraming.Opcode opcode, ByteBuffer payload) {
+        this.buffer = payload;
+        this.command = opcode;
+        this.argumentStart = payload.position();
+        this.end = payload.limit();
+    }
+
+    /**
+     * @return the command, or null if the command word is unknown
+     */
+    BinaryFraming.Opcode getCommand() {
+        return command;
+    }
+
+    /**
+     * @return everything after the command word
+     */
+    String getArgument() {
+        return decode(argumentStart, end);
+    }
+
+    /**
+     * @return true if the argument has a first word followed by more text, like the sender and
+     * the text of a message
+     */
+    boolean hasArgumentTail() {
+        return indexOfSpace(argumentStart) > argumentStart;
+    }
+
+    /**
+     * @return the first word of the argument
+     */
+    String getArgumentHead() {
+        int space = indexOfSpace(argumentStart);
+        return decode(argumentStart, space < 0 ? end : space);
+    }
+
+    /**
+     * @return the argument after its first word
+     */
+    String getArgumentTail() {
+        int space = indexOfSpace(argumentStart);
+        return space < 0 ? "" : decode(space + 1, end);
+    }
+
+    /**
+     * @return true if the argument ends with a space, like every part but the last of a user list
+     * split over several frames
+     */
+    boolean hasTrailingSpace() {
+        return end > argumentStart && buffer.get(end - 1) == ' ';
+    }
+
+    /**
+     * @return the words of the argument, separated by spaces
+     */
+    String[] getArgumentWords() {
+        List<String> words = new ArrayList<>();
+        int wordStart = argumentStart;
+        while (wordStart < end) {
+            int space = indexOfSpace(wordStart);
+            int wordEnd = space < 0 ? end : space;
+            if (wordEnd > wordStart) {
+                words.add(decode(wordStart, wordEnd));
+            }
+            wordStart = wordEnd + 1;
+        }
+        return words.toArray(new String[0]);
+    }
+
+    @Override
+    public String toString() {
+        String argument = getArgument();
+        String word = command != null ? command.getWord() : "?";
+        return argument.isEmpty() ? word : word + " " + argument;
+    }
+
+    private int indexOfSpace(int from) {
+        for (int i = from; i < end; i++) {
+            if (buffer.get(i) == ' ') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private String decode(int from, int to) {
+        int length = to - from;
+        if (length <= 0) {
+            return "";
+        }
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + from, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(from, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private static BinaryFraming.Opcode match(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        for (BinaryFraming.Opcode opcode : BinaryFraming.Opcode.values()) {
+            byte[] word = opcode.wordBytes;
+            if (word.length == length && matches(buffer, start, word)) {
+                return opcode;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, byte[] word) {
+        for (int i = 0; i < word.length; i++) {
+            if (buffer.get(start + i) != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,125 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+/**
+ * Hands messages received by the network threads over to the GUI thread. Instead of one
+ * {@link Platform#runLater(Runnable)} per message, the messages are queued and drained once per
+ * frame (pulse), so a burst of messages is shown in a single layout pass.
+ * <p>
+ * The frame timer runs only while there are messages to show.
+ */
+class InboundMessageQueue {
+    private final Queue<ChatEntry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    // True while the frame timer is started (or about to be)
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final Consumer<List<ChatEntry>> sink;
+    private final AnimationTimer timer = new AnimationTimer() {
+        @Override
+        public void handle(long now) {
+            drainFrame();
+        }
+    };
+
+    private final LongAdder drainedCount = new LongAdder();
+    private final LongAdder drainCount = new LongAdder();
+    private volatile long lastDrainNanos;
+    private final AtomicLong maxDrainNanos = new AtomicLong();
+
+    /**
+     * @param sink shows a batch of messages, called on the GUI thread once per frame
+     */
+    InboundMessageQueue(Consumer<List<ChatEntry>> sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Queue a message to be shown in the next frame. Can be called from any thread.
+     *
+     * @param entry the message to show
+     */
+    void add(ChatEntry entry) {
+        queue.add(entry);
+        depth.incrementAndGet();
+        if (drainScheduled.compareAndSet(false, true)) {
+            Platform.runLater(timer::start);
+        }
+    }
+
+    /**
+     * @return the number of messages waiting to be shown
+     */
+    int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return the number of messages shown so far
+     */
+    long getDrainedCount() {
+        return drainedCount.sum();
+    }
+
+    /**
+     * @return the number of frames in which messages were shown
+     */
+    long getDrainCount() {
+        return drainCount.sum();
+    }
+
+    /**
+     * @return the time the last frame spent showing messages, in nanoseconds
+     */
+    long getLastDrainNanos() {
+        return lastDrainNanos;
+    }
+
+    /**
+     * @return the longest time a frame spent showing messages, in nanoseconds
+     */
+    long getMaxDrainNanos() {
+        return maxDrainNanos.get();
+    }
+
+    /**
+     * Called on the GUI thread once per frame: show all the queued messages at once, or stop the
+     * timer when there are none.
+     */
+    private void drainFrame() {
+        List<ChatEntry> batch = new ArrayList<>(depth.get());
+        ChatEntry entry;
+        while ((entry = queue.poll()) != null) {
+            batch.add(entry);
+        }
+        if (batch.isEmpty()) {
+            drainScheduled.set(false);
+            // A message added after the poll above must not be left waiting: keep the timer
+            // running unless the thread that added it will start it again
+            if (queue.isEmpty() || !drainScheduled.compareAndSet(false, true)) {
+                timer.stop();
+            }
+            return;
+        }
+        depth.addAndGet(-batch.size());
+
+        long start = System.nanoTime();
+        sink.accept(batch);
+        long elapsed = System.nanoTime() - start;
+        lastDrainNanos = elapsed;
+        maxDrainNanos.accumulateAndGet(elapsed, Math::max);
+        drainCount.increment();
+        drainedCount.add(batch.size());
+    }
+}
@@ -0,0 +1,88 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.StreamHandler;
+
+import no.ntnu.datakomm.common.AsyncLogHandler;
+
+/**
+ * Logging of the chat client and server, on top of {@code java.util.logging}. All the loggers of the
+ * {@code no.ntnu.datakomm.chat} packages write one line per record to the system console through an
+ * {@link AsyncLogHandler}, so neither the socket threads nor the GUI thread wait for the console.
+ * <p>
+ * Build messages with a {@code Supplier} (for example {@code logger.fine(() -> "Sent " + request)})
+ * or check {@link Logger#isLoggable(Level)} first, so that disabled levels cost nothing. The level
+ * is INFO unless set with the system property {@code chat.log.level}, for example
+ * {@code -Dchat.log.level=FINEST} to see every command received.
+ */
+public final class Logging {
+    private static final int BUFFER_CAPACITY = 8192;
+
+    // The package whose loggers are configured here, also the JMX domain of its metrics: the
+    // reports of a MetricsRegistry are logged under it
+    static final String PACKAGE = Logging.class.getPackage().getName();
+    // Loggers are only weakly referenced by the LogManager, keep the configured one alive
+    private static final Logger PACKAGE_LOGGER = configure(PACKAGE);
+
+    private Logging() {
+    }
+
+    /**
+     * @param type the class that logs
+     * @return the logger of the class
+     */
+    public static Logger getLogger(Class<?> type) {
+        return Logger.getLogger(type.getName());
+    }
+
+    private static Logger configure(String name) {
+        Logger logger = Logger.getLogger(name);
+        String level = System.getProperty("chat.log.level");
+        if (level != null) {
+            logger.setLevel(Level.parse(level.toUpperCase(Locale.ROOT)));
+        }
+        Handler console = new ConsoleOutHandler();
+        console.setLevel(Level.ALL);
+        logger.addHandler(new AsyncLogHandler(console, BUFFER_CAPACITY));
+        logger.setUseParentHandlers(false);
+        return logger;
+    }
+
+    /**
+     * Writes to {@code System.out}, like the application did before, and leaves it open when closed.
+     */
+    private static class ConsoleOutHandler extends StreamHandler {
+        ConsoleOutHandler() {
+            super(System.out, new LineFormatter());
+        }
+
+        @Override
+        public void close() {
+            this.flush();
+        }
+    }
+
+    /**
+     * One line per record: time, level, the thread that logged and the message.
+     */
+    private static class LineFormatter extends Formatter {
+        @Override
+        public String format(LogRecord record) {
+            String line = String.format("%1$tT.%1$tL %2$-7s THREAD #%3$d: %4$s%n", record.getMillis(),
+                    record.getLevel().getName(), record.getThreadID(), this.formatMessage(record));
+            if (record.getThrown() == null) {
+                return line;
+            }
+            StringWriter stackTrace = new StringWriter();
+            record.getThrown().printStackTrace(new PrintWriter(stackTrace));
+            return line + stackTrace;
+        }
+    }
+}
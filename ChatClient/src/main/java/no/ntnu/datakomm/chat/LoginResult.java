@@ -0,0 +1,32 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * The result of a login request, see {@link TCPClient#login(String)}.
+ */
+public class LoginResult {
+
+    private final boolean success;
+    private final String errorMessage;
+
+    /**
+     * @param success      When true, the client has logged in
+     * @param errorMessage Error message in case of failure, or null on successful login
+     */
+    public LoginResult(boolean success, String errorMessage) {
+        this.success = success;
+        this.errorMessage = errorMessage;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public String getErrorMessage() {
+        return errorMessage;
+    }
+
+    @Override
+    public String toString() {
+        return success ? "loginok" : "loginerr " + errorMessage;
+    }
+}
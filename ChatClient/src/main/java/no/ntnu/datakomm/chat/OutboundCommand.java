@@ -0,0 +1,45 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A command waiting to be written to the server, with the future to complete once it is written.
+ * The future is optional: most commands are sent without anyone waiting for them.
+ */
+final class OutboundCommand {
+    private final String command;
+    private final CompletableFuture<Void> completion;
+
+    /**
+     * @param command    the command line, without a newline
+     * @param completion completed when the command is written to the socket, or completed
+     *                   exceptionally if it can not be written. Null when nobody waits.
+     */
+    OutboundCommand(String command, CompletableFuture<Void> completion) {
+        this.command = command;
+        this.completion = completion;
+    }
+
+    String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the future completed when the command is written, or null
+     */
+    CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    void complete() {
+        if (completion != null) {
+            completion.complete(null);
+        }
+    }
+
+    void fail(Throwable cause) {
+        if (completion != null) {
+            completion.completeExceptionally(cause);
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the commands of one connection from a single writer thread, so any thread can send
+ * without blocking and commands from several threads are never interleaved.
+ * <p>
+ * Commands are put in a fixed-size ring buffer (many producers, one consumer). The writer takes
+ * everything available, encodes it into one buffer and writes the buffer with as few system
+ * calls as possible, instead of one write and flush per command. A command's future is completed
+ * once its bytes are written to the socket.
+ * <p>
+ * After {@link #close()} no more commands are accepted; the writer still writes the commands
+ * accepted before, then stops. When writing fails, the commands not written are failed and the
+ * failure handler is called, unless the writer was closed already.
+ */
+final class OutboundWriter {
+    /**
+     * The number of commands that can wait to be written.
+     */
+    static final int CAPACITY = 4096;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // How long the idle writer sleeps before it checks the buffer again, in case a wakeup was missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Set in the tail sequence number once closed, so no command can be added after the writer
+    // has seen the last one
+    private static final long CLOSED = Long.MIN_VALUE;
+    private final static Logger logger = Logging.getLogger(OutboundWriter.class);
+
+    private final SocketChannel channel;
+    private final boolean binaryFraming;
+    private final ClientMetrics metrics;
+    private final Consumer<IOException> failureHandler;
+
+    private final AtomicReferenceArray<OutboundCommand> slots = new AtomicReferenceArray<>(CAPACITY);
+    private final int mask = CAPACITY - 1;
+    // Sequence number of the next slot to claim (producers) and to read (writer)
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final Thread writer;
+    private volatile boolean writerParked;
+
+    // Used by the writer thread only
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    // The commands encoded into the buffer, completed when it is written
+    private final List<OutboundCommand> batch = new ArrayList<>();
+    private long bytesWritten = 0;
+
+    /**
+     * Start the writer thread.
+     *
+     * @param channel        the connected channel, in blocking mode
+     * @param binaryFraming  true to send binary frames instead of text lines
+     * @param metrics        where to count the commands and bytes sent
+     * @param failureHandler called on the writer thread when writing to the channel fails
+     */
+    OutboundWriter(SocketChannel channel, boolean binaryFraming, ClientMetrics metrics,
+                   Consumer<IOException> failureHandler) {
+        this.channel = channel;
+        this.binaryFraming = binaryFraming;
+        this.metrics = metrics;
+        this.failureHandler = failureHandler;
+        this.writer = new Thread(this::writeCommands, "chat-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Queue a command to be written. Never blocks.
+     *
+     * @param command the command
+     * @return true if queued, false if the writer is closed or too many commands are waiting
+     */
+    boolean offer(OutboundCommand command) {
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot < 0 || slot - head > mask) {
+                return false;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        slots.set((int) slot & mask, command);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the commands are written as binary frames, false for text lines
+     */
+    boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
+    /**
+     * @return true once closed, or stopped because writing failed
+     */
+    boolean isClosed() {
+        return tail.get() < 0;
+    }
+
+    /**
+     * @return the number of commands waiting to be written
+     */
+    int getQueuedCount() {
+        return (int) ((tail.get() & ~CLOSED) - head);
+    }
+
+    /**
+     * Stop accepting commands. The commands accepted so far are still written.
+     */
+    void close() {
+        tail.getAndUpdate(sequence -> sequence | CLOSED);
+        LockSupport.unpark(writer);
+    }
+
+    /**
+     * Wait until the commands accepted before {@link #close()} are written (or failed) and the
+     * writer thread has stopped. Returns at once when called on the writer thread itself.
+     *
+     * @param millis how long to wait at most
+     */
+    void awaitTermination(long millis) throws InterruptedException {
+        if (Thread.currentThread() != writer) {
+            writer.join(millis);
+        }
+    }
+
+    private void writeCommands() {
+        try {
+            while (true) {
+                long claimed = tail.get();
+                long end = claimed & ~CLOSED;
+                if (head != end) {
+                    writeUntil(end);
+                } else if (claimed < 0) {
+                    return;
+                } else {
+                    writerParked = true;
+                    if (tail.get() == claimed) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    writerParked = false;
+                }
+            }
+        } catch (IOException e) {
+            boolean closedBefore = isClosed();
+            close();
+            failBatch(e);
+            failQueued(e);
+            if (!closedBefore) {
+                failureHandler.accept(e);
+            }
+        }
+    }
+
+    /**
+     * Encode the commands up to a sequence number and write them, together with any commands
+     * encoded before.
+     */
+    private void writeUntil(long end) throws IOException {
+        while (head != end) {
+            long next = head;
+            int index = (int) next & mask;
+            OutboundCommand command = slots.get(index);
+            if (command == null) {
+                // The slot is claimed, but the command is not stored yet
+                Thread.yield();
+                continue;
+            }
+            slots.lazySet(index, null);
+            head = next + 1;
+            encode(command);
+        }
+        flush();
+    }
+
+    private void encode(OutboundCommand command) throws IOException {
+        String line = command.getCommand();
+        long start = bytesWritten + buffer.position();
+        if (binaryFraming) {
+            ByteBuffer frame;
+            try {
+                frame = BinaryFraming.encode(line);
+            } catch (IllegalArgumentException e) {
+                metrics.error();
+                logger.log(Level.WARNING, "Can not send command: " + e.getMessage());
+                command.fail(e);
+                return;
+            }
+            if (frame.remaining() > buffer.remaining()) {
+                flush();
+            }
+            buffer.put(frame);
+        } else {
+            encoder.reset();
+            CharBuffer chars = CharBuffer.wrap(line);
+            // Lines longer than the buffer are written in pieces
+            while (encoder.encode(chars, buffer, true).isOverflow()) {
+                flush();
+            }
+            while (encoder.flush(buffer).isOverflow()) {
+                flush();
+            }
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) '\n');
+        }
+        batch.add(command);
+        metrics.commandSent(line, (int) (bytesWritten + buffer.position() - start));
+    }
+
+    /**
+     * Write the buffer, and complete the commands completely in it.
+     */
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        buffer.clear();
+        metrics.bufferWritten();
+        for (OutboundCommand command : batch) {
+            command.complete();
+        }
+        batch.clear();
+    }
+
+    private void failBatch(IOException cause) {
+        for (OutboundCommand command : batch) {
+            command.fail(cause);
+        }
+        batch.clear();
+    }
+
+    /**
+     * Fail the commands still waiting. Called after closing, so the sequence of commands is final.
+     */
+    private void failQueued(IOException cause) {
+        long end = tail.get() & ~CLOSED;
+        while (head != end) {
+            long next = head;
+            int index = (int) next & mask;
+            OutboundCommand command = slots.get(index);
+            if (command == null) {
+                Thread.yield();
+                continue;
+            }
+            slots.lazySet(index, null);
+            head = next + 1;
+            command.fail(cause);
+        }
+    }
+}
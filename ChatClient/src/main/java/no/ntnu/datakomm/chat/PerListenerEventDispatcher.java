@@ -0,0 +1,86 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the events of every listener on a thread of its own, with a queue of its own. A slow
+ * listener only delays its own events, the other listeners and the reading of the socket are not
+ * affected (unless the overflow policy is {@link EventDispatcher.OverflowPolicy#BLOCK}).
+ * <p>
+ * The queue and thread of a listener exist from {@link #listenerAdded(ChatListener)} until
+ * {@link #listenerRemoved(ChatListener)}. Events for a listener without a queue, for example one
+ * removed while the events were being dispatched, are dropped.
+ */
+public class PerListenerEventDispatcher implements EventDispatcher {
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final Map<ChatListener, QueuedEventDispatcher> queues = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity       the maximum number of events waiting for delivery, per listener
+     * @param overflowPolicy what to do with an event when the queue of a listener is full
+     */
+    public PerListenerEventDispatcher(int capacity, OverflowPolicy overflowPolicy) {
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    @Override
+    public void listenerAdded(ChatListener listener) {
+        if (!running) {
+            return;
+        }
+        queues.computeIfAbsent(listener, l -> new QueuedEventDispatcher(capacity, overflowPolicy,
+                "chat-events-" + l.getClass().getSimpleName()));
+        if (!running) {
+            // Shut down meanwhile, the queue may have been created after the others were removed
+            listenerRemoved(listener);
+        }
+    }
+
+    @Override
+    public void dispatch(ChatListener listener, Consumer<ChatListener> event) {
+        // Never create the queue here: for a listener removed meanwhile, its thread would never stop
+        QueuedEventDispatcher queue = queues.get(listener);
+        if (queue != null) {
+            queue.dispatch(listener, event);
+        }
+    }
+
+    @Override
+    public void listenerRemoved(ChatListener listener) {
+        QueuedEventDispatcher queue = queues.remove(listener);
+        if (queue != null) {
+            queue.shutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        for (ChatListener listener : queues.keySet()) {
+            listenerRemoved(listener);
+        }
+    }
+
+    /**
+     * @param listener a registered listener
+     * @return the number of events waiting for delivery to the listener
+     */
+    public int getQueueDepth(ChatListener listener) {
+        QueuedEventDispatcher queue = queues.get(listener);
+        return queue != null ? queue.getQueueDepth() : 0;
+    }
+
+    /**
+     * @param listener a registered listener
+     * @return the number of events for the listener thrown away because its queue was full
+     */
+    public long getDroppedCount(ChatListener listener) {
+        QueuedEventDispatcher queue = queues.get(listener);
+        return queue != null ? queue.getDroppedCount() : 0;
+    }
+}
@@ -0,0 +1,105 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Delivers events on one dedicated thread. The thread reading from the socket only puts the
+ * events in a bounded queue; what happens when the queue is full is decided by the
+ * {@link EventDispatcher.OverflowPolicy}.
+ */
+public class QueuedEventDispatcher implements EventDispatcher {
+    private final static Logger logger = Logging.getLogger(QueuedEventDispatcher.class);
+    // How often a dispatch waiting for room in the queue checks that the dispatcher still runs (ms)
+    private static final long BLOCK_CHECK_INTERVAL = 100;
+
+    private final BlockingQueue<Runnable> queue;
+    private final OverflowPolicy overflowPolicy;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread deliveryThread;
+    private volatile boolean running = true;
+
+    /**
+     * @param capacity       the maximum number of events waiting for delivery
+     * @param overflowPolicy what to do with an event when the queue is full
+     */
+    public QueuedEventDispatcher(int capacity, OverflowPolicy overflowPolicy) {
+        this(capacity, overflowPolicy, "chat-events");
+    }
+
+    QueuedEventDispatcher(int capacity, OverflowPolicy overflowPolicy, String threadName) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.deliveryThread = new Thread(this::deliverEvents, threadName);
+        this.deliveryThread.setDaemon(true);
+        this.deliveryThread.start();
+    }
+
+    @Override
+    public void dispatch(ChatListener listener, Consumer<ChatListener> event) {
+        Runnable delivery = () -> event.accept(listener);
+        if (!running) {
+            dropped.increment();
+        } else if (overflowPolicy == OverflowPolicy.BLOCK) {
+            try {
+                // No event is delivered after a shutdown: stop waiting for room then
+                while (!queue.offer(delivery, BLOCK_CHECK_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    if (!running) {
+                        dropped.increment();
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                dropped.increment();
+                Thread.currentThread().interrupt();
+            }
+        } else if (!queue.offer(delivery)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Stop the delivery thread. Events dispatched afterwards are dropped, and a dispatch waiting
+     * for room in the queue gives up.
+     */
+    @Override
+    public void shutdown() {
+        running = false;
+        deliveryThread.interrupt();
+    }
+
+    /**
+     * @return the number of events waiting for delivery
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of events thrown away because the queue was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void deliverEvents() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Runnable delivery = queue.take();
+                try {
+                    delivery.run();
+                } catch (RuntimeException e) {
+                    // A failing listener must not stop the delivery to the others
+                    logger.log(Level.WARNING, "Chat listener failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Brings a {@link TCPClient} back after its connection is lost: waits according to the
+ * {@link ReconnectPolicy}, connects to the addresses resolved for the first connection, logs in
+ * again with the same username and then sends the messages queued meanwhile, in order.
+ * <p>
+ * While reconnecting, the messages the user sends are queued (at most
+ * {@link #MAX_QUEUED_COMMANDS}). The queue is dropped when the user disconnects or the policy
+ * gives up.
+ */
+final class ReconnectManager {
+    static final int MAX_QUEUED_COMMANDS = 1000;
+    // After this many failed attempts in a row, the host name is looked up again
+    private static final int ATTEMPTS_PER_LOOKUP = 4;
+    private final static Logger logger = Logging.getLogger(ReconnectManager.class);
+
+    private final TCPClient client;
+    // Guarded by this
+    private final Queue<OutboundCommand> queuedCommands = new ArrayDeque<>();
+    private boolean active = false;
+    private Thread thread;
+
+    /**
+     * @param client the client to reconnect
+     */
+    ReconnectManager(TCPClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Start reconnecting in a background thread, unless already reconnecting.
+     *
+     * @param policy  when to try, and when to give up
+     * @param address the server to reconnect to
+     */
+    synchronized void start(ReconnectPolicy policy, ServerAddress address) {
+        if (active) {
+            return;
+        }
+        active = true;
+        thread = new Thread(() -> reconnect(policy, address), "chat-reconnect");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return true from the moment the connection is lost until the session is resumed (or
+     * reconnecting is given up or cancelled)
+     */
+    synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Stop reconnecting and drop the queued commands, for example because the user disconnects.
+     */
+    synchronized void cancel() {
+        if (active) {
+            active = false;
+            thread.interrupt();
+            dropQueuedCommands("Reconnect cancelled");
+        }
+    }
+
+    /**
+     * Queue a command to be sent when the session is resumed.
+     *
+     * @param command the command to send
+     * @return true if the command is queued, false if not reconnecting or the queue is full
+     */
+    synchronized boolean offer(OutboundCommand command) {
+        if (!active || queuedCommands.size() >= MAX_QUEUED_COMMANDS) {
+            return false;
+        }
+        queuedCommands.add(command);
+        return true;
+    }
+
+    private void reconnect(ReconnectPolicy policy, ServerAddress address) {
+        for (int attempt = 1; policy.allowsAttempt(attempt); attempt++) {
+            long delay = policy.getDelay(attempt);
+            client.onReconnecting(attempt, delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // Cancelled
+                return;
+            }
+            if (!isActive()) {
+                return;
+            }
+            if (client.reconnect(address) && client.resumeSession() && resume()) {
+                client.onReconnected();
+                return;
+            }
+            if (!isActive()) {
+                return;
+            }
+            if (attempt % ATTEMPTS_PER_LOOKUP == 0) {
+                address.refresh();
+            }
+        }
+        synchronized (this) {
+            if (!active) {
+                return;
+            }
+            active = false;
+            dropQueuedCommands("Gave up reconnecting to " + address);
+        }
+        client.onReconnectFailed();
+    }
+
+    /**
+     * Send the queued commands, in order. New commands are sent directly as soon as the queue is
+     * empty, so none of them can overtake a queued one.
+     *
+     * @return true if all the commands are sent, false if the connection failed again (the rest
+     * stays queued for the next attempt) or reconnecting was cancelled meanwhile
+     */
+    private synchronized boolean resume() {
+        if (!active) {
+            return false;
+        }
+        OutboundCommand command;
+        while ((command = queuedCommands.peek()) != null) {
+            if (!client.sendQueuedCommand(command)) {
+                return false;
+            }
+            queuedCommands.remove();
+        }
+        active = false;
+        return true;
+    }
+
+    private void dropQueuedCommands(String reason) {
+        if (!queuedCommands.isEmpty()) {
+            logger.log(Level.WARNING, reason + ", " + queuedCommands.size() + " queued messages are not sent");
+            IOException notSent = new IOException(reason);
+            OutboundCommand command;
+            while ((command = queuedCommands.poll()) != null) {
+                command.fail(notSent);
+            }
+        }
+    }
+}
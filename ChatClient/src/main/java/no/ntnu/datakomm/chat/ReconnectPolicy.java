@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How a {@link TCPClient} reconnects after losing its connection: the delay before each attempt
+ * grows exponentially up to a maximum, and is randomized ("jitter") so that the clients of a
+ * restarted server do not all come back at the same moment.
+ */
+public final class ReconnectPolicy {
+    /**
+     * Start after about half a second, back off to at most 30 seconds, never give up.
+     */
+    public static final ReconnectPolicy DEFAULT = new ReconnectPolicy(500, 30000, 0);
+
+    private final long initialDelay;
+    private final long maxDelay;
+    private final int maxAttempts;
+
+    /**
+     * @param initialDelay the delay before the first attempt (ms). Doubled for every failed attempt.
+     * @param maxDelay     the longest delay between two attempts (ms)
+     * @param maxAttempts  the number of attempts before giving up, 0 for no limit
+     */
+    public ReconnectPolicy(long initialDelay, long maxDelay, int maxAttempts) {
+        if (initialDelay < 1 || maxDelay < initialDelay || maxAttempts < 0) {
+            throw new IllegalArgumentException("Invalid reconnect policy: " + initialDelay + "-" + maxDelay
+                    + " ms, " + maxAttempts + " attempts");
+        }
+        this.initialDelay = initialDelay;
+        this.maxDelay = maxDelay;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Get the delay before an attempt: a random value between half and all of the back-off
+     * ({@code initialDelay * 2^(attempt - 1)}, at most {@code maxDelay}).
+     *
+     * @param attempt the attempt, starting at 1
+     * @return the delay (ms)
+     */
+    public long getDelay(int attempt) {
+        // Never shift the delay into the sign bit
+        int doublings = Math.max(0, Math.min(attempt - 1, Long.numberOfLeadingZeros(initialDelay) - 1));
+        long backOff = Math.min(maxDelay, initialDelay << doublings);
+        long half = backOff / 2;
+        return backOff - half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    /**
+     * @param attempt the attempt, starting at 1
+     * @return true if the attempt should be made
+     */
+    public boolean allowsAttempt(int attempt) {
+        return maxAttempts == 0 || attempt <= maxAttempts;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+}
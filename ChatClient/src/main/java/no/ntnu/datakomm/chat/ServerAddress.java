@@ -0,0 +1,68 @@
+package no.ntnu.datakomm.chat;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The address of a chat server, resolved once when connecting. Reconnects use the resolved
+ * addresses, so they do not wait for a name lookup, and keep working while the name server is
+ * slow or down. The addresses can be looked up again with {@link #refresh()}, in case the server
+ * has moved.
+ */
+final class ServerAddress {
+    private final static Logger logger = Logging.getLogger(ServerAddress.class);
+
+    private final String host;
+    private final int port;
+    private volatile List<InetSocketAddress> addresses;
+
+    /**
+     * Resolve the host name.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @throws UnknownHostException when the host name can not be resolved
+     */
+    ServerAddress(String host, int port) throws UnknownHostException {
+        this.host = host;
+        this.port = port;
+        this.addresses = resolve();
+    }
+
+    /**
+     * @return the resolved addresses, in the order to try them
+     */
+    List<InetSocketAddress> getAddresses() {
+        return addresses;
+    }
+
+    /**
+     * Look the host name up again. The addresses resolved before are kept if the lookup fails.
+     */
+    void refresh() {
+        try {
+            addresses = resolve();
+        } catch (UnknownHostException e) {
+            logger.log(Level.FINE, () -> "Could not resolve " + host + " again, keeping " + addresses);
+        }
+    }
+
+    private List<InetSocketAddress> resolve() throws UnknownHostException {
+        List<InetSocketAddress> resolved = new ArrayList<>();
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+            resolved.add(new InetSocketAddress(address, port));
+        }
+        return Collections.unmodifiableList(resolved);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,370 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The client side of one chat session, apart from the connection itself: turns the commands
+ * received from the server into listener events, and completes the requests waiting for a
+ * response. Used by {@link TCPClient} and by every session of a {@link ChatGateway}.
+ */
+final class ServerResponseHandler {
+    private final static Logger logger = Logging.getLogger(ServerResponseHandler.class);
+
+    private final ClientMetrics metrics;
+
+    // Copy-on-write: the listening thread iterates over the listeners without locking, while
+    // other threads may add and remove listeners at the same time
+    private final CopyOnWriteArrayList<ChatListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile EventDispatcher eventDispatcher = EventDispatcher.sameThread();
+    // Keeps the listeners and the dispatcher's view of them in step
+    private final Object listenerLock = new Object();
+
+    // Requests waiting for their response from the server, oldest first
+    private final Queue<CompletableFuture<LoginResult>> pendingLogins = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<List<String>>> pendingUserLists = new ConcurrentLinkedQueue<>();
+    // The first parts of a user list split over several frames, until the last part arrives
+    private final List<String> userListParts = new ArrayList<>();
+    private final Object pendingRequestLock = new Object();
+
+    // Set when the server has sent a presence notification: it pushes every join and leave, so the
+    // user list does not have to be polled
+    private volatile boolean presenceSupported = false;
+
+    /**
+     * @param metrics where to count the commands received and time the listeners
+     */
+    ServerResponseHandler(ClientMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void addListener(ChatListener listener) {
+        synchronized (listenerLock) {
+            if (listeners.addIfAbsent(listener)) {
+                eventDispatcher.listenerAdded(listener);
+            }
+        }
+    }
+
+    void removeListener(ChatListener listener) {
+        synchronized (listenerLock) {
+            if (listeners.remove(listener)) {
+                eventDispatcher.listenerRemoved(listener);
+            }
+        }
+    }
+
+    /**
+     * Replace the event dispatcher. The registered listeners are added to the new one, and the old
+     * one is shut down.
+     */
+    void setEventDispatcher(EventDispatcher eventDispatcher) {
+        EventDispatcher replaced;
+        synchronized (listenerLock) {
+            for (ChatListener listener : listeners) {
+                eventDispatcher.listenerAdded(listener);
+            }
+            replaced = this.eventDispatcher;
+            this.eventDispatcher = eventDispatcher;
+        }
+        if (replaced != eventDispatcher) {
+            replaced.shutdown();
+        }
+    }
+
+    boolean isPresenceSupported() {
+        return presenceSupported;
+    }
+
+    /**
+     * Send a login request.
+     *
+     * @param username the username
+     * @param send     sends a command, returns false if it can not be sent
+     * @return a future completed with the result when the server's response arrives
+     */
+    CompletableFuture<LoginResult> login(String username, Predicate<String> send) {
+        CompletableFuture<LoginResult> result = new CompletableFuture<>();
+        long sentNanos = System.nanoTime();
+        sendRequest("login " + username, pendingLogins, result, send);
+        result.thenRun(() -> metrics.loginAnswered(sentNanos));
+        return result;
+    }
+
+    /**
+     * Send a request for the list of connected users.
+     *
+     * @param send sends a command, returns false if it can not be sent
+     * @return a future completed with the usernames when the server's response arrives
+     */
+    CompletableFuture<List<String>> users(Predicate<String> send) {
+        CompletableFuture<List<String>> result = new CompletableFuture<>();
+        sendRequest("users", pendingUserLists, result, send);
+        return result;
+    }
+
+    /**
+     * Send a request which the server answers with a response line, and remember the future which
+     * will be completed with the response. The server answers requests in the order they are sent,
+     * so the oldest pending future is completed when a response arrives. Adding the future and
+     * sending the request is done atomically to keep both in the same order.
+     *
+     * @param cmd     the request to send
+     * @param pending the futures waiting for a response of the same type
+     * @param future  the future to complete with the response
+     * @param send    sends the request, returns false if it can not be sent
+     */
+    private <T> void sendRequest(String cmd, Queue<CompletableFuture<T>> pending, CompletableFuture<T> future,
+                                 Predicate<String> send) {
+        boolean sent;
+        synchronized (pendingRequestLock) {
+            pending.add(future);
+            sent = send.test(cmd);
+            if (!sent) {
+                pending.remove(future);
+            }
+        }
+        if (!sent) {
+            future.completeExceptionally(new IOException("Could not send command: " + cmd));
+        }
+    }
+
+    /**
+     * The connection is closed: fail all the requests still waiting for a response, the responses
+     * will never arrive. A new connection may not push presence notifications.
+     */
+    void connectionClosed() {
+        presenceSupported = false;
+        IOException closed = new IOException("Connection closed");
+        CompletableFuture<LoginResult> login;
+        while ((login = pendingLogins.poll()) != null) {
+            login.completeExceptionally(closed);
+        }
+        CompletableFuture<List<String>> userList;
+        while ((userList = pendingUserLists.poll()) != null) {
+            userList.completeExceptionally(closed);
+        }
+        withUserListParts(null);
+    }
+
+    /**
+     * Handle one command received from the server, as a line or as a frame. Strings and messages
+     * are only created when there is a listener (or a request) waiting for them.
+     *
+     * @param line the command, valid during this call only
+     */
+    void handle(InboundLine line) {
+        if (logger.isLoggable(Level.FINEST)) {
+            logger.log(Level.FINEST, "Server response: " + line);
+        }
+        BinaryFraming.Opcode command = line.getCommand();
+        if (command == null) {
+            // Unknown command: nothing the listeners need to know about
+            return;
+        }
+        metrics.commandReceived(command);
+        boolean listening = !listeners.isEmpty();
+        switch (command) {
+            case LOGINOK:
+                completePending(pendingLogins, new LoginResult(true, null));
+                onLoginResult(true, null);
+                break;
+            case LOGINERR:
+                String reason = line.getArgument();
+                completePending(pendingLogins, new LoginResult(false, reason));
+                onLoginResult(false, reason);
+                break;
+            case MSG:
+            case PRIVMSG:
+                if (listening && line.hasArgumentTail()) {
+                    onMsgReceived(command == BinaryFraming.Opcode.PRIVMSG, line.getArgumentHead(),
+                            line.getArgumentTail());
+                }
+                break;
+            case MSGERR:
+                if (listening) {
+                    onMsgError(line.getArgument());
+                }
+                break;
+            case CMDERR:
+                if (listening) {
+                    onCmdError(line.getArgument());
+                }
+                break;
+            case USERS:
+                if (line.hasTrailingSpace()) {
+                    // A part of a list too long for one frame, more follows
+                    synchronized (userListParts) {
+                        userListParts.addAll(Arrays.asList(line.getArgumentWords()));
+                    }
+                } else if (listening || !pendingUserLists.isEmpty()) {
+                    String[] users = withUserListParts(line.getArgumentWords());
+                    completePending(pendingUserLists, Arrays.asList(users));
+                    onUsersList(users);
+                } else {
+                    withUserListParts(null);
+                }
+                break;
+            case JOINED:
+                presenceSupported = true;
+                if (listening) {
+                    onUserJoined(line.getArgument());
+                }
+                break;
+            case LEFT:
+                presenceSupported = true;
+                if (listening) {
+                    onUserLeft(line.getArgument());
+                }
+                break;
+            case SUPPORTED:
+                if (listening) {
+                    onSupported(line.getArgumentWords());
+                }
+                break;
+            default:
+                // For example "msgok": nothing the listeners need to know about
+                break;
+        }
+    }
+
+    /**
+     * Take the parts received before the last part of a user list.
+     *
+     * @param lastPart the usernames of the last part, or null to only drop the earlier parts
+     * @return all the usernames of the list, or null if lastPart is null
+     */
+    private String[] withUserListParts(String[] lastPart) {
+        synchronized (userListParts) {
+            if (userListParts.isEmpty() || lastPart == null) {
+                userListParts.clear();
+                return lastPart;
+            }
+            userListParts.addAll(Arrays.asList(lastPart));
+            String[] users = userListParts.toArray(new String[0]);
+            userListParts.clear();
+            return users;
+        }
+    }
+
+    /**
+     * Complete the oldest request waiting for a response of this type.
+     *
+     * @param pending  the futures waiting for a response of this type
+     * @param response the response received
+     */
+    private static <T> void completePending(Queue<CompletableFuture<T>> pending, T response) {
+        CompletableFuture<T> future = pending.poll();
+        if (future != null) {
+            future.complete(response);
+        }
+    }
+
+    /**
+     * Deliver an event to all the registered listeners, through the event dispatcher.
+     *
+     * @param event the event, a call of one of the listener's methods
+     */
+    void notifyListeners(Consumer<ChatListener> event) {
+        long startNanos = System.nanoTime();
+        EventDispatcher dispatcher = eventDispatcher;
+        for (ChatListener l : listeners) {
+            dispatcher.dispatch(l, event);
+        }
+        metrics.listenersNotified(startNanos);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The following methods are all event-notificators - notify all the listeners about a specific event.
+    // By "event" here we mean "information received from the chat server".
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Notify listeners that login operation is complete (either with success or
+     * failure)
+     *
+     * @param success When true, login successful. When false, it failed
+     * @param errMsg  Error message if any
+     */
+    private void onLoginResult(boolean success, String errMsg) {
+        notifyListeners(l -> l.onLoginResult(success, errMsg));
+    }
+
+    /**
+     * Notify listeners that server sent us a list of currently connected users
+     *
+     * @param users List with usernames
+     */
+    private void onUsersList(String[] users) {
+        notifyListeners(l -> l.onUserList(users));
+    }
+
+    /**
+     * Notify listeners that a user has logged in
+     *
+     * @param username Username of the new user
+     */
+    private void onUserJoined(String username) {
+        notifyListeners(l -> l.onUserJoined(username));
+    }
+
+    /**
+     * Notify listeners that a user has left
+     *
+     * @param username Username of the user who left
+     */
+    private void onUserLeft(String username) {
+        notifyListeners(l -> l.onUserLeft(username));
+    }
+
+    /**
+     * Notify listeners that a message is received from the server
+     *
+     * @param priv   When true, this is a private message
+     * @param sender Username of the sender
+     * @param text   Message text
+     */
+    private void onMsgReceived(boolean priv, String sender, String text) {
+        TextMessage message = new TextMessage(sender, priv, text);
+        notifyListeners(l -> l.onMessageReceived(message));
+    }
+
+    /**
+     * Notify listeners that our message was not delivered
+     *
+     * @param errMsg Error description returned by the server
+     */
+    private void onMsgError(String errMsg) {
+        notifyListeners(l -> l.onMessageError(errMsg));
+    }
+
+    /**
+     * Notify listeners that command was not understood by the server.
+     *
+     * @param errMsg Error message
+     */
+    private void onCmdError(String errMsg) {
+        notifyListeners(l -> l.onCommandError(errMsg));
+    }
+
+    /**
+     * Notify listeners that a help response (supported commands) was received
+     * from the server
+     *
+     * @param commands Commands supported by the server
+     */
+    private void onSupported(String[] commands) {
+        notifyListeners(l -> l.onSupportedCommands(commands));
+    }
+}
@@ -0,0 +1,157 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Named sets of socket options, applied the same way to the connections of {@link TCPClient} and
+ * {@link ChatGateway}, and to the listening socket and the connections of the chat server. The
+ * profile used by default is {@link #LOW_LATENCY}; another one can be chosen with the system
+ * property {@code chat.socket.profile}, for example {@code -Dchat.socket.profile=many_idle_connections}.
+ * <p>
+ * A buffer size of 0 keeps the operating system's default (which it may grow automatically), a
+ * timeout of 0 waits forever.
+ */
+public enum SocketProfile {
+    /**
+     * Nothing is set: the options of {@code SocketChannel.open(address)} and {@code ServerSocketChannel.open()}.
+     */
+    SYSTEM_DEFAULT(false, 0, 0, false, false, 0, 0),
+    /**
+     * Chat lines sent one by one: no Nagle delay, default buffers, and a connect timeout so the
+     * client does not hang on a server which does not answer. The client, the gateway and the
+     * server already write their commands and messages in batches, so Nagle's algorithm would
+     * only delay them; this is why every profile but {@link #SYSTEM_DEFAULT} sets TCP_NODELAY.
+     */
+    LOW_LATENCY(true, 0, 0, false, true, 128, 5000),
+    /**
+     * Large amounts of messages (load tests, big user lists): 1 MB buffers so the TCP window never
+     * limits the transfer. Nagle's algorithm is off as well (see {@link #LOW_LATENCY}): the last,
+     * partial segment of a batch would wait for a delayed acknowledgement.
+     */
+    BULK_THROUGHPUT(true, 1024 * 1024, 1024 * 1024, false, true, 128, 5000),
+    /**
+     * Many connections which are mostly idle, like chat users reading: small buffers to save
+     * kernel memory per connection, keep-alive to find peers which are gone, and a long accept
+     * backlog for connection storms.
+     */
+    MANY_IDLE_CONNECTIONS(true, 16 * 1024, 16 * 1024, true, true, 4096, 5000);
+
+    private final static Logger logger = Logging.getLogger(SocketProfile.class);
+
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean keepAlive;
+    private final boolean reuseAddress;
+    // 0 for the default of the JDK
+    private final int backlog;
+    private final int connectTimeoutMillis;
+
+    SocketProfile(boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize, boolean keepAlive,
+                  boolean reuseAddress, int backlog, int connectTimeoutMillis) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.keepAlive = keepAlive;
+        this.reuseAddress = reuseAddress;
+        this.backlog = backlog;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * @return the profile named by the system property {@code chat.socket.profile}, or
+     * {@link #LOW_LATENCY} when it is not set or unknown
+     */
+    public static SocketProfile configured() {
+        String name = System.getProperty("chat.socket.profile");
+        if (name == null) {
+            return LOW_LATENCY;
+        }
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.log(Level.WARNING, "Unknown socket profile " + name + ", using " + LOW_LATENCY);
+            return LOW_LATENCY;
+        }
+    }
+
+    /**
+     * Open a connection in blocking mode with the options of this profile. The buffer sizes are
+     * set before connecting, so the TCP window scaling is agreed on accordingly.
+     *
+     * @param address the resolved address to connect to
+     * @return the connected channel
+     * @throws IOException when the connection fails or times out
+     */
+    public SocketChannel connect(InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            configure(channel);
+            channel.socket().connect(address, connectTimeoutMillis);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Set the options of a channel before it connects, or of a channel accepted by a server.
+     *
+     * @param channel the channel
+     * @throws IOException when an option can not be set
+     */
+    public void configure(SocketChannel channel) throws IOException {
+        if (tcpNoDelay) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        if (sendBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+        }
+        if (keepAlive) {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+        }
+    }
+
+    /**
+     * Open a listening channel with the options of this profile. The receive buffer size is
+     * inherited by the accepted channels.
+     *
+     * @param address the address to listen on, port 0 for any free port
+     * @return the bound channel, in blocking mode
+     * @throws IOException when the channel can not be bound
+     */
+    public ServerSocketChannel bind(InetSocketAddress address) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            if (reuseAddress) {
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            if (receiveBufferSize > 0) {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+            channel.bind(address, backlog);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return how long connecting waits for the server, in milliseconds, 0 for ever
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+}
@@ -2,25 +2,75 @@ package no.ntnu.datakomm.chat;
 
 import java.io.*;
 import java.net.*;
-import java.util.IllformedLocaleException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+
+import no.ntnu.datakomm.common.MetricsRegistry;
 // ppop
 public class TCPClient {
-    private PrintWriter toServer;
-    private BufferedReader fromServer;
-    private Socket connection;
-    private final static Logger logger = Logger.getLogger(Logger.GLOBAL_LOGGER_NAME);
-
-    private final static String loginok = "loginok";
-    private final static String userAlreadyInUse = "loginerr username already in use";
+    // Read without locking by isConnectionActive(), changed with the client locked
+    private volatile Socket connection;
+    // The listening thread reads from the channel of the socket, see InboundDecoder
+    private volatile SocketChannel channel;
+    // Writes the commands to the channel, so sending never blocks, see OutboundWriter
+    private volatile OutboundWriter writer;
+    // How long closing the connection waits for the commands sent before to be written (ms)
+    private static final long CLOSE_TIMEOUT = 1000;
+    private volatile boolean binaryFraming = false;
+    // How long to wait for the server's answer to the binary framing request (ms)
+    private static final int NEGOTIATION_TIMEOUT = 2000;
+    private final static Logger logger = Logging.getLogger(TCPClient.class);
 
     // Hint: if you want to store a message for the last error, store it here
-    private String lastError = null;
+    // Also set by the writer thread
+    private volatile String lastError = null;
+
+    // The only thread reading from the socket, and the channel it reads from
+    private Thread listenThread;
+    private SocketChannel listenChannel;
+
+    // Counters and timers of this client, see getMetrics()
+    private final ClientMetrics metrics = new ClientMetrics(new MetricsRegistry(Logging.PACKAGE, "TCPClient"));
+    // Listeners, and requests waiting for their response
+    private final ServerResponseHandler responses = new ServerResponseHandler(metrics);
+
+    // The server of the last connect() and the framing asked for, used to reconnect
+    private volatile ServerAddress serverAddress;
+    private volatile boolean binaryFramingRequested = false;
+    // The options of the connections opened from now on
+    private volatile SocketProfile socketProfile = SocketProfile.configured();
+    // The username of the last successful login, replayed after a reconnect
+    private volatile String username;
+    // Null when the client does not reconnect automatically
+    private volatile ReconnectPolicy reconnectPolicy;
+    private final ReconnectManager reconnectManager = new ReconnectManager(this);
+    // How long to wait for the server's answer to the login replayed after a reconnect (ms)
+    private static final long RESUME_LOGIN_TIMEOUT = 5000;
+
+    public TCPClient() {
+        metrics.queuedCommands(() -> {
+            OutboundWriter out = writer;
+            return out != null ? out.getQueuedCount() : 0;
+        });
+    }
 
-    private final List<ChatListener> listeners = new LinkedList<>();
+    /**
+     * Choose the socket options of the next connections, instead of the profile chosen by the
+     * system property chat.socket.profile. The current connection is not changed.
+     *
+     * @param socketProfile the options of the connections
+     */
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
 
     /**
      * Connect to a chat server.
@@ -30,21 +80,175 @@ public class TCPClient {
      * @return True on success, false otherwise
      */
     public boolean connect(String host, int port) {
+        return connect(host, port, false);
+    }
+
+    /**
+     * Connect to a chat server, optionally asking for the binary framing of the protocol (see
+     * {@link BinaryFraming}). If the server does not support it, the text protocol is used.
+     *
+     * @param host          host name or IP address of the chat server
+     * @param port          TCP port of the chat server
+     * @param binaryFraming when true, ask the server for binary framing
+     * @return True on success, false otherwise
+     */
+    public boolean connect(String host, int port, boolean binaryFraming) {
         // TODO Step 1: implement this method
         // Hint: Remember to process all exceptions and return false on error
         // Hint: Remember to set up all the necessary input/output stream variables
 
-        boolean connected = false;
+        ServerAddress address;
         try {
-            this.connection = new Socket(host, port);
-            this.fromServer = new BufferedReader(new InputStreamReader(this.connection.getInputStream()));
-            this.toServer = new PrintWriter(this.connection.getOutputStream(), true);
-            connected = true;
-        } catch (IOException e) {
-            System.out.println("Something went wrong when establishing a socket: " + e.getMessage());;
+            address = new ServerAddress(host, port);
+        } catch (UnknownHostException e) {
+            metrics.error();
+            lastError = "Unknown host " + host;
+            logger.log(Level.WARNING, "Something went wrong when establishing a socket: " + e);
+            return false;
+        }
+        // The name lookup above is done unlocked, the rest with the client locked, so concurrent
+        // connects do not mix their servers and framings
+        synchronized (this) {
+            serverAddress = address;
+            binaryFramingRequested = binaryFraming;
+            return open(address);
+        }
+    }
+
+    /**
+     * Connect to the first of the server's resolved addresses which accepts the connection. No
+     * name lookup is done here, see {@link ServerAddress}.
+     *
+     * @param address the server to connect to
+     * @return true on success, false otherwise
+     */
+    private synchronized boolean open(ServerAddress address) {
+        // Connecting again replaces the connection, instead of leaving it open with its threads
+        closeConnection();
+        for (InetSocketAddress socketAddress : address.getAddresses()) {
+            try {
+                this.channel = socketProfile.connect(socketAddress);
+                this.connection = this.channel.socket();
+                if (binaryFramingRequested) {
+                    this.binaryFraming = negotiateBinaryFraming();
+                }
+                SocketChannel opened = this.channel;
+                this.writer = new OutboundWriter(opened, binaryFraming, metrics, e -> writeFailed(opened, e));
+                metrics.connected();
+                return true;
+            } catch (IOException e) {
+                metrics.error();
+                lastError = e.getMessage();
+                logger.log(Level.WARNING, "Something went wrong when establishing a socket: " + e);
+                closeConnection();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reconnect automatically when the connection is lost: connect to the same server again, log in
+     * with the same username and send the messages queued meanwhile. The listeners are told about
+     * every attempt, see {@link ChatListener#onReconnecting(int, long)}.
+     *
+     * @param policy when to try to reconnect, or null to not reconnect automatically
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        this.reconnectPolicy = policy;
+    }
+
+    /**
+     * @return true while the client tries to get back a lost connection. Messages sent meanwhile
+     * are queued.
+     */
+    public boolean isReconnecting() {
+        return reconnectManager.isActive();
+    }
+
+    /**
+     * Connect again after the connection was lost, unless reconnecting was cancelled meanwhile.
+     *
+     * @param address the server to connect to
+     * @return true on success
+     */
+    synchronized boolean reconnect(ServerAddress address) {
+        if (!reconnectManager.isActive() || !open(address)) {
+            return false;
+        }
+        startListenThread();
+        return true;
+    }
+
+    /**
+     * Log in again after a reconnect, with the username of the last successful login. The
+     * connection is closed if that fails.
+     *
+     * @return true when logged in (or there was nothing to log in), false otherwise
+     */
+    boolean resumeSession() {
+        String name = username;
+        if (name == null) {
+            return true;
+        }
+        try {
+            LoginResult result = login(name).get(RESUME_LOGIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            if (result.isSuccess()) {
+                return true;
+            }
+            logger.log(Level.WARNING, "Could not log in again as " + name + ": " + result.getErrorMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            logger.log(Level.WARNING, "Could not log in again as " + name + ": " + e.getMessage());
+        }
+        closeConnection();
+        return false;
+    }
+
+    /**
+     * Send a command queued while reconnecting.
+     *
+     * @param command the command
+     * @return true if queued for the writer
+     */
+    boolean sendQueuedCommand(OutboundCommand command) {
+        return send(command);
+    }
+
+    /**
+     * Ask the server for binary framing, before anything else is sent. The server sends nothing
+     * after its answer until it gets the next command, so no bytes are left in the reader used
+     * for the answer.
+     *
+     * @return true if the server switched to binary framing
+     */
+    private boolean negotiateBinaryFraming() throws IOException {
+        connection.setSoTimeout(NEGOTIATION_TIMEOUT);
+        try {
+            // Written directly, the writer thread is started once the framing is known
+            OutputStream out = connection.getOutputStream();
+            out.write((BinaryFraming.NEGOTIATION_REQUEST + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            BufferedReader fromServer = new BufferedReader(new InputStreamReader(connection.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String answer = fromServer.readLine();
+            if (BinaryFraming.NEGOTIATION_ACCEPTED.equals(answer)) {
+                return true;
+            }
+            logger.log(Level.INFO, "Server does not support binary framing, using text: " + answer);
+        } catch (SocketTimeoutException e) {
+            logger.log(Level.INFO, "No answer to binary framing request, using text");
+        } finally {
+            connection.setSoTimeout(0);
         }
-        return connected;
+        return false;
+    }
 
+    /**
+     * @return true when the connection uses binary framing instead of text lines
+     */
+    public boolean isBinaryFraming() {
+        return binaryFraming;
     }
 
     /**
@@ -55,25 +259,103 @@ public class TCPClient {
      * input stream and may try to call this method when the socket is already
      * in the process of being closed. with "synchronized" keyword we make sure
      * that no two threads call this method in parallel.
+     * <p>
+     * Returns without waiting for the server: the commands sent before are still written, and
+     * the socket is closed once the server has closed its side, in the background.
      */
     public synchronized void disconnect() {
         // Keyword synchronized to make sure no two threads call this method in parallel.
         // If one thread is executing a synchronized method for an object, all other threads that invoke synchronized
         // methods for the same object block until the first thread is done with the object.
+        // The user closes the connection: do not bring it back, and log in anew on the next connection
+        reconnectManager.cancel();
+        username = null;
+        closeConnection();
+    }
+
+    /**
+     * Close the socket, if open, and fail the requests waiting for a response. The listeners are
+     * not notified. Returns right away: the commands sent before are still written, and the
+     * socket closed, on a short-lived thread, see {@link #finishClosing}.
+     */
+    private synchronized void closeConnection() {
+        if (connection == null) {
+            // Never connected, or already closed by another thread
+            return;
+        }
+        // Let the writer send the commands queued before, then stop. There is no writer yet when
+        // the connection is closed during the binary framing negotiation.
+        OutboundWriter out = this.writer;
+        this.writer = null;
+        if (out != null) {
+            out.close();
+        }
+        Socket closing = this.connection;
+        // Nothing left to read when the listening thread closes after the end of the stream
+        boolean graceful = out != null && Thread.currentThread() != listenThread;
+        // The listening thread stops once it sees that its channel is no longer the connection
+        this.channel = null;
+        this.binaryFraming = false;
+        this.connection = null;
+        responses.connectionClosed();
+        // Takes up to twice CLOSE_TIMEOUT: not with the client locked, nor on the caller's
+        // thread, which is often the GUI thread
+        Thread closer = new Thread(() -> finishClosing(closing, out, graceful), "chat-closer");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * Wait for the writer to send the commands queued before the connection was closed, then
+     * close the socket, gracefully if asked.
+     *
+     * @param closing  the socket of the connection being closed
+     * @param out      the writer of the connection, or null if there was none
+     * @param graceful true to wait for the server to close its side first
+     */
+    private void finishClosing(Socket closing, OutboundWriter out, boolean graceful) {
+        if (out != null) {
+            try {
+                out.awaitTermination(CLOSE_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         try {
-            if(connection.isConnected()) // checks if the connection socket is connected (active), if so disconnect socket.
-            {
-                this.fromServer=null;
-                this.toServer=null;
-                this.connection.close();
-                this.connection=null;
-
-                logger.log(Level.INFO, "Connection closed");
-            } else {
-                throw new IllegalArgumentException("Socket is not connected"); // throws IllegalArgumentException if socket is not connected.
+            if (graceful) {
+                shutdownGracefully(closing);
             }
-        } catch (IOException e)
-        {logger.log(Level.INFO, e.getMessage());}
+            closing.close();
+        } catch (IOException e) {
+            logger.log(Level.INFO, e.getMessage());
+        }
+        logger.log(Level.INFO, "Connection closed");
+    }
+
+    /**
+     * Tell the server that nothing more is sent, and read (and ignore) what it still sends until
+     * it closes its side, at most {@link #CLOSE_TIMEOUT}. Closing a socket with unread responses
+     * in its receive buffer resets the connection, and the server may then lose the commands it
+     * has not read yet, although they were written.
+     *
+     * @param closing the socket of the connection being closed
+     */
+    private void shutdownGracefully(Socket closing) throws IOException {
+        if (closing.isOutputShutdown() || closing.isInputShutdown()) {
+            return;
+        }
+        closing.shutdownOutput();
+        closing.setSoTimeout((int) CLOSE_TIMEOUT);
+        InputStream in = closing.getInputStream();
+        byte[] ignored = new byte[4096];
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT;
+        try {
+            while (in.read(ignored) >= 0 && System.currentTimeMillis() < deadline) {
+                // Responses to commands sent before disconnecting, nobody is listening any more
+            }
+        } catch (SocketTimeoutException e) {
+            logger.log(Level.INFO, "Server did not close the connection in time");
+        }
     }
 
     /**
@@ -84,67 +366,127 @@ public class TCPClient {
     }
 
     /**
-     * Send a command to server.
+     * Send a command to server. The command is queued for the writer thread of the connection,
+     * this method does not wait for it to be written.
      *
      * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
-     * @return true on success, false otherwise
+     * @return true if the command is queued, false otherwise (see {@link #getLastError()})
      */
     private boolean sendCommand(String cmd) {
+        return send(new OutboundCommand(cmd, null));
+    }
+
+    private boolean send(OutboundCommand command) {
         // TODO Step 2: Implement this method
         // Hint: Remember to check if connection is active
 
-        if (connection == null) {
+        OutboundWriter out = writer;
+        if (out == null) {
+            lastError = "Not connected";
             return false;
         }
 
-        try {
-            toServer.println(cmd);
+        logger.finest(() -> "Sending command: " + command.getCommand());
+        // Refused here, so the caller learns it, rather than on the writer thread
+        if (out.isBinaryFraming() && !BinaryFraming.fitsInFrame(command.getCommand())) {
+            lastError = "Command too long for a frame";
+            return false;
+        }
+        if (!out.offer(command)) {
+            lastError = out.isClosed() ? "Connection closed" : "Too many commands waiting to be sent";
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Called on the writer thread of a connection when writing to it failed: the connection is
+     * lost, as when reading from it fails.
+     *
+     * @param failed the channel of the connection
+     * @param e      the reason
+     */
+    private void writeFailed(SocketChannel failed, IOException e) {
+        metrics.error();
+        lastError = e.getMessage();
+        logger.log(Level.WARNING, "Something went wrong when sending a command: " + e.getMessage());
+        if (connectionLost(failed)) {
+            onDisconnect();
+        }
+    }
+
+    /**
+     * Send a public or private message, or queue it while reconnecting.
+     *
+     * @param command the message command
+     * @return true if the message is sent or queued
+     */
+    private boolean sendMessage(OutboundCommand command) {
+        if (reconnectManager.offer(command)) {
+            // Sent when the connection is back
             return true;
-        } catch (Exception e) {
-            System.out.println("Something went wrong when sending a command: " + e.getMessage());
+        }
+        if (!send(command)) {
+            command.fail(new IOException(getLastError()));
             return false;
         }
-        
+        return true;
     }
 
     /**
      * Send a public message to all the recipients.
      *
      * @param message Message to send
-     * @return true if message sent, false on error
+     * @return true if message is queued to be sent, false on error (see {@link #getLastError()})
      */
     public boolean sendPublicMessage(String message) {
         // TODO Step 2: implement this method
         // Hint: Reuse sendCommand() method
         // Hint: update lastError if you want to store the reason for the error.
 
-        try {
-            sendCommand("msg" + " " + message);
-            return true;
-        } catch (Exception e) {
-            lastError = e.getMessage();
-            return false;
-        }
+        return sendMessage(new OutboundCommand("msg " + message, null));
+    }
 
+    /**
+     * Send a public message to all the recipients, without waiting for it to be written.
+     *
+     * @param message Message to send
+     * @return a future completed when the message is written to the socket (after the reconnect,
+     * if reconnecting), or completed exceptionally if it can not be sent
+     */
+    public CompletableFuture<Void> sendPublicMessageAsync(String message) {
+        OutboundCommand command = new OutboundCommand("msg " + message, new CompletableFuture<>());
+        sendMessage(command);
+        return command.getCompletion();
     }
 
     /**
-     * Send a login request to the chat server.
+     * Send a login request to the chat server. The result is delivered to the listeners, see
+     * {@link ChatListener#onLoginResult(boolean, String)}.
      *
      * @param username Username to use
      */
     public void tryLogin(String username) {
-        // TODO Step 3: implement this method
-        // Hint: Reuse sendCommand() method
-        
-        if (this.sendCommand("login " + username)) {
-            String response = this.waitServerResponse();
-            if (response.equals(loginok)) {
-                System.out.println("Logged in");
-            } else if (response.equals(userAlreadyInUse)) {
-                System.out.println("Username is already in use");
+        login(username);
+    }
+
+    /**
+     * Send a login request to the chat server, without waiting for the response.
+     *
+     * @param username Username to use
+     * @return a future completed with the result of the login when the server's response arrives,
+     * or completed exceptionally if the request can not be sent or the connection is closed first
+     */
+    public CompletableFuture<LoginResult> login(String username) {
+        CompletableFuture<LoginResult> result = responses.login(username, this::sendCommand);
+        // The response can only arrive if someone is reading the socket
+        startListenThread();
+        result.thenAccept(login -> {
+            if (login.isSuccess()) {
+                this.username = username;
             }
-        }
+        });
+        return result;
     }
 
     /**
@@ -152,51 +494,49 @@ public class TCPClient {
      * clear your current user list and use events in the listener.
      */
     public void refreshUserList() {
-        // TODO Step 5: implement this method
-
-        // Hint: Use Wireshark and the provided chat client reference app to find out what commands the
-        // client and server exchange for user listing.
+        users();
+    }
 
-        if (this.sendCommand("users")) {
-            System.out.println("Refreshed user list");
-            try {
-                String response = fromServer.readLine();
-                if (response.equals("users")) {
-                    String userList = fromServer.readLine();
-                    
-                    for (userList.split(","); userList.length() > 0; userList.split(" ")) {
-                    System.out.println(userList);
-                    onUsersList(userList.split(","));
-                }
-            }
-            }
-             catch (IOException e) {
-                System.out.println("Error when reading from server: " + e.getMessage());
-            }
-             }
-             else {
-                System.out.println("Error when sending command");
-        }
+    /**
+     * Send a request for the list of currently connected users, without waiting for the response.
+     * The listeners are notified about the list as well, see {@link ChatListener#onUserList(String[])}.
+     *
+     * @return a future completed with the usernames when the server's response arrives, or
+     * completed exceptionally if the request can not be sent or the connection is closed first
+     */
+    public CompletableFuture<List<String>> users() {
+        CompletableFuture<List<String>> result = responses.users(this::sendCommand);
+        startListenThread();
+        return result;
     }
+
     /**
      * Send a private message to a single recipient.
      *
      * @param recipient username of the chat user who should receive the message
      * @param message   Message to send
-     * @return true if message sent, false on error
+     * @return true if message is queued to be sent, false on error (see {@link #getLastError()})
      */
     public boolean sendPrivateMessage(String recipient, String message) {
         // TODO Step 6: Implement this method
         // Hint: Reuse sendCommand() method
         // Hint: update lastError if you want to store the reason for the error.
-        try {
-            sendCommand("/privmsg " + recipient + " " + message);
-            return true;
-        }
-        catch (Exception e) {
-            lastError = e.getMessage();
-            return false;
-        }
+        return sendMessage(new OutboundCommand("privmsg " + recipient + " " + message, null));
+    }
+
+    /**
+     * Send a private message to a single recipient, without waiting for it to be written.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return a future completed when the message is written to the socket (after the reconnect,
+     * if reconnecting), or completed exceptionally if it can not be sent
+     */
+    public CompletableFuture<Void> sendPrivateMessageAsync(String recipient, String message) {
+        OutboundCommand command = new OutboundCommand("privmsg " + recipient + " " + message,
+                new CompletableFuture<>());
+        sendMessage(command);
+        return command.getCompletion();
     }
 
 
@@ -204,31 +544,16 @@ public class TCPClient {
      * Send a request for the list of commands that server supports.
      */
     public void askSupportedCommands() {
-        // TODO Step 8: Implement this method
-        // Hint: Reuse sendCommand() method
+        sendCommand("help");
     }
 
 
     /**
-     * Wait for chat server's response
-     *
-     * @return one line of text (one command) received from the server
+     * @return true when the server has been seen to push presence notifications ({@code joined} and
+     * {@code left}), so the user list does not need to be polled
      */
-    private String waitServerResponse() {
-        // TODO Step 3: Implement this method
-        // TODO Step 4: If you get I/O Exception or null from the stream, it means that something has gone wrong
-        // with the stream and hence the socket. Probably a good idea to close the socket in that case.
-
-        String response = null;
-        try {
-            response = fromServer.readLine();
-            System.out.println("Wait server response: " + response);
-        } catch (IOException e) {
-            System.out.println("Error when reading from server: " + e.getMessage());
-            disconnect();
-        }
-        return response;
-
+    public boolean isPresenceSupported() {
+        return responses.isPresenceSupported();
     }
 
     /**
@@ -245,136 +570,197 @@ public class TCPClient {
     }
 
     /**
-     * Start listening for incoming commands from the server in a new CPU thread.
+     * @return the metrics of the client: connections, bytes and commands sent and received per
+     * command word, errors, login round-trip time and the time spent notifying the listeners
      */
-    public void startListenThread() {
-        // Call parseIncomingCommands() in the new thread.
-        Thread t = new Thread(() -> {
-            parseIncomingCommands();
-        });
-        t.start();
+    public MetricsRegistry getMetrics() {
+        return metrics.getRegistry();
     }
 
     /**
-     * Read incoming messages one by one, generate events for the listeners. A loop that runs until
-     * the connection is closed.
-     */
-    private void parseIncomingCommands() {
-        while (isConnectionActive()) {
-            // TODO Step 3: Implement this method
-            // Hint: Reuse waitServerResponse() method
-            // Hint: Have a switch-case (or other way) to check what type of response is received from the server
-            // and act on it.
-            // Hint: In Step 3 you need to handle only login-related responses.
-            // Hint: In Step 3 reuse onLoginResult() method
-            String response = this.waitServerResponse();
-            System.out.println("Server response: " + response);
-            // TODO Step 5: update this method, handle user-list response from the server
-            // Hint: In Step 5 reuse onUserList() method
-
-            // TODO Step 7: add support for incoming chat messages from other users (types: msg, privmsg)
-            // TODO Step 7: add support for incoming message errors (type: msgerr)
-            // TODO Step 7: add support for incoming command errors (type: cmderr)
-            // Hint for Step 7: call corresponding onXXX() methods which will notify all the listeners
-
-            // TODO Step 8: add support for incoming supported command list (type: supported)
-
+     * Start listening for incoming commands from the server in a new CPU thread. All the responses
+     * are read by this one thread, so calling the method again while it is running has no effect.
+     */
+    public synchronized void startListenThread() {
+        SocketChannel in = channel;
+        // After a reconnect, the thread of the old connection may still be finishing
+        if (in != null && (listenThread == null || !listenThread.isAlive() || listenChannel != in)) {
+            // Call parseIncomingCommands() in the new thread.
+            listenChannel = in;
+            listenThread = new Thread(() -> parseIncomingCommands(in), "chat-listener");
+            listenThread.start();
         }
     }
 
     /**
-     * Register a new listener for events (login result, incoming message, etc)
+     * Read incoming messages one by one, generate events for the listeners. A loop that runs until
+     * the connection is closed. The lines are decoded directly from the receive buffer, see
+     * {@link InboundDecoder}.
      *
-     * @param listener
+     * @param in the channel of the connection to read from
      */
-    public void addListener(ChatListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
+    private void parseIncomingCommands(SocketChannel in) {
+        try {
+            if (binaryFraming) {
+                parseIncomingFrames(in);
+            } else {
+                InboundDecoder decoder = new InboundDecoder();
+                while (channel == in) {
+                    int bytesRead = decoder.read(in, this::handleServerLine);
+                    if (bytesRead < 0) {
+                        // End of stream: the server has closed the connection
+                        break;
+                    }
+                    metrics.bytesReceived(bytesRead);
+                }
+            }
+        } catch (IOException e) {
+            if (channel == in) {
+                metrics.error();
+                logger.log(Level.WARNING, "Error when reading from server: " + e.getMessage());
+            }
+        }
+        if (connectionLost(in)) {
+            onDisconnect();
         }
     }
 
     /**
-     * Unregister an event listener
+     * Close the connection after reading from it failed or reached the end of the stream, unless
+     * it has already been replaced by a new connection.
      *
-     * @param listener
+     * Starts reconnecting if a reconnect policy is set.
+     *
+     * @param lost the channel the listening thread was reading from
+     * @return true if the connection was closed, and the listeners must be notified
      */
-    public void removeListener(ChatListener listener) {
-        listeners.remove(listener);
+    private synchronized boolean connectionLost(SocketChannel lost) {
+        if (channel != lost) {
+            return false;
+        }
+        metrics.connectionLost();
+        closeConnection();
+        ServerAddress address = serverAddress;
+        ReconnectPolicy policy = reconnectPolicy;
+        if (policy != null && address != null) {
+            // Before the listeners hear about it, so they see that the client is reconnecting
+            reconnectManager.start(policy, address);
+        }
+        return true;
     }
 
-
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
-    // The following methods are all event-notificators - notify all the listeners about a specific event.
-    // By "event" here we mean "information received from the chat server".
-    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
-
     /**
-     * Notify listeners that login operation is complete (either with success or
-     * failure)
-     *
-     * @param success When true, login successful. When false, it failed
-     * @param errMsg  Error message if any
+     * Read incoming frames in binary framing mode, until the end of the stream. The frames are
+     * decoded directly from a pooled buffer, the payload is only turned into text when needed.
      */
-    private void onLoginResult(boolean success, String errMsg) {
-        for (ChatListener l : listeners) {
-            l.onLoginResult(success, errMsg);
+    private void parseIncomingFrames(SocketChannel in) throws IOException {
+        ByteBuffer buffer = ByteBufferPool.FRAME_BUFFERS.acquire();
+        BinaryFraming.Frame frame = new BinaryFraming.Frame(buffer);
+        InboundLine line = new InboundLine();
+        try {
+            int bytesRead;
+            while (channel == in && (bytesRead = in.read(buffer)) >= 0) {
+                metrics.bytesReceived(bytesRead);
+                buffer.flip();
+                while (BinaryFraming.decode(buffer, frame)) {
+                    line.setFrame(frame.getOpcode(), frame.getPayload());
+                    handleServerLine(line);
+                }
+                buffer.compact();
+            }
+        } finally {
+            ByteBufferPool.FRAME_BUFFERS.release(buffer);
         }
     }
 
     /**
-     * Notify listeners that socket was closed by the remote end (server or
-     * Internet error)
+     * Handle one line (one command) received from the server: find out what type of response it
+     * is and notify the listeners about it.
+     *
+     * @param response the line received from the server, without the newline
      */
-    private void onDisconnect() {
-        // TODO Step 4: Implement this method
-        // Hint: all the onXXX() methods will be similar to onLoginResult()
+    void handleServerResponse(String response) {
+        byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+        InboundLine line = new InboundLine();
+        line.setLine(ByteBuffer.wrap(bytes), 0, bytes.length);
+        handleServerLine(line);
     }
 
     /**
-     * Notify listeners that server sent us a list of currently connected users
+     * Handle one command received from the server, as a line or as a frame. Strings and messages
+     * are only created when there is a listener (or a request) waiting for them.
      *
-     * @param users List with usernames
+     * @param line the command, valid during this call only
      */
-    private void onUsersList(String[] users) {
-        // TODO Step 5: Implement this method
+    void handleServerLine(InboundLine line) {
+        responses.handle(line);
     }
 
     /**
-     * Notify listeners that a message is received from the server
+     * Register a new listener for events (login result, incoming message, etc)
      *
-     * @param priv   When true, this is a private message
-     * @param sender Username of the sender
-     * @param text   Message text
+     * @param listener
      */
-    private void onMsgReceived(boolean priv, String sender, String text) {
-        // TODO Step 7: Implement this method
+    public void addListener(ChatListener listener) {
+        responses.addListener(listener);
     }
 
     /**
-     * Notify listeners that our message was not delivered
+     * Unregister an event listener
      *
-     * @param errMsg Error description returned by the server
+     * @param listener
      */
-    private void onMsgError(String errMsg) {
-        // TODO Step 7: Implement this method
+    public void removeListener(ChatListener listener) {
+        responses.removeListener(listener);
     }
 
     /**
-     * Notify listeners that command was not understood by the server.
+     * Set how the events are delivered to the listeners. By default the listeners are called
+     * directly on the thread reading from the socket.
      *
-     * @param errMsg Error message
+     * The dispatcher replaced is shut down, so a dispatcher must not be shared between clients.
+     *
+     * @param eventDispatcher the dispatcher to use for all the following events
+     */
+    public void setEventDispatcher(EventDispatcher eventDispatcher) {
+        responses.setEventDispatcher(eventDispatcher);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The following methods are all event-notificators - notify all the listeners about a specific event.
+    // The events of the commands received are in ServerResponseHandler.
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Notify listeners that socket was closed by the remote end (server or
+     * Internet error)
      */
-    private void onCmdError(String errMsg) {
-        // TODO Step 7: Implement this method
+    private void onDisconnect() {
+        responses.notifyListeners(ChatListener::onDisconnect);
     }
 
     /**
-     * Notify listeners that a help response (supported commands) was received
-     * from the server
+     * Notify listeners that the client waits before its next attempt to reconnect
      *
-     * @param commands Commands supported by the server
+     * @param attempt     the attempt, starting at 1
+     * @param delayMillis the time until the attempt (ms)
+     */
+    void onReconnecting(int attempt, long delayMillis) {
+        responses.notifyListeners(l -> l.onReconnecting(attempt, delayMillis));
+    }
+
+    /**
+     * Notify listeners that the connection is back, with the session resumed
+     */
+    void onReconnected() {
+        responses.notifyListeners(ChatListener::onReconnected);
+    }
+
+    /**
+     * Notify listeners that the client gave up reconnecting
      */
-    private void onSupported(String[] commands) {
-        // TODO Step 8: Implement this method
+    void onReconnectFailed() {
+        responses.notifyListeners(ChatListener::onReconnectFailed);
     }
 }
@@ -0,0 +1,84 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * The users currently logged in, sorted by name. Changes are reported as single insertions and
+ * removals at a position in the sorted order, so a view of the users can be updated by applying
+ * only the differences instead of being rebuilt.
+ */
+class UserSet {
+    private final List<String> users = new ArrayList<>();
+
+    /**
+     * Add a user.
+     *
+     * @param username the user to add
+     * @return the position of the new user, or -1 if the user was already there
+     */
+    int add(String username) {
+        int index = Collections.binarySearch(users, username);
+        if (index >= 0) {
+            return -1;
+        }
+        index = -index - 1;
+        users.add(index, username);
+        return index;
+    }
+
+    /**
+     * Remove a user.
+     *
+     * @param username the user to remove
+     * @return the position the user had, or -1 if the user was not there
+     */
+    int remove(String username) {
+        int index = Collections.binarySearch(users, username);
+        if (index >= 0) {
+            users.remove(index);
+        }
+        return index >= 0 ? index : -1;
+    }
+
+    /**
+     * Replace the users with a complete list, reporting only the differences.
+     *
+     * @param usernames the users currently logged in
+     * @param removed   called with each user that is no longer there, and the position it had
+     * @param added     called with each new user, and its position
+     * @return true if anything changed
+     */
+    boolean replaceAll(String[] usernames, ObjIntConsumer<String> removed, ObjIntConsumer<String> added) {
+        Set<String> wanted = new HashSet<>();
+        Collections.addAll(wanted, usernames);
+        boolean changed = false;
+        for (int i = users.size() - 1; i >= 0; i--) {
+            String user = users.get(i);
+            if (!wanted.contains(user)) {
+                users.remove(i);
+                removed.accept(user, i);
+                changed = true;
+            }
+        }
+        for (String user : wanted) {
+            int index = add(user);
+            if (index >= 0) {
+                added.accept(user, index);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Remove all the users.
+     */
+    void clear() {
+        users.clear();
+    }
+}
@@ -0,0 +1,540 @@
+package no.ntnu.datakomm.chat.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+import no.ntnu.datakomm.chat.Logging;
+import no.ntnu.datakomm.chat.SocketProfile;
+
+/**
+ * A chat server speaking the same protocol as {@link no.ntnu.datakomm.chat.TCPClient}, to run the
+ * client and load tests locally.
+ * <p>
+ * Commands: {@code login <username>}, {@code msg <text>}, {@code privmsg <recipient> <text>},
+ * {@code users} and {@code help}. Responses: {@code loginok}, {@code loginerr <reason>},
+ * {@code msgok <recipient count>}, {@code msgerr <reason>}, {@code users <usernames>},
+ * {@code supported <commands>} and {@code cmderr <reason>}. Messages are delivered as
+ * {@code msg <sender> <text>} and {@code privmsg <sender> <text>}. The server also pushes
+ * {@code joined <username>} and {@code left <username>} to the logged-in users (presence).
+ * Clients may ask for binary frames instead of text lines, see {@link BinaryFraming}.
+ * <p>
+ * One event loop thread serves all the connections. A public message is encoded once per framing,
+ * into one buffer shared by all the recipients' outbound queues, and the queues are written with gathering
+ * writes after every round of events. A client that does not read fast enough never blocks the
+ * others: its queue is limited, see {@link OutboundLimits}.
+ */
+public class ChatServer {
+    private final static Logger logger = Logging.getLogger(ChatServer.class);
+
+    /**
+     * The port the server listens on when no other port is given.
+     */
+    public static final int DEFAULT_PORT = 1300;
+
+    private static final String SUPPORTED_COMMANDS = "supported login msg privmsg users help";
+    private static final String EVICTION_REASON = "cmderr disconnected: too far behind reading messages";
+
+    private final InetSocketAddress address;
+    private final OutboundLimits outboundLimits;
+    private volatile SocketProfile socketProfile = SocketProfile.configured();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread eventLoop;
+    private volatile boolean running = false;
+
+    // Logged-in sessions by username, in login order
+    private final Map<String, ChatSession> users = new LinkedHashMap<>();
+    // Sessions with queued data to write after this round of events
+    private final ArrayDeque<ChatSession> sessionsToFlush = new ArrayDeque<>();
+    // Sessions to disconnect after this round of events because their queue is full
+    private final List<ChatSession> sessionsToEvict = new ArrayList<>();
+    // All the open sessions, for the statistics
+    private final Set<ChatSession> sessions = ConcurrentHashMap.newKeySet();
+    // Written by the event loop thread only
+    private volatile long evictedCount = 0;
+    private volatile long droppedCount = 0;
+
+    /**
+     * Creates a server listening on all interfaces.
+     *
+     * @param port the TCP port to listen on, or 0 to use any free port
+     */
+    public ChatServer(int port) {
+        this(new InetSocketAddress(port), OutboundLimits.DEFAULT);
+    }
+
+    /**
+     * @param address        the address to listen on, port 0 to use any free port
+     * @param maxQueuedBytes the maximum number of bytes waiting to be written to one client. A
+     *                       client falling further behind is disconnected.
+     */
+    public ChatServer(InetSocketAddress address, int maxQueuedBytes) {
+        this(address, OutboundLimits.of(maxQueuedBytes));
+    }
+
+    /**
+     * @param address        the address to listen on, port 0 to use any free port
+     * @param outboundLimits how the server deals with clients not reading fast enough
+     */
+    public ChatServer(InetSocketAddress address, OutboundLimits outboundLimits) {
+        this.address = address;
+        this.outboundLimits = outboundLimits;
+    }
+
+    /**
+     * @param socketProfile the options of the sockets, used from the next start
+     */
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * Start listening and serving clients on a new thread. Returns when the server accepts
+     * connections.
+     *
+     * @throws IOException when the server can not listen on the address
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            throw new IllegalStateException("The server is already running");
+        }
+        selector = Selector.open();
+        serverChannel = socketProfile.bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        running = true;
+        eventLoop = new Thread(this::run, "chat-server");
+        eventLoop.start();
+        logger.log(Level.INFO, "Chat server listening on port " + getPort());
+    }
+
+    /**
+     * @return the port the server listens on, useful when started on port 0
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stop the server and close all the connections. Waits for the event loop to finish.
+     */
+    public void stop() {
+        Thread loop;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            selector.wakeup();
+            loop = eventLoop;
+        }
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return the outbound counters of every connected client, can be called from any thread
+     */
+    public List<SessionStats> getSessionStats() {
+        List<SessionStats> stats = new ArrayList<>();
+        for (ChatSession session : sessions) {
+            stats.add(session.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @return the number of clients disconnected because they were too far behind
+     */
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    /**
+     * @return the number of public messages not sent to clients which were too far behind
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private void run() {
+        try {
+            while (running) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        accept();
+                    } else {
+                        handle(key);
+                    }
+                }
+                flushSessions();
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.log(Level.WARNING, "Chat server stopped: " + e.getMessage());
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof ChatSession) {
+                    ((ChatSession) key.attachment()).close();
+                }
+            }
+            users.clear();
+            sessions.clear();
+            try {
+                selector.close();
+                serverChannel.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Could not close server socket: " + e.getMessage());
+            }
+            logger.log(Level.INFO, "Chat server stopped");
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            socketProfile.configure(channel);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            ChatSession session = new ChatSession(channel, key, outboundLimits);
+            key.attach(session);
+            sessions.add(session);
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        ChatSession session = (ChatSession) key.attachment();
+        try {
+            if (key.isValid() && key.isReadable() && !session.read(this)) {
+                // The client closed the connection
+                closeSession(session);
+                return;
+            }
+            if (key.isValid() && key.isWritable()) {
+                flush(session);
+            }
+        } catch (IOException e) {
+            logger.log(Level.FINE, () -> "Client connection failed: " + e.getMessage());
+            closeSession(session);
+        } catch (RuntimeException e) {
+            // A bug must not stop the event loop, and with it every other client
+            logger.log(Level.WARNING, "Failed to serve a client, disconnecting it", e);
+            closeSession(session);
+        }
+    }
+
+    /**
+     * Handle one command received from a client, as a line or as a frame.
+     *
+     * @param session  the session the command was received on
+     * @param command  the command word
+     * @param argument the rest of the command, may be empty
+     */
+    void handleCommand(ChatSession session, String command, String argument) {
+        switch (command) {
+            case BinaryFraming.NEGOTIATION_REQUEST:
+                if (session.isBinaryFraming()) {
+                    send(session, "cmderr binary framing already in use");
+                } else {
+                    // The answer is the last line in text, everything after it is framed
+                    send(session, BinaryFraming.NEGOTIATION_ACCEPTED);
+                    session.switchToBinaryFraming();
+                }
+                break;
+            case "login":
+                login(session, argument);
+                break;
+            case "msg":
+                publicMessage(session, argument);
+                break;
+            case "privmsg":
+                privateMessage(session, argument);
+                break;
+            case "users":
+                sendUserList(session);
+                break;
+            case "help":
+                send(session, SUPPORTED_COMMANDS);
+                break;
+            default:
+                send(session, "cmderr command not supported");
+                break;
+        }
+    }
+
+    /**
+     * Called when a client sent a line longer than {@link ChatSession#MAX_LINE_LENGTH}, which is
+     * ignored.
+     *
+     * @param session the session the line was received on
+     */
+    void handleLineTooLong(ChatSession session) {
+        send(session, "cmderr command too long");
+    }
+
+    /**
+     * Send the usernames of the logged-in users. A list too long for one binary frame is split
+     * over several frames, every one but the last ending with a space, see {@link BinaryFraming}.
+     */
+    private void sendUserList(ChatSession session) {
+        String line = "users " + String.join(" ", users.keySet());
+        if (!session.isBinaryFraming() || BinaryFraming.fitsInFrame(line)) {
+            send(session, line);
+            return;
+        }
+        StringBuilder part = new StringBuilder("users ");
+        int payloadLength = 0;
+        for (String username : users.keySet()) {
+            int length = username.getBytes(StandardCharsets.UTF_8).length + 1;
+            if (payloadLength + length > BinaryFraming.MAX_PAYLOAD_LENGTH && payloadLength > 0) {
+                send(session, part.toString());
+                part.setLength("users ".length());
+                payloadLength = 0;
+            }
+            part.append(username).append(' ');
+            payloadLength += length;
+        }
+        // The last part without the space
+        send(session, part.substring(0, part.length() - 1));
+    }
+
+    private void login(ChatSession session, String username) {
+        if (!isValidUsername(username)) {
+            send(session, "loginerr incorrect username format");
+        } else if (users.containsKey(username) && users.get(username) != session) {
+            send(session, "loginerr username already in use");
+        } else if (!username.equals(session.getUsername())) {
+            String oldName = session.getUsername();
+            if (oldName != null) {
+                users.remove(oldName);
+                broadcastPresence(oldName, new OutboundMessage("left " + oldName));
+            }
+            session.setUsername(username);
+            users.put(username, session);
+            send(session, "loginok");
+            broadcastPresence(username, new OutboundMessage("joined " + username));
+        } else {
+            send(session, "loginok");
+        }
+    }
+
+    private void publicMessage(ChatSession session, String text) {
+        if (!session.isLoggedIn()) {
+            send(session, "msgerr unauthorized");
+            return;
+        }
+        String line = "msg " + session.getUsername() + " " + text;
+        if (!fitsInFrame(session, line)) {
+            return;
+        }
+        OutboundMessage message = new OutboundMessage(line);
+        int recipients = 0;
+        for (ChatSession recipient : users.values()) {
+            if (recipient != session && !recipient.isClosed()) {
+                ChatSession.Result result = recipient.enqueuePublic(message);
+                if (result == ChatSession.Result.DROPPED) {
+                    droppedCount++;
+                } else if (accepted(recipient, result)) {
+                    recipients++;
+                }
+            }
+        }
+        send(session, "msgok " + recipients);
+    }
+
+    private void privateMessage(ChatSession session, String argument) {
+        if (!session.isLoggedIn()) {
+            send(session, "msgerr unauthorized");
+            return;
+        }
+        int textStart = argument.indexOf(' ');
+        if (textStart <= 0) {
+            send(session, "cmderr privmsg needs a recipient and a message");
+            return;
+        }
+        String recipientName = argument.substring(0, textStart);
+        ChatSession recipient = users.get(recipientName);
+        if (recipient == null) {
+            send(session, "msgerr incorrect recipient " + recipientName);
+            return;
+        }
+        String line = "privmsg " + session.getUsername() + " " + argument.substring(textStart + 1);
+        if (!fitsInFrame(session, line)) {
+            return;
+        }
+        send(recipient, new OutboundMessage(line));
+        send(session, "msgok 1");
+    }
+
+    /**
+     * Check that a message to deliver fits in one frame, with the sender's name added, so that it
+     * can be sent to every client whatever its framing. Otherwise the sender gets an error.
+     *
+     * @param session the sender
+     * @param line    the message to deliver
+     * @return true if the message can be delivered
+     */
+    private boolean fitsInFrame(ChatSession session, String line) {
+        if (BinaryFraming.fitsInFrame(line)) {
+            return true;
+        }
+        send(session, "msgerr message too long");
+        return false;
+    }
+
+    /**
+     * Send a presence notification to all the logged-in users. The message buffer is shared by all
+     * the recipients, it is not copied.
+     *
+     * @param username the user who joined or left
+     * @param message  the notification
+     */
+    private void broadcastPresence(String username, OutboundMessage message) {
+        for (ChatSession recipient : users.values()) {
+            if (!recipient.isClosed()) {
+                accepted(recipient, recipient.enqueuePresence(username, message));
+            }
+        }
+    }
+
+    private void send(ChatSession session, String line) {
+        send(session, new OutboundMessage(line));
+    }
+
+    /**
+     * Queue a response or private message for a session, to be written after this round of
+     * events.
+     */
+    private void send(ChatSession session, OutboundMessage message) {
+        if (!session.isClosed()) {
+            accepted(session, session.enqueue(message));
+        }
+    }
+
+    /**
+     * Schedule the session to be flushed after a message was queued, or to be disconnected if its
+     * queue is full.
+     *
+     * @return true if the message was queued
+     */
+    private boolean accepted(ChatSession session, ChatSession.Result result) {
+        if (result == ChatSession.Result.FULL) {
+            sessionsToEvict.add(session);
+            return false;
+        }
+        if (session.markFlushScheduled()) {
+            sessionsToFlush.add(session);
+        }
+        return true;
+    }
+
+    private void flushSessions() {
+        ChatSession session;
+        while ((session = sessionsToFlush.poll()) != null) {
+            try {
+                flush(session);
+            } catch (IOException e) {
+                logger.log(Level.FINE, () -> "Client connection failed: " + e.getMessage());
+                closeSession(session);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to write to a client, disconnecting it", e);
+                closeSession(session);
+            }
+        }
+        // Disconnecting sessions may have queued "left" messages for the others
+        evictSessions();
+        if (!sessionsToFlush.isEmpty()) {
+            flushSessions();
+        }
+    }
+
+    /**
+     * Write the queued data of a session. Whatever the socket does not accept now is written when
+     * the selector reports the socket as writable.
+     */
+    private void flush(ChatSession session) throws IOException {
+        if (session.isClosed()) {
+            return;
+        }
+        SelectionKey key = session.getKey();
+        if (session.flush()) {
+            key.interestOps(SelectionKey.OP_READ);
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void evictSessions() {
+        while (!sessionsToEvict.isEmpty()) {
+            ChatSession session = sessionsToEvict.remove(sessionsToEvict.size() - 1);
+            if (!session.isClosed()) {
+                logger.log(Level.INFO, "Disconnecting slow client " + session.getStats());
+                evictedCount++;
+                session.evict(new OutboundMessage(EVICTION_REASON));
+                closeSession(session);
+            }
+        }
+    }
+
+    private void closeSession(ChatSession session) {
+        if (!sessions.remove(session)) {
+            return;
+        }
+        session.close();
+        String username = session.getUsername();
+        if (username != null && users.get(username) == session) {
+            users.remove(username);
+            broadcastPresence(username, new OutboundMessage("left " + username));
+        }
+    }
+
+    /**
+     * @return true when the username consists of letters and digits only
+     */
+    private static boolean isValidUsername(String username) {
+        if (username.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < username.length(); i++) {
+            if (!Character.isLetterOrDigit(username.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run a chat server until the process is stopped.
+     *
+     * @param args Command-line arguments, optional: the port to listen on
+     * @throws IOException when the server can not listen on the port
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        ChatServer server = new ChatServer(new InetSocketAddress(port), OutboundLimits.DEFAULT);
+        server.start();
+    }
+}
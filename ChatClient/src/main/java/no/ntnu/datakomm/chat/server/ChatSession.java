@@ -0,0 +1,386 @@
+package no.ntnu.datakomm.chat.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+import no.ntnu.datakomm.chat.ByteBufferPool;
+
+/**
+ * The state of one client connection of the {@link ChatServer}: the bytes received so far, the
+ * user logged in on it and the responses and messages waiting to be written to the socket. The
+ * connection uses text lines until the client asks for binary frames, see {@link BinaryFraming}.
+ * <p>
+ * The outbound queue holds views ({@link ByteBuffer#duplicate()}) of messages which are encoded
+ * once and shared by all their recipients. It is bounded by {@link OutboundLimits}: a session that
+ * does not read its messages fast enough gets its presence notifications coalesced, then its
+ * public messages dropped, and finally it can not queue anything more and must be disconnected.
+ * <p>
+ * A session is only used by the server's event loop thread. The counters may be read by other
+ * threads, see {@link #getStats()}.
+ */
+class ChatSession {
+    // The longest command line accepted, in bytes
+    static final int MAX_LINE_LENGTH = BinaryFraming.MAX_FRAME_LENGTH;
+    // Number of buffers written with one gathering write
+    private static final int MAX_GATHER = 64;
+
+    /**
+     * The result of queueing a message.
+     */
+    enum Result {
+        QUEUED,
+        // Replaced an earlier presence notification for the same user
+        COALESCED,
+        // A public message not queued because the client is too far behind
+        DROPPED,
+        // Not queued because the queue is full: the session must be disconnected
+        FULL
+    }
+
+    /**
+     * How far behind the client is, see {@link OutboundLimits}.
+     */
+    private enum Congestion {
+        NONE,
+        COALESCING,
+        DROPPING
+    }
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBufferPool.FRAME_BUFFERS.acquire();
+    private final BinaryFraming.Frame frame = new BinaryFraming.Frame(readBuffer);
+    private boolean binaryFraming = false;
+    // True while the rest of an over-long line is being skipped
+    private boolean discardingLine = false;
+
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final OutboundLimits limits;
+    // Latest presence notification per user, held back while the session is congested
+    private final Map<String, ByteBuffer> heldPresence = new LinkedHashMap<>();
+    private volatile Congestion congestion = Congestion.NONE;
+    // Written by the event loop thread only
+    private volatile int queuedBytes = 0;
+    private volatile int peakQueuedBytes = 0;
+    private volatile long droppedMessages = 0;
+    private volatile long coalescedMessages = 0;
+    // True while the session is in the server's list of sessions to flush
+    private boolean flushScheduled = false;
+    private boolean closed = false;
+
+    private volatile String username = null;
+
+    /**
+     * @param channel the client's channel, in non-blocking mode
+     * @param key     the key of the channel in the server's selector
+     * @param limits  how much may be waiting to be written to the client
+     */
+    ChatSession(SocketChannel channel, SelectionKey key, OutboundLimits limits) {
+        this.channel = channel;
+        this.key = key;
+        this.limits = limits;
+    }
+
+    /**
+     * @return the user logged in on this session, or null if not logged in
+     */
+    String getUsername() {
+        return username;
+    }
+
+    void setUsername(String username) {
+        this.username = username;
+    }
+
+    /**
+     * @return true when a user is logged in on this session
+     */
+    boolean isLoggedIn() {
+        return username != null;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    /**
+     * @return true when the connection uses binary frames instead of text lines
+     */
+    boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
+    /**
+     * Continue with binary frames, from the first byte after the command line being handled.
+     */
+    void switchToBinaryFraming() {
+        binaryFraming = true;
+    }
+
+    /**
+     * @return the number of bytes waiting to be written to the client
+     */
+    int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return a snapshot of the outbound counters, can be called from any thread
+     */
+    SessionStats getStats() {
+        return new SessionStats(username, queuedBytes, peakQueuedBytes, droppedMessages, coalescedMessages,
+                congestion != Congestion.NONE);
+    }
+
+    /**
+     * Read from the socket and pass every complete command (line or frame) to the server.
+     *
+     * @param server the server handling the commands
+     * @return false when the client has closed the connection
+     * @throws IOException when reading fails, or the client sends an invalid frame
+     */
+    boolean read(ChatServer server) throws IOException {
+        int bytesRead = channel.read(readBuffer);
+        if (bytesRead < 0) {
+            return false;
+        }
+        readBuffer.flip();
+        if (!binaryFraming) {
+            readLines(server);
+        }
+        // Also when the client switched to binary frames in the middle of the buffer
+        if (binaryFraming) {
+            readFrames(server);
+        }
+        readBuffer.compact();
+        if (!binaryFraming && !readBuffer.hasRemaining()) {
+            // A full buffer without a newline: the line is too long, skip the rest of it
+            readBuffer.clear();
+            if (!discardingLine) {
+                discardingLine = true;
+                server.handleLineTooLong(this);
+            }
+        }
+        return true;
+    }
+
+    private void readLines(ChatServer server) {
+        int lineStart = readBuffer.position();
+        for (int i = lineStart; i < readBuffer.limit() && !closed && !binaryFraming; i++) {
+            if (readBuffer.get(i) == '\n') {
+                if (discardingLine) {
+                    discardingLine = false;
+                } else {
+                    int lineEnd = i > lineStart && readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+                    String line = new String(readBuffer.array(), readBuffer.arrayOffset() + lineStart,
+                            lineEnd - lineStart, StandardCharsets.UTF_8);
+                    int space = line.indexOf(' ');
+                    server.handleCommand(this, space < 0 ? line : line.substring(0, space),
+                            space < 0 ? "" : line.substring(space + 1));
+                }
+                lineStart = i + 1;
+            }
+        }
+        readBuffer.position(lineStart);
+    }
+
+    private void readFrames(ChatServer server) throws IOException {
+        while (!closed && BinaryFraming.decode(readBuffer, frame)) {
+            BinaryFraming.Opcode opcode = frame.getOpcode();
+            // An unknown opcode is handled like an unknown command word
+            server.handleCommand(this, opcode != null ? opcode.getWord() : "#" + frame.getCode(),
+                    frame.getArgument());
+        }
+    }
+
+    /**
+     * Queue a response or a private message to be written to the client. The encoded message is
+     * not copied, so the same buffer can be queued for many sessions.
+     *
+     * @param message the message
+     * @return {@link Result#QUEUED}, or {@link Result#FULL} if the message does not fit
+     */
+    Result enqueue(OutboundMessage message) {
+        return enqueue(message.encoded(binaryFraming));
+    }
+
+    private Result enqueue(ByteBuffer message) {
+        int length = message.remaining();
+        if (queuedBytes + length > limits.getMaxQueuedBytes()) {
+            return Result.FULL;
+        }
+        outbound.add(message.duplicate());
+        int queued = queuedBytes + length;
+        queuedBytes = queued;
+        if (queued > peakQueuedBytes) {
+            peakQueuedBytes = queued;
+        }
+        if (queued >= limits.getDropLevel()) {
+            congestion = Congestion.DROPPING;
+        } else if (queued >= limits.getHighWatermark() && congestion == Congestion.NONE) {
+            congestion = Congestion.COALESCING;
+        }
+        return Result.QUEUED;
+    }
+
+    /**
+     * Queue a public message, unless the client is so far behind that public messages are
+     * dropped.
+     *
+     * @param message the message
+     * @return {@link Result#QUEUED}, {@link Result#DROPPED} or {@link Result#FULL}
+     */
+    Result enqueuePublic(OutboundMessage message) {
+        if (congestion == Congestion.DROPPING) {
+            droppedMessages++;
+            return Result.DROPPED;
+        }
+        return enqueue(message);
+    }
+
+    /**
+     * Queue a presence notification. While the client is congested the notification is held back
+     * instead, replacing any earlier one held back for the same user, and queued when the client
+     * has caught up.
+     *
+     * @param username the user who joined or left
+     * @param message  the notification
+     * @return {@link Result#QUEUED}, {@link Result#COALESCED} or {@link Result#FULL}
+     */
+    Result enqueuePresence(String username, OutboundMessage message) {
+        if (congestion == Congestion.NONE) {
+            return enqueue(message);
+        }
+        // Remove first, so the user moves to the end: the notifications stay in order
+        if (heldPresence.remove(username) != null) {
+            coalescedMessages++;
+            heldPresence.put(username, message.encoded(binaryFraming));
+            return Result.COALESCED;
+        }
+        heldPresence.put(username, message.encoded(binaryFraming));
+        return Result.QUEUED;
+    }
+
+    /**
+     * @return true the first time it is called after the session was flushed, so the session is
+     * added to the list of sessions to flush only once
+     */
+    boolean markFlushScheduled() {
+        boolean wasScheduled = flushScheduled;
+        flushScheduled = true;
+        return !wasScheduled;
+    }
+
+    /**
+     * Write as much of the queued data as the socket accepts, many messages in one gathering
+     * write.
+     *
+     * @return true when everything is written, false when the socket's send buffer is full
+     * @throws IOException when writing fails
+     */
+    boolean flush() throws IOException {
+        flushScheduled = false;
+        while (!outbound.isEmpty()) {
+            int count = 0;
+            long total = 0;
+            for (ByteBuffer buffer : outbound) {
+                if (count == MAX_GATHER) {
+                    break;
+                }
+                gather[count++] = buffer;
+                total += buffer.remaining();
+            }
+            long written = channel.write(gather, 0, count);
+            queuedBytes -= written;
+            while (!outbound.isEmpty() && !outbound.peek().hasRemaining()) {
+                outbound.poll();
+            }
+            for (int i = 0; i < count; i++) {
+                gather[i] = null;
+            }
+            if (congestion != Congestion.NONE && queuedBytes <= limits.getLowWatermark()) {
+                releaseCongestion();
+            }
+            if (written < total) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The client has caught up: back to normal, queue the held back presence notifications.
+     */
+    private void releaseCongestion() {
+        congestion = Congestion.NONE;
+        int queued = queuedBytes;
+        for (ByteBuffer message : heldPresence.values()) {
+            // At most one small notification per user: allowed to go above the limits
+            outbound.add(message.duplicate());
+            queued += message.remaining();
+        }
+        heldPresence.clear();
+        queuedBytes = queued;
+    }
+
+    /**
+     * Disconnect the client because it is too far behind. Everything queued is dropped, except
+     * the rest of a message which is partly written already; the reason line is written if the
+     * socket accepts it right away.
+     *
+     * @param reasonMessage the reason line
+     */
+    void evict(OutboundMessage reasonMessage) {
+        ByteBuffer reason = reasonMessage.encoded(binaryFraming);
+        ByteBuffer partlyWritten = outbound.peek();
+        outbound.clear();
+        heldPresence.clear();
+        int queued = 0;
+        if (partlyWritten != null && partlyWritten.position() > 0) {
+            outbound.add(partlyWritten);
+            queued = partlyWritten.remaining();
+        }
+        outbound.add(reason.duplicate());
+        queuedBytes = queued + reason.remaining();
+        try {
+            flush();
+        } catch (IOException e) {
+            // Closed below anyway
+        }
+        close();
+    }
+
+    /**
+     * @return true when the session has been closed
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the connection and drop everything queued for it.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        ByteBufferPool.FRAME_BUFFERS.release(readBuffer);
+        outbound.clear();
+        queuedBytes = 0;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing more to do with this connection
+        }
+    }
+}
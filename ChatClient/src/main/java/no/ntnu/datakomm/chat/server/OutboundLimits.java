@@ -0,0 +1,75 @@
+package no.ntnu.datakomm.chat.server;
+
+/**
+ * How much data the {@link ChatServer} queues for a client that does not read fast enough, and
+ * what it does about it. With the number of bytes waiting to be written to the client:
+ * <ul>
+ *     <li>above the high watermark, presence notifications are coalesced: only the latest
+ *     {@code joined}/{@code left} of every user is kept, and sent when the client catches up;</li>
+ *     <li>above the drop level, halfway between the high watermark and the maximum, public
+ *     messages to the client are dropped. Private messages and responses are still queued;</li>
+ *     <li>a client that would go above the maximum is disconnected, with a reason line.</li>
+ * </ul>
+ * The client is back to normal once the queue has been written down to the low watermark.
+ */
+public final class OutboundLimits {
+
+    /**
+     * Low watermark 256 KB, high watermark 512 KB, maximum 1 MB.
+     */
+    public static final OutboundLimits DEFAULT = new OutboundLimits(256 * 1024, 512 * 1024, 1024 * 1024);
+
+    private final int lowWatermark;
+    private final int highWatermark;
+    private final int maxQueuedBytes;
+
+    /**
+     * @param lowWatermark   the queue size where a congested client is back to normal
+     * @param highWatermark  the queue size where a client is congested
+     * @param maxQueuedBytes the largest queue size, a client going further behind is disconnected
+     */
+    public OutboundLimits(int lowWatermark, int highWatermark, int maxQueuedBytes) {
+        if (lowWatermark < 0 || lowWatermark > highWatermark || highWatermark > maxQueuedBytes
+                || maxQueuedBytes < ChatSession.MAX_LINE_LENGTH * 2) {
+            throw new IllegalArgumentException("Invalid outbound limits: low " + lowWatermark + ", high "
+                    + highWatermark + ", max " + maxQueuedBytes);
+        }
+        this.lowWatermark = lowWatermark;
+        this.highWatermark = highWatermark;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    /**
+     * Limits with the watermarks at a quarter and half of the maximum.
+     *
+     * @param maxQueuedBytes the largest queue size
+     * @return the limits
+     */
+    public static OutboundLimits of(int maxQueuedBytes) {
+        return new OutboundLimits(maxQueuedBytes / 4, maxQueuedBytes / 2, maxQueuedBytes);
+    }
+
+    public int getLowWatermark() {
+        return lowWatermark;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    /**
+     * @return the queue size above which public messages are dropped
+     */
+    public int getDropLevel() {
+        return highWatermark + (maxQueuedBytes - highWatermark) / 2;
+    }
+
+    public int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "low " + lowWatermark + ", high " + highWatermark + ", max " + maxQueuedBytes + " bytes";
+    }
+}
@@ -0,0 +1,50 @@
+package no.ntnu.datakomm.chat.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+
+/**
+ * A message from the server, encoded at most once for each framing: as a text line and as a
+ * binary frame. The encoded buffers are read-only and shared by all the sessions the message is
+ * sent to.
+ */
+final class OutboundMessage {
+    private final String line;
+    private ByteBuffer text;
+    private ByteBuffer binary;
+
+    /**
+     * @param line the message as a line of the text protocol, without the newline. The argument
+     *             may contain newlines, which are only kept in binary frames.
+     */
+    OutboundMessage(String line) {
+        this.line = line;
+    }
+
+    /**
+     * @param binaryFraming true for a binary frame, false for a text line
+     * @return the encoded message, to be duplicated by every recipient
+     */
+    ByteBuffer encoded(boolean binaryFraming) {
+        if (binaryFraming) {
+            if (binary == null) {
+                binary = BinaryFraming.encode(line).asReadOnlyBuffer();
+            }
+            return binary;
+        }
+        if (text == null) {
+            // A newline would end the line early: a text line can not contain it
+            String singleLine = line.indexOf('\n') < 0 ? line : line.replace("\r\n", " ").replace('\n', ' ');
+            byte[] bytes = (singleLine + "\n").getBytes(StandardCharsets.UTF_8);
+            text = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+        }
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return line;
+    }
+}
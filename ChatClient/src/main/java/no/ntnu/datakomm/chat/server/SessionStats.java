@@ -0,0 +1,72 @@
+package no.ntnu.datakomm.chat.server;
+
+/**
+ * A snapshot of the outbound counters of one client connection of the {@link ChatServer}.
+ */
+public final class SessionStats {
+    private final String username;
+    private final int queuedBytes;
+    private final int peakQueuedBytes;
+    private final long droppedMessages;
+    private final long coalescedMessages;
+    private final boolean congested;
+
+    SessionStats(String username, int queuedBytes, int peakQueuedBytes, long droppedMessages,
+                 long coalescedMessages, boolean congested) {
+        this.username = username;
+        this.queuedBytes = queuedBytes;
+        this.peakQueuedBytes = peakQueuedBytes;
+        this.droppedMessages = droppedMessages;
+        this.coalescedMessages = coalescedMessages;
+        this.congested = congested;
+    }
+
+    /**
+     * @return the user logged in on the connection, or null if not logged in
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return the number of bytes waiting to be written to the client
+     */
+    public int getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * @return the largest number of bytes that have been waiting at the same time
+     */
+    public int getPeakQueuedBytes() {
+        return peakQueuedBytes;
+    }
+
+    /**
+     * @return the number of public messages not sent to the client because it was too far behind
+     */
+    public long getDroppedMessages() {
+        return droppedMessages;
+    }
+
+    /**
+     * @return the number of presence notifications replaced by a later one for the same user
+     */
+    public long getCoalescedMessages() {
+        return coalescedMessages;
+    }
+
+    /**
+     * @return true while the client is above the high watermark and not yet back to the low one
+     */
+    public boolean isCongested() {
+        return congested;
+    }
+
+    @Override
+    public String toString() {
+        return (username != null ? username : "(not logged in)") + ": " + queuedBytes + " bytes queued (peak "
+                + peakQueuedBytes + "), " + droppedMessages + " dropped, " + coalescedMessages + " coalesced"
+                + (congested ? ", congested" : "");
+    }
+}
@@ -0,0 +1,228 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BinaryFramingTest {
+    @Rule
+    public LocalChatServer server = new LocalChatServer();
+
+    // How many ms to wait at most for a server response to arrive
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * Test that commands are decoded as they were encoded, also with newlines and non-ASCII text
+     */
+    @Test
+    public void testRoundTrip() throws ProtocolException {
+        String[] lines = {"loginok", "login alice", "msg alice hello\nworld", "privmsg bob blåbærsyltetøy", "msgok 0"};
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        for (String line : lines) {
+            buffer.put(BinaryFraming.encode(line));
+        }
+        buffer.flip();
+        BinaryFraming.Frame frame = new BinaryFraming.Frame(buffer);
+        for (String line : lines) {
+            assertTrue(BinaryFraming.decode(buffer, frame));
+            assertEquals(line, toLine(frame));
+        }
+        assertFalse(buffer.hasRemaining());
+        assertFalse(BinaryFraming.decode(buffer, frame));
+    }
+
+    /**
+     * Test the frames of the longest allowed length and one byte on either side of it
+     */
+    @Test
+    public void testMaxFrameLength() throws ProtocolException {
+        // A two byte length and the opcode come before the payload
+        int longestPayload = BinaryFraming.MAX_FRAME_LENGTH - 3;
+        for (int payloadLength = longestPayload - 1; payloadLength <= longestPayload; payloadLength++) {
+            String argument = "x".repeat(payloadLength);
+            assertTrue(BinaryFraming.fitsInFrame("msg " + argument));
+            ByteBuffer encoded = BinaryFraming.encode(BinaryFraming.Opcode.MSG, argument);
+            assertEquals(payloadLength + 3, encoded.remaining());
+
+            ByteBuffer buffer = ByteBuffer.allocate(BinaryFraming.MAX_FRAME_LENGTH);
+            buffer.put(encoded).flip();
+            BinaryFraming.Frame frame = new BinaryFraming.Frame(buffer);
+            assertTrue(BinaryFraming.decode(buffer, frame));
+            assertEquals(argument, frame.getArgument());
+        }
+
+        String tooLong = "x".repeat(longestPayload + 1);
+        assertFalse(BinaryFraming.fitsInFrame("msg " + tooLong));
+        try {
+            BinaryFraming.encode(BinaryFraming.Opcode.MSG, tooLong);
+            fail("A frame longer than the maximum was encoded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+        // The length of a frame one byte too long, before the frame has arrived
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0xFF, 0x3F, 4});
+        try {
+            BinaryFraming.decode(buffer, new BinaryFraming.Frame(buffer));
+            fail("A frame longer than the maximum was decoded");
+        } catch (ProtocolException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test a frame arriving in two parts, cut at every possible place, also inside its length
+     */
+    @Test
+    public void testTruncatedFrame() throws ProtocolException {
+        ByteBuffer encoded = BinaryFraming.encode("msg alice " + "x".repeat(200));
+        // The length takes two bytes
+        assertTrue(encoded.get(0) < 0);
+        for (int cut = 0; cut < encoded.remaining(); cut++) {
+            ByteBuffer buffer = ByteBuffer.allocate(encoded.remaining());
+            buffer.put(encoded.duplicate().limit(cut)).flip();
+            BinaryFraming.Frame frame = new BinaryFraming.Frame(buffer);
+            assertFalse(BinaryFraming.decode(buffer, frame));
+            assertEquals(0, buffer.position());
+
+            buffer.limit(buffer.capacity()).position(cut);
+            buffer.put(encoded.duplicate().position(cut)).flip();
+            assertTrue(BinaryFraming.decode(buffer, frame));
+            assertEquals("msg alice " + "x".repeat(200), toLine(frame));
+        }
+    }
+
+    /**
+     * Test that invalid frame lengths are refused: a length that goes on after its fourth byte,
+     * and a length of zero, which has no room for the opcode
+     */
+    @Test
+    public void testInvalidLength() {
+        byte[][] invalid = {
+                {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80},
+                {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01, 4},
+                {0},
+                {0, 4}
+        };
+        for (byte[] bytes : invalid) {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                BinaryFraming.decode(buffer, new BinaryFraming.Frame(buffer));
+                fail("An invalid frame length was accepted");
+            } catch (ProtocolException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Test that an unknown opcode is decoded, without a command word
+     */
+    @Test
+    public void testUnknownOpcode() throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{3, (byte) 200, 'h', 'i'});
+        BinaryFraming.Frame frame = new BinaryFraming.Frame(buffer);
+        assertTrue(BinaryFraming.decode(buffer, frame));
+        assertNull(frame.getOpcode());
+        assertEquals(200, frame.getCode());
+        assertEquals("hi", frame.getArgument());
+        try {
+            BinaryFraming.encode("shout hi");
+            fail("A command without an opcode was encoded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that the client uses binary framing with a server supporting it
+     */
+    @Test
+    public void testNegotiationAccepted() throws Exception {
+        TCPClient client = server.newClient();
+        assertTrue(client.connect(server.getHost(), server.getPort(), true));
+        assertTrue(client.isBinaryFraming());
+        client.startListenThread();
+        // Answered in binary frames
+        server.sync(client);
+    }
+
+    /**
+     * Test that the client refuses a message too long for a frame when it is sent, with the reason
+     * in the last error, and goes on sending the others
+     */
+    @Test
+    public void testMessageTooLongForFrame() throws Exception {
+        TCPClient client = server.newClient();
+        assertTrue(client.connect(server.getHost(), server.getPort(), true));
+        client.startListenThread();
+        assertTrue(client.login("alice").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+        String tooLong = "x".repeat(BinaryFraming.MAX_FRAME_LENGTH);
+        assertFalse(client.sendPublicMessage(tooLong));
+        assertEquals("Command too long for a frame", client.getLastError());
+        assertFalse(client.sendPrivateMessage("alice", tooLong));
+        try {
+            client.sendPublicMessageAsync(tooLong).get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("A message too long for a frame was sent");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        assertTrue(client.isConnectionActive());
+        client.sendPublicMessageAsync("short enough").get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Test that the client falls back to text lines with a server answering the binary framing
+     * request with an error
+     */
+    @Test
+    public void testNegotiationRefused() throws Exception {
+        try (ServerSocket textServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = textServer.accept()) {
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                            StandardCharsets.UTF_8));
+                    OutputStream out = socket.getOutputStream();
+                    assertEquals(BinaryFraming.NEGOTIATION_REQUEST, in.readLine());
+                    out.write("cmderr command not supported\n".getBytes(StandardCharsets.US_ASCII));
+                    // The next command comes as a line
+                    assertEquals("login alice", in.readLine());
+                    out.write("loginok\n".getBytes(StandardCharsets.US_ASCII));
+                    in.readLine();
+                } catch (IOException e) {
+                    // The test fails on the client side
+                }
+            }, "text-server");
+            serverThread.start();
+
+            TCPClient client = server.newClient();
+            assertTrue(client.connect(textServer.getInetAddress().getHostAddress(), textServer.getLocalPort(), true));
+            assertFalse(client.isBinaryFraming());
+            client.startListenThread();
+            assertTrue(client.login("alice").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+            client.disconnect();
+            serverThread.join(TIMEOUT);
+        }
+    }
+
+    private static String toLine(BinaryFraming.Frame frame) {
+        String argument = frame.getArgument();
+        String word = frame.getOpcode().getWord();
+        return argument.isEmpty() ? word : word + " " + argument;
+    }
+}
@@ -0,0 +1,44 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ByteBufferPoolTest {
+
+    /**
+     * Test that released buffers are reused, up to the maximum kept, and that buffers of another
+     * size are not kept nor counted
+     */
+    @Test
+    public void testRelease() {
+        ByteBufferPool pool = new ByteBufferPool(16, 2);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        ByteBuffer third = pool.acquire();
+        first.put((byte) 1);
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+        assertEquals(2, pool.getPooledCount());
+
+        pool.release(ByteBuffer.allocate(8));
+        pool.release(ByteBuffer.allocate(32));
+        assertEquals(2, pool.getPooledCount());
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+        assertEquals(16, reused.remaining());
+        assertSame(second, pool.acquire());
+        assertEquals(0, pool.getPooledCount());
+        assertNotSame(third, pool.acquire());
+
+        // Wrong sizes released into an empty pool do not make the count negative
+        pool.release(ByteBuffer.allocate(8));
+        assertEquals(0, pool.getPooledCount());
+        assertEquals(16, pool.acquire().capacity());
+    }
+}
@@ -0,0 +1,246 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sessions of a {@link ChatGateway} against a local server, several of them on each selector
+ * thread.
+ */
+public class ChatGatewayTest {
+    @Rule
+    public LocalChatServer server = new LocalChatServer();
+
+    // How many ms to wait at most for a response
+    private static final long TIMEOUT = 5000;
+
+    private ChatGateway gateway;
+
+    @Before
+    public void startGateway() throws IOException {
+        gateway = new ChatGateway(2);
+        gateway.start();
+    }
+
+    @After
+    public void stopGateway() {
+        gateway.stop();
+    }
+
+    /**
+     * Test that many sessions on two threads log in and exchange public and private messages
+     */
+    @Test
+    public void testManySessions() throws Exception {
+        int count = 20;
+        List<GatewaySession> sessions = new ArrayList<>();
+        List<DummyMsgReceiver> receivers = new ArrayList<>();
+        List<CompletableFuture<LoginResult>> logins = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            GatewaySession session = connect();
+            DummyMsgReceiver receiver = new DummyMsgReceiver();
+            session.addListener(receiver);
+            sessions.add(session);
+            receivers.add(receiver);
+            logins.add(session.login("bot" + i));
+        }
+        for (CompletableFuture<LoginResult> login : logins) {
+            assertTrue(login.get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        }
+        assertEquals(count, gateway.getSessionCount());
+        assertTrue(sessions.get(0).isConnectionActive());
+
+        assertTrue(sessions.get(0).sendPublicMessage("hello everyone"));
+        for (int i = 0; i < count; i++) {
+            assertTrue(sessions.get(i).sendPrivateMessage("bot" + (i + 1) % count, "hello from " + i));
+        }
+        for (int i = 1; i < count; i++) {
+            DummyMsgReceiver receiver = receivers.get(i);
+            assertTrue(receiver.awaitMessage(new TextMessage("bot0", false, "hello everyone")));
+            int from = i - 1;
+            assertTrue(receiver.awaitMessage(new TextMessage("bot" + from, true, "hello from " + from)));
+        }
+        assertTrue(receivers.get(0).awaitMessage(new TextMessage("bot" + (count - 1), true,
+                "hello from " + (count - 1))));
+        assertEquals(1, receivers.get(0).getCount());
+        assertEquals(count, sessions.get(5).users().get(TIMEOUT, TimeUnit.MILLISECONDS).size());
+    }
+
+    /**
+     * Test that a listener throwing an exception does not stop the other sessions served by the
+     * same thread, nor its own session
+     */
+    @Test
+    public void testThrowingListener() throws Exception {
+        restartWithOneThread();
+        GatewaySession failing = connect();
+        failing.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                throw new IllegalStateException("Listener failed on purpose");
+            }
+        });
+        GatewaySession other = connect();
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        other.addListener(received);
+        assertTrue(failing.login("failing").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        assertTrue(other.login("other").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+        TCPClient sender = server.newClient();
+        assertTrue(sender.connect(server.getHost(), server.getPort()));
+        sender.startListenThread();
+        assertTrue(sender.login("sender").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        for (int i = 0; i < 3; i++) {
+            sender.sendPublicMessageAsync("message " + i).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < 3; i++) {
+            assertTrue(received.awaitMessage(new TextMessage("sender", false, "message " + i)));
+        }
+
+        // The failing session still works
+        assertTrue(failing.isConnectionActive());
+        assertTrue(failing.sendPrivateMessage("other", "still here"));
+        assertTrue(received.awaitMessage(new TextMessage("failing", true, "still here")));
+    }
+
+    /**
+     * Test that the commands queued before a disconnect are written, in order, before the
+     * connection is closed
+     */
+    @Test
+    public void testDisconnectWritesQueuedCommands() throws Exception {
+        TCPClient receiver = server.newClient();
+        assertTrue(receiver.connect(server.getHost(), server.getPort()));
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        receiver.addListener(received);
+        receiver.startListenThread();
+        assertTrue(receiver.login("receiver").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+
+        GatewaySession session = connect();
+        assertTrue(session.login("bot").get(TIMEOUT, TimeUnit.MILLISECONDS).isSuccess());
+        int count = 500;
+        for (int i = 0; i < count; i++) {
+            assertTrue(session.sendPrivateMessage("receiver", "message " + i));
+        }
+        session.disconnect();
+        assertFalse(session.isConnectionActive());
+        assertFalse(session.sendPublicMessage("too late"));
+        assertEquals("Connection closed", session.getLastError());
+
+        assertTrue("Received " + received.getCount(), received.await(() -> received.getCount() == count));
+        List<TextMessage> messages = received.getMessages();
+        for (int i = 0; i < count; i++) {
+            assertEquals(new TextMessage("bot", true, "message " + i), messages.get(i));
+        }
+        assertTrue(awaitSessionCount(0));
+    }
+
+    /**
+     * Test that a session whose connection is refused notifies its listeners, and fails the login
+     * sent while it was connecting
+     */
+    @Test
+    public void testConnectionRefused() throws Exception {
+        restartWithOneThread();
+        // Hold the only thread in a listener, so that the refused session gets its listener and
+        // its login before the thread sees the refusal
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        GatewaySession blocker = connect();
+        blocker.addListener(new EmptyChatListener() {
+            @Override
+            public void onUserList(String[] usernames) {
+                blocked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        blocker.users();
+        assertTrue(blocked.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        int closedPort;
+        try (ServerSocket free = new ServerSocket(0)) {
+            closedPort = free.getLocalPort();
+        }
+        GatewaySession refused = gateway.connect(new InetSocketAddress(server.getHost(), closedPort));
+        DisconnectListener listener = new DisconnectListener();
+        refused.addListener(listener);
+        CompletableFuture<LoginResult> login = refused.login("refused");
+        assertFalse(refused.isConnectionActive());
+        release.countDown();
+
+        assertTrue(listener.awaitDisconnect());
+        try {
+            login.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Logged in without a connection");
+        } catch (ExecutionException e) {
+            // Expected
+        }
+        assertFalse(refused.isConnectionActive());
+        assertFalse(refused.getLastError().isEmpty());
+        assertTrue(awaitSessionCount(1));
+        assertTrue(blocker.isConnectionActive());
+    }
+
+    private GatewaySession connect() throws IOException {
+        return gateway.connect(new InetSocketAddress(server.getHost(), server.getPort()));
+    }
+
+    /**
+     * Wait until the gateway has closed its other sessions. Closing notifies no listener, so
+     * this polls.
+     */
+    private boolean awaitSessionCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (gateway.getSessionCount() != count) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private void restartWithOneThread() throws IOException {
+        gateway.stop();
+        gateway = new ChatGateway(1);
+        gateway.start();
+    }
+
+    /**
+     * Remembers that the connection was lost.
+     */
+    private static class DisconnectListener extends EmptyChatListener {
+        private boolean disconnected = false;
+
+        @Override
+        public synchronized void onDisconnect() {
+            disconnected = true;
+            signal();
+        }
+
+        boolean awaitDisconnect() throws InterruptedException {
+            return await(() -> disconnected);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package no.ntnu.datakomm.chat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ChatHistoryTest {
+    private final ChatHistory history = new ChatHistory(100);
+
+    @After
+    public void closeHistory() {
+        history.close();
+    }
+
+    /**
+     * Test that only the newest entries stay in memory while following the tail
+     */
+    @Test
+    public void testRetention() {
+        appendMessages(0, 250);
+        assertTrue(history.isAtTail());
+        assertTrue(history.hasOlder());
+        assertEquals(100, history.getWindow().size());
+        assertEquals("150", history.getWindow().get(0).getMessage().getText());
+        assertEquals("249", history.getWindow().get(99).getMessage().getText());
+    }
+
+    /**
+     * Test paging back entries from the spill file, starting between two indexed positions, and
+     * returning to the tail
+     */
+    @Test
+    public void testPaging() {
+        appendMessages(0, 1000);
+        assertEquals(37, history.pageOlder(37));
+        assertEquals("863", history.getWindow().get(0).getMessage().getText());
+        assertEquals(100, history.getWindow().size());
+        assertFalse(history.isAtTail());
+
+        while (history.pageOlder(50) > 0) {
+            // Back to the first entry
+        }
+        assertFalse(history.hasOlder());
+        assertEquals("0", history.getWindow().get(0).getMessage().getText());
+        assertEquals("99", history.getWindow().get(99).getMessage().getText());
+
+        // New entries are only spilled while paged back
+        appendMessages(1000, 1010);
+        assertEquals("0", history.getWindow().get(0).getMessage().getText());
+        assertEquals(30, history.pageNewer(30));
+        assertEquals("30", history.getWindow().get(0).getMessage().getText());
+        assertEquals("129", history.getWindow().get(99).getMessage().getText());
+
+        history.jumpToTail();
+        assertTrue(history.isAtTail());
+        assertEquals("910", history.getWindow().get(0).getMessage().getText());
+        assertEquals("1009", history.getWindow().get(99).getMessage().getText());
+    }
+
+    /**
+     * Test that the flags and the sender of an entry survive the spill file
+     */
+    @Test
+    public void testEntryFields() {
+        history.append(new ChatEntry(new TextMessage("ærlig", true, "hei på deg"), true, false, true));
+        appendMessages(1, 200);
+        history.jumpToTail();
+        while (history.pageOlder(100) > 0) {
+            // Back to the first entry
+        }
+        ChatEntry entry = history.getWindow().get(0);
+        assertEquals("ærlig", entry.getMessage().getSender());
+        assertEquals("hei på deg", entry.getMessage().getText());
+        assertTrue(entry.getMessage().isPrivate());
+        assertTrue(entry.isLocal());
+        assertFalse(entry.isWarning());
+        assertTrue(entry.isFailed());
+    }
+
+    private void appendMessages(int from, int to) {
+        List<ChatEntry> entries = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            entries.add(new ChatEntry(new TextMessage("user", false, Integer.toString(i)), false, false, false));
+        }
+        history.appendAll(entries);
+    }
+}
@@ -0,0 +1,139 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class EventDispatcherTest {
+    // How many ms to wait at most for a thread to stop
+    private static final long TIMEOUT = 5000;
+
+    /**
+     * Test that an event dispatched after its listener is removed is dropped, and does not start a
+     * delivery thread again
+     */
+    @Test
+    public void testEventForRemovedListener() throws InterruptedException {
+        PerListenerEventDispatcher dispatcher =
+                new PerListenerEventDispatcher(10, EventDispatcher.OverflowPolicy.DROP);
+        DummyMsgReceiver listener = new DummyMsgReceiver();
+        dispatcher.listenerAdded(listener);
+        assertTrue(threadCount("chat-events-DummyMsgReceiver") > 0);
+
+        dispatcher.listenerRemoved(listener);
+        dispatcher.dispatch(listener, l -> l.onMessageReceived(new TextMessage("a", false, "late")));
+        assertTrue(awaitNoThread("chat-events-DummyMsgReceiver"));
+        assertEquals(0, listener.getCount());
+    }
+
+    /**
+     * Test that a dispatch waiting for room in a full queue gives up when the dispatcher is shut down
+     */
+    @Test
+    public void testBlockingDispatchAfterShutdown() throws InterruptedException {
+        QueuedEventDispatcher dispatcher = new QueuedEventDispatcher(1, EventDispatcher.OverflowPolicy.BLOCK);
+        CountDownLatch delivering = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ChatListener listener = new EmptyChatListener();
+        // The first event holds the delivery thread, the second one fills the queue
+        dispatcher.dispatch(listener, l -> {
+            delivering.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertTrue(delivering.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        dispatcher.dispatch(listener, l -> { });
+
+        Thread blocked = new Thread(() -> dispatcher.dispatch(listener, l -> { }), "blocked-dispatch");
+        blocked.start();
+        Thread.sleep(200);
+        assertTrue(blocked.isAlive());
+
+        dispatcher.shutdown();
+        blocked.join(TIMEOUT);
+        assertFalse("The dispatch still waits after the shutdown", blocked.isAlive());
+        assertEquals(1, dispatcher.getDroppedCount());
+        release.countDown();
+    }
+
+    /**
+     * Test that replacing the dispatcher of a client stops the threads of the old one, and that
+     * the listeners get their events from the new one
+     */
+    @Test
+    public void testReplacedDispatcherIsShutDown() throws InterruptedException {
+        TCPClient client = new TCPClient();
+        AtomicInteger delivered = new AtomicInteger();
+        ChatListener listener = new CountingListener(delivered);
+        client.addListener(listener);
+
+        client.setEventDispatcher(new PerListenerEventDispatcher(10, EventDispatcher.OverflowPolicy.DROP));
+        assertEquals(1, threadCount("chat-events-CountingListener"));
+        PerListenerEventDispatcher second = new PerListenerEventDispatcher(10, EventDispatcher.OverflowPolicy.DROP);
+        client.setEventDispatcher(second);
+        assertTrue(awaitThreadCount("chat-events-CountingListener", 1));
+
+        second.dispatch(listener, l -> l.onDisconnect());
+        assertTrue(awaitValue(delivered, 1));
+        client.removeListener(listener);
+        assertTrue(awaitNoThread("chat-events-CountingListener"));
+    }
+
+    private static class CountingListener extends EmptyChatListener {
+        private final AtomicInteger delivered;
+
+        CountingListener(AtomicInteger delivered) {
+            this.delivered = delivered;
+        }
+
+        @Override
+        public void onDisconnect() {
+            delivered.incrementAndGet();
+        }
+    }
+
+    private static int threadCount(String name) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals(name) && thread.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean awaitNoThread(String name) throws InterruptedException {
+        return awaitThreadCount(name, 0);
+    }
+
+    private static boolean awaitThreadCount(String name, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (threadCount(name) != expected) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    private static boolean awaitValue(AtomicInteger value, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (value.get() != expected) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
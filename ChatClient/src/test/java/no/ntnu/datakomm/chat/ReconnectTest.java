@@ -0,0 +1,217 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * A client with a {@link ReconnectPolicy} against a local server which goes down and comes back
+ * on the same port.
+ */
+public class ReconnectTest {
+    @Rule
+    public LocalChatServer server = new LocalChatServer();
+
+    // How many ms to wait at most for a response
+    private static final long TIMEOUT = 5000;
+    private static final int QUEUED_MESSAGES = 20;
+
+    /**
+     * Test that the delay before every attempt is between half and all of the back-off, which
+     * doubles from the initial delay up to the maximum, also after many attempts
+     */
+    @Test
+    public void testDelay() {
+        ReconnectPolicy policy = new ReconnectPolicy(100, 1000, 0);
+        long backOff = 100;
+        for (int attempt = 1; attempt <= 100; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getDelay(attempt);
+                assertTrue("Attempt " + attempt + ": " + delay, delay >= backOff / 2 && delay <= backOff);
+            }
+            backOff = Math.min(1000, backOff * 2);
+        }
+
+        // No overflow when the back-off doubles past the range of a long
+        ReconnectPolicy unlimited = new ReconnectPolicy(1, Long.MAX_VALUE, 0);
+        for (int attempt = 1; attempt <= 200; attempt++) {
+            assertTrue(unlimited.getDelay(attempt) >= 0);
+        }
+        assertTrue(unlimited.getDelay(200) >= Long.MAX_VALUE / 4);
+
+        assertTrue(policy.allowsAttempt(Integer.MAX_VALUE));
+        ReconnectPolicy limited = new ReconnectPolicy(100, 1000, 3);
+        assertTrue(limited.allowsAttempt(3));
+        assertFalse(limited.allowsAttempt(4));
+        try {
+            new ReconnectPolicy(1000, 100, 0);
+            fail("A maximum delay shorter than the initial one was accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Test that the messages sent while the server is down are queued, and sent in order once the
+     * client has reconnected and logged in again by itself
+     */
+    @Test
+    public void testQueuedMessagesReplayed() throws Exception {
+        TCPClient client = connectAndLogin("alice");
+        client.setReconnectPolicy(new ReconnectPolicy(20, 100, 0));
+        ReconnectListener listener = new ReconnectListener();
+        client.addListener(listener);
+
+        server.stop();
+        // At least one attempt has failed, the server is really down
+        assertTrue(listener.await(() -> listener.attempts >= 2));
+        assertTrue(client.isReconnecting());
+        assertFalse(client.isConnectionActive());
+
+        // Sent to herself: only delivered if she is logged in again before they are sent
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < QUEUED_MESSAGES; i++) {
+            sent.add(client.sendPrivateMessageAsync("alice", "queued " + i));
+        }
+        for (CompletableFuture<Void> future : sent) {
+            assertFalse(future.isDone());
+        }
+
+        server.start();
+        assertTrue(listener.await(() -> listener.reconnected));
+        for (CompletableFuture<Void> future : sent) {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(listener.await(() -> listener.getCount() == QUEUED_MESSAGES));
+        List<TextMessage> messages = listener.getMessages();
+        for (int i = 0; i < QUEUED_MESSAGES; i++) {
+            assertEquals(new TextMessage("alice", true, "queued " + i), messages.get(i));
+        }
+        assertFalse(client.isReconnecting());
+        assertEquals(List.of("alice"), client.users().get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Test that disconnecting while reconnecting stops it, and fails the queued messages
+     */
+    @Test
+    public void testCancelFailsQueuedMessages() throws Exception {
+        TCPClient client = connectAndLogin("alice");
+        client.setReconnectPolicy(new ReconnectPolicy(20, 100, 0));
+        ReconnectListener listener = new ReconnectListener();
+        client.addListener(listener);
+
+        server.stop();
+        assertTrue(listener.await(() -> listener.attempts >= 1));
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(client.sendPrivateMessageAsync("alice", "queued " + i));
+        }
+        client.disconnect();
+        assertFalse(client.isReconnecting());
+        for (CompletableFuture<Void> future : sent) {
+            assertNotSent(future, "Reconnect cancelled");
+        }
+
+        // It does not come back when the server does
+        server.start();
+        int attempts = listener.getAttempts();
+        Thread.sleep(200);
+        assertEquals(attempts, listener.getAttempts());
+        assertFalse(client.isConnectionActive());
+        assertFalse(client.sendPrivateMessage("alice", "too late"));
+    }
+
+    /**
+     * Test that the client gives up after the attempts allowed by the policy, tells the listeners,
+     * and fails the queued messages
+     */
+    @Test
+    public void testGiveUpFailsQueuedMessages() throws Exception {
+        TCPClient client = connectAndLogin("alice");
+        // Two attempts of at least 100 ms: time enough to queue the messages
+        client.setReconnectPolicy(new ReconnectPolicy(200, 200, 2));
+        ReconnectListener listener = new ReconnectListener();
+        client.addListener(listener);
+
+        server.stop();
+        assertTrue(listener.await(() -> listener.attempts >= 1));
+        List<CompletableFuture<Void>> sent = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            sent.add(client.sendPrivateMessageAsync("alice", "queued " + i));
+        }
+
+        assertTrue(listener.await(() -> listener.failed));
+        assertEquals(2, listener.getAttempts());
+        assertFalse(client.isReconnecting());
+        for (CompletableFuture<Void> future : sent) {
+            assertNotSent(future, "Gave up reconnecting");
+        }
+        assertFalse(client.sendPrivateMessage("alice", "too late"));
+    }
+
+    /**
+     * Connect a new client and log it in.
+     */
+    private TCPClient connectAndLogin(String username) throws Exception {
+        TCPClient client = server.newClient();
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        LoginResult result = client.login(username).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(result.toString(), result.isSuccess());
+        return client;
+    }
+
+    /**
+     * Check that a message failed, with a reason starting with the given text.
+     */
+    private static void assertNotSent(CompletableFuture<Void> future, String reason) throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("A queued message was sent");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage(), e.getCause().getMessage().startsWith(reason));
+        }
+    }
+
+    /**
+     * Remembers the messages received and the reconnect events.
+     */
+    private static class ReconnectListener extends DummyMsgReceiver {
+        private int attempts = 0;
+        private boolean reconnected = false;
+        private boolean failed = false;
+
+        @Override
+        public synchronized void onReconnecting(int attempt, long delayMillis) {
+            attempts = attempt;
+            signal();
+        }
+
+        @Override
+        public synchronized void onReconnected() {
+            reconnected = true;
+            signal();
+        }
+
+        @Override
+        public synchronized void onReconnectFailed() {
+            failed = true;
+            signal();
+        }
+
+        synchronized int getAttempts() {
+            return attempts;
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Stress tests: several threads use the same client at once, sending, disconnecting, changing
+ * listeners and reconnecting, against a local server. Every round checks that no thread got an
+ * exception, that no request is left waiting forever, and that no message reported as sent is
+ * lost or delivered out of order.
+ * <p>
+ * The races are found by repetition, so a failure may not show up on every run. The failure
+ * message tells what was observed.
+ */
+public class TcpClientConcurrencyTest {
+    @Rule
+    public LocalChatServer server = new LocalChatServer();
+
+    // How many ms to wait at most for a response, or for the threads of a round to finish
+    private static final long TIMEOUT = 5000;
+    private static final int ROUNDS = 20;
+    private static final int SENDER_THREADS = 4;
+    private static final int MESSAGES_PER_THREAD = 100;
+
+    private static final String RECEIVER = "receiver";
+    private static final String SENDER = "sender";
+
+    /**
+     * Several threads send messages while another thread disconnects. Every message must either
+     * fail, or be delivered, and the messages of one thread must arrive in the order they were sent.
+     *
+     * @throws Exception When test is interrupted while waiting, or a login fails
+     */
+    @Test
+    public void testSendWhileDisconnecting() throws Exception {
+        TCPClient receiver = connectAndLogin(RECEIVER);
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        receiver.addListener(received);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            TCPClient sender = connectAndLogin(SENDER);
+            List<List<CompletableFuture<Void>>> futures = new ArrayList<>();
+            List<Runnable> tasks = new ArrayList<>();
+            for (int t = 0; t < SENDER_THREADS; t++) {
+                List<CompletableFuture<Void>> sent = new ArrayList<>();
+                futures.add(sent);
+                String prefix = round + "-" + t + "-";
+                tasks.add(() -> {
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        sent.add(sender.sendPrivateMessageAsync(RECEIVER, prefix + i));
+                    }
+                });
+            }
+            int disconnectAfter = ThreadLocalRandom.current().nextInt(MESSAGES_PER_THREAD);
+            tasks.add(() -> {
+                for (int i = 0; i < disconnectAfter; i++) {
+                    Thread.yield();
+                }
+                sender.disconnect();
+            });
+            runConcurrently(tasks);
+            assertFalse(sender.isConnectionActive());
+            assertFalse(sender.sendPublicMessage("after disconnect"));
+            assertNotNull(sender.getLastError());
+
+            // The messages written to the socket before it was closed reach the receiver
+            List<TextMessage> expected = new ArrayList<>();
+            for (int t = 0; t < SENDER_THREADS; t++) {
+                List<CompletableFuture<Void>> sent = futures.get(t);
+                for (int i = 0; i < sent.size(); i++) {
+                    if (isSent(sent.get(i), "round " + round + ", thread " + t + ", message " + i)) {
+                        expected.add(new TextMessage(SENDER, true, round + "-" + t + "-" + i));
+                    }
+                }
+            }
+            assertTrue("Lost messages in round " + round + ": " + missing(received, expected),
+                    received.awaitMessages(expected));
+        }
+        assertInOrder(received.getMessages());
+    }
+
+    /**
+     * Listeners are added and removed by several threads while messages arrive. The listener that
+     * stays registered gets every message, once and in order; the others get no duplicates.
+     *
+     * @throws Exception When test is interrupted while waiting, or a login fails
+     */
+    @Test
+    public void testListenerChangesWhileReceiving() throws Exception {
+        TCPClient receiver = connectAndLogin(RECEIVER);
+        TCPClient sender = connectAndLogin(SENDER);
+        DummyMsgReceiver stable = new DummyMsgReceiver();
+        receiver.addListener(stable);
+        List<DummyMsgReceiver> transients = new ArrayList<>();
+        for (int t = 0; t < SENDER_THREADS; t++) {
+            transients.add(new DummyMsgReceiver());
+        }
+
+        int messages = SENDER_THREADS * MESSAGES_PER_THREAD * 5;
+        AtomicBoolean sending = new AtomicBoolean(true);
+        List<Runnable> tasks = new ArrayList<>();
+        tasks.add(() -> {
+            for (int i = 0; i < messages; i++) {
+                assertTrue(sender.getLastError(), sender.sendPrivateMessage(RECEIVER, "0-0-" + i));
+            }
+            sending.set(false);
+        });
+        for (DummyMsgReceiver listener : transients) {
+            tasks.add(() -> {
+                while (sending.get()) {
+                    receiver.addListener(listener);
+                    Thread.yield();
+                    receiver.removeListener(listener);
+                }
+            });
+        }
+        runConcurrently(tasks);
+
+        List<TextMessage> expected = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            expected.add(new TextMessage(SENDER, true, "0-0-" + i));
+        }
+        assertTrue("Lost messages: " + missing(stable, expected), stable.awaitMessages(expected));
+        assertEquals(expected, stable.getMessages());
+        for (DummyMsgReceiver listener : transients) {
+            assertInOrder(listener.getMessages());
+        }
+    }
+
+    /**
+     * Threads connect, disconnect, send and ask for the user list at the same time, on the same
+     * client. No method may throw, every request must get an answer or fail, and no connection may
+     * be left open once the client is disconnected.
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testConnectDisconnectAndSend() throws Exception {
+        TCPClient client = server.newClient();
+        Queue<CompletableFuture<?>> requests = new ConcurrentLinkedQueue<>();
+        for (int round = 0; round < ROUNDS; round++) {
+            List<Runnable> tasks = new ArrayList<>();
+            for (int t = 0; t < 2; t++) {
+                tasks.add(() -> {
+                    for (int i = 0; i < 5; i++) {
+                        client.connect(server.getHost(), server.getPort());
+                        Thread.yield();
+                        client.disconnect();
+                    }
+                });
+            }
+            tasks.add(() -> {
+                for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                    client.sendPublicMessage("message " + i);
+                    requests.add(client.sendPrivateMessageAsync(RECEIVER, "message " + i));
+                    requests.add(client.users());
+                    client.isConnectionActive();
+                    client.getLastError();
+                }
+            });
+            tasks.add(() -> {
+                for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                    requests.add(client.login(SENDER));
+                    client.startListenThread();
+                }
+            });
+            runConcurrently(tasks);
+            client.disconnect();
+            assertFalse(client.isConnectionActive());
+        }
+        for (CompletableFuture<?> request : requests) {
+            assertCompletes(request, "request " + request);
+        }
+        assertNoClientThreads();
+    }
+
+    /**
+     * The server restarts while threads send messages: the clients reconnect and log in again.
+     * Every message must either fail or be sent, none left waiting, and afterwards messages are
+     * delivered again.
+     *
+     * @throws Exception When test is interrupted while waiting, or a login fails
+     */
+    @Test
+    public void testSendWhileReconnecting() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(10, 50, 0);
+        TCPClient receiver = connectAndLogin(RECEIVER);
+        receiver.setReconnectPolicy(policy);
+        TCPClient sender = connectAndLogin(SENDER);
+        sender.setReconnectPolicy(policy);
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        receiver.addListener(received);
+
+        for (int round = 0; round < 3; round++) {
+            Queue<CompletableFuture<Void>> sent = new ConcurrentLinkedQueue<>();
+            List<Runnable> tasks = new ArrayList<>();
+            for (int t = 0; t < SENDER_THREADS; t++) {
+                String prefix = round + "-" + t + "-";
+                tasks.add(() -> {
+                    for (int i = 0; i < MESSAGES_PER_THREAD; i++) {
+                        sent.add(sender.sendPrivateMessageAsync(RECEIVER, prefix + i));
+                        Thread.yield();
+                    }
+                });
+            }
+            tasks.add(() -> {
+                try {
+                    server.restart();
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            });
+            runConcurrently(tasks);
+            for (CompletableFuture<Void> future : sent) {
+                assertCompletes(future, "message of round " + round);
+            }
+            awaitReconnected(sender);
+            awaitReconnected(receiver);
+        }
+
+        // Both are logged in again: a message gets through
+        TextMessage last = new TextMessage(SENDER, true, "last-0");
+        assertTrue(sender.sendPrivateMessage(RECEIVER, last.getText()));
+        assertTrue(received.awaitMessage(last));
+        assertInOrder(received.getMessages());
+    }
+
+    /**
+     * Connect a new client and log it in.
+     */
+    private TCPClient connectAndLogin(String username) throws Exception {
+        TCPClient client = server.newClient();
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        LoginResult result = client.login(username).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(result.toString(), result.isSuccess());
+        return client;
+    }
+
+    /**
+     * Run the tasks on threads of their own, all starting at the same time, and wait for them.
+     * Fails if a task throws, or does not finish in time (deadlock).
+     */
+    private static void runConcurrently(List<Runnable> tasks) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (Runnable task : tasks) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    task.run();
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }, "stress-" + threads.size());
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+            if (thread.isAlive()) {
+                fail(thread.getName() + " did not finish, stuck at " + Arrays.toString(thread.getStackTrace()));
+            }
+        }
+        if (!errors.isEmpty()) {
+            Throwable first = errors.peek();
+            AssertionError failure = new AssertionError(errors.size() + " thread(s) failed, first: " + first, first);
+            errors.forEach(e -> {
+                if (e != first) {
+                    failure.addSuppressed(e);
+                }
+            });
+            throw failure;
+        }
+    }
+
+    /**
+     * Wait for a request to complete, normally or not.
+     *
+     * @return true if it completed normally
+     */
+    private static boolean isSent(CompletableFuture<?> future, String what) throws InterruptedException {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (ExecutionException e) {
+            return false;
+        } catch (TimeoutException e) {
+            throw new AssertionError(what + " was neither sent nor failed");
+        }
+    }
+
+    private static void assertCompletes(CompletableFuture<?> future, String what) throws InterruptedException {
+        isSent(future, what);
+    }
+
+    /**
+     * Check that the messages of every sending thread (texts "round-thread-index") arrived in order.
+     */
+    private static void assertInOrder(List<TextMessage> messages) {
+        java.util.Map<String, Integer> last = new java.util.HashMap<>();
+        for (TextMessage message : messages) {
+            String text = message.getText();
+            int split = text.lastIndexOf('-');
+            String stream = text.substring(0, split);
+            int index = Integer.parseInt(text.substring(split + 1));
+            Integer previous = last.put(stream, index);
+            assertTrue("Out of order or duplicate: " + text + " after " + previous,
+                    previous == null || previous < index);
+        }
+    }
+
+    private static List<TextMessage> missing(DummyMsgReceiver receiver, List<TextMessage> expected) {
+        List<TextMessage> missing = new ArrayList<>(expected);
+        missing.removeAll(receiver.getMessages());
+        return missing.size() > 10 ? missing.subList(0, 10) : missing;
+    }
+
+    /**
+     * Wait until the client is connected again, after the server restarted.
+     */
+    private static void awaitReconnected(TCPClient client) throws Exception {
+        EmptyChatListener reconnected = new EmptyChatListener() {
+            @Override
+            public synchronized void onReconnected() {
+                signal();
+            }
+        };
+        client.addListener(reconnected);
+        try {
+            assertTrue("Not reconnected: " + client.getLastError(), reconnected.await(
+                    () -> client.isConnectionActive() && !client.isReconnecting()));
+            client.users().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } finally {
+            client.removeListener(reconnected);
+        }
+    }
+
+    /**
+     * Check that all the reading and writing threads of the clients have stopped.
+     */
+    private static void assertNoClientThreads() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        List<String> running;
+        do {
+            running = new ArrayList<>();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                String name = thread.getName();
+                if (thread.isAlive() && (name.equals("chat-listener") || name.equals("chat-writer")
+                        || name.equals("chat-closer"))) {
+                    running.add(thread.getName());
+                }
+            }
+            if (running.isEmpty()) {
+                return;
+            }
+            Thread.sleep(10);
+        } while (System.currentTimeMillis() < deadline);
+        fail("Client threads left running after disconnect: " + running);
+    }
+}
@@ -4,17 +4,28 @@ import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
 import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
 import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
 import no.ntnu.datakomm.chat.helpers.DummyUserListingReceiver;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.*;
 
 public class TcpClientTest {
-    // Host and port to be used for all connection in the tests
-    private static final String SERVER_HOST = "datakomm.work";
-    private static final int SERVER_PORT = 1300;
+    // A fresh chat server on the loopback interface for every test. Instead of sleeping, the tests
+    // wait for the responses they expect, see EmptyChatListener.await().
+    @Rule
+    public LocalChatServer server = new LocalChatServer();
 
-    // How many ms to sleep when waiting for server response to arrive
-    private static final int THREAD_SLEEP_TIME = 2000;
+    // How many ms to wait at most for a server response to arrive
+    private static final long TIMEOUT = 5000;
 
     /**
      * Test if opening and closing connection works
@@ -23,24 +34,23 @@ public class TcpClientTest {
     public void testConnection() {
         // Note - this test is not very accurate. It does not actually check whether we have made
         // connection to the right server. That would be a bit difficult to do, although it is doable.
-        TCPClient client = new TCPClient();
+        TCPClient client = server.newClient();
         assertFalse(client.isConnectionActive());
-        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        assertTrue(client.connect(server.getHost(), server.getPort()));
         assertTrue(client.isConnectionActive());
         client.disconnect();
         assertFalse(client.isConnectionActive());
     }
 
     /**
-     * Test if login works correctly. Note: this test can fail if several students run the same test at the same
-     * time: several clients will try to use the same username.
+     * Test if login works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testLogin() throws InterruptedException {
-        TCPClient client = new TCPClient();
-        assertTrue(client.connect(SERVER_HOST, SERVER_PORT));
+        TCPClient client = server.newClient();
+        assertTrue(client.connect(server.getHost(), server.getPort()));
         // The incoming messages will be received on another thread
         client.startListenThread();
         // Listen to how many messages of each type the client receives
@@ -51,45 +61,40 @@ public class TcpClientTest {
 
         // Try bad username
         client.tryLogin("Bad username");
-        // allow the login response (loginerr) to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // wait for the login response (loginerr) to arrive
+        assertTrue(counter.awaitLoginResults(1));
         assertEquals(0, counter.loginSuccess);
         assertEquals(1, counter.loginError);
 
         // Reset the counters
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
+        counter.reset();
 
         // Try ok username with letters only
         client.tryLogin("unittestnormal");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // wait for the login response to arrive
+        assertTrue(counter.awaitLoginResults(1));
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
         // Reset the counters
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
+        counter.reset();
 
         // Try ok username with big and small letters
         client.tryLogin("UnitTestCamel");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // wait for the login response to arrive
+        assertTrue(counter.awaitLoginResults(1));
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
 
         // Reset the counters
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
+        counter.reset();
 
         // Alphanumerics
         client.tryLogin("UnitTest35Alpha");
-        // allow the login response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // wait for the login response to arrive
+        assertTrue(counter.awaitLoginResults(1));
         assertEquals(1, counter.loginSuccess);
         assertEquals(0, counter.loginError);
-        counter.loginSuccess = 0;
-        counter.loginError = 0;
 
         client.disconnect();
     }
@@ -97,23 +102,26 @@ public class TcpClientTest {
     /**
      * Test if sending public messages works
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted while waiting, or a login fails
      */
     @Test
-    public void testPublicMessages() throws InterruptedException {
+    public void testPublicMessages() throws Exception {
         // Create three clients. When one sends a message others should receive
-        TCPClient c1 = new TCPClient();
-        TCPClient c2 = new TCPClient();
-        TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        TCPClient c1 = server.newClient();
+        TCPClient c2 = server.newClient();
+        TCPClient c3 = server.newClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        assertTrue(c3.connect(server.getHost(), server.getPort()));
 
         // Client 1 logs in with a specific username
         String C1_USERNAME = "UnitTestCC";
-        c1.tryLogin(C1_USERNAME);
+        assertLogin(c1, C1_USERNAME);
 
-        // Clients 2 and 3 will listen for incoming messages, each on a different CPU thread
+        // Clients 2 and 3 will listen for incoming messages, each on a different CPU thread.
+        // Public messages are delivered to logged-in users only.
+        assertLogin(c2, "UnitTestCC2");
+        assertLogin(c3, "UnitTestCC3");
         c2.startListenThread();
         c3.startListenThread();
         DummyMsgReceiver rec2 = new DummyMsgReceiver();
@@ -122,14 +130,12 @@ public class TcpClientTest {
         c3.addListener(rec3);
 
         final String MSG_TEXT = "[Unittest] This is a specific text message, please, don't repeat it!";
-        c1.sendPublicMessage(MSG_TEXT);
-
-        // Allow the messages to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(c1.sendPublicMessage(MSG_TEXT));
 
+        // Wait for the messages to arrive
         TextMessage expectedMsg = new TextMessage(C1_USERNAME, false, MSG_TEXT);
-        assertTrue(rec2.hasReceived(expectedMsg));
-        assertTrue(rec3.hasReceived(expectedMsg));
+        assertTrue(rec2.awaitMessage(expectedMsg));
+        assertTrue(rec3.awaitMessage(expectedMsg));
 
         // Disconnect all clients
         c1.disconnect();
@@ -140,25 +146,25 @@ public class TcpClientTest {
     /**
      * Test if sending private messages works.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted while waiting, or a login fails
      */
     @Test
-    public void testPrivateMessages() throws InterruptedException {
+    public void testPrivateMessages() throws Exception {
         // Create three clients. One sends message to another. Third one should not receive.
-        TCPClient c1 = new TCPClient();
-        TCPClient c2 = new TCPClient();
-        TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        TCPClient c1 = server.newClient();
+        TCPClient c2 = server.newClient();
+        TCPClient c3 = server.newClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        assertTrue(c3.connect(server.getHost(), server.getPort()));
 
         // Clients log in with specific usernames
         String C1_USERNAME = "UnitTestC1";
         String C2_USERNAME = "UnitTestC2";
         String C3_USERNAME = "UnitTestC3";
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
+        assertLogin(c1, C1_USERNAME);
+        assertLogin(c2, C2_USERNAME);
+        assertLogin(c3, C3_USERNAME);
 
         // Clients will listen for incoming messages, each on a different CPU thread
         c1.startListenThread();
@@ -173,12 +179,13 @@ public class TcpClientTest {
 
         String MSG_TEXT = "[Unittest2] This is a specific text message, please, don't repeat it!";
         // Send to Client #2 only
-        c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT);
-
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(c1.sendPrivateMessage(C2_USERNAME, MSG_TEXT));
 
+        // Wait for the message to arrive, and for the others to have received anything sent before
         TextMessage expectedMsg = new TextMessage(C1_USERNAME, true, MSG_TEXT);
+        assertTrue(rec2.awaitMessage(expectedMsg));
+        server.sync(c1);
+        server.sync(c3);
         assertFalse(rec1.hasReceived(expectedMsg));
         assertTrue(rec2.hasReceived(expectedMsg));
         assertFalse(rec3.hasReceived(expectedMsg));
@@ -189,12 +196,13 @@ public class TcpClientTest {
 
         // Now send from C2 to C3
         MSG_TEXT = "[Unittest3] This is a specific text message, please, don't repeat it!";
-        c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT);
-
-        // Allow the message to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(c2.sendPrivateMessage(C3_USERNAME, MSG_TEXT));
 
+        // Wait for the message to arrive
         expectedMsg = new TextMessage(C2_USERNAME, true, MSG_TEXT);
+        assertTrue(rec3.awaitMessage(expectedMsg));
+        server.sync(c2);
+        server.sync(c1);
         assertFalse(rec1.hasReceived(expectedMsg));
         assertFalse(rec2.hasReceived(expectedMsg));
         assertTrue(rec3.hasReceived(expectedMsg));
@@ -210,24 +218,52 @@ public class TcpClientTest {
      */
     @Test
     public void testDisconnectFail() {
-        TCPClient client = new TCPClient();
+        TCPClient client = server.newClient();
         client.disconnect();
     }
 
+    /**
+     * Test that disconnecting does not wait for a server which never closes its side, and that the
+     * connection is closed all the same, once the messages sent before are written.
+     *
+     * @throws Exception When test is interrupted while waiting, or the server socket fails
+     */
+    @Test
+    public void testDisconnectDoesNotWait() throws Exception {
+        try (ServerSocket silentServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            TCPClient client = server.newClient();
+            assertTrue(client.connect(silentServer.getInetAddress().getHostAddress(), silentServer.getLocalPort()));
+            try (Socket accepted = silentServer.accept()) {
+                assertTrue(client.sendPublicMessage("bye"));
+                long start = System.nanoTime();
+                client.disconnect();
+                long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                assertTrue("disconnect() took " + elapsedMillis + " ms", elapsedMillis < 500);
+                assertFalse(client.isConnectionActive());
+
+                accepted.setSoTimeout((int) TIMEOUT);
+                BufferedReader in = new BufferedReader(new InputStreamReader(accepted.getInputStream(),
+                        StandardCharsets.UTF_8));
+                assertEquals("msg bye", in.readLine());
+                assertNull(in.readLine());
+            }
+        }
+    }
+
     /**
      * Test if user listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws Exception When test is interrupted while waiting, or a login fails
      */
     @Test
-    public void testUserListing() throws InterruptedException {
+    public void testUserListing() throws Exception {
         // Create three clients. One sends message to another. Third one should not receive.
-        TCPClient c1 = new TCPClient();
-        TCPClient c2 = new TCPClient();
-        TCPClient c3 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c2.connect(SERVER_HOST, SERVER_PORT));
-        assertTrue(c3.connect(SERVER_HOST, SERVER_PORT));
+        TCPClient c1 = server.newClient();
+        TCPClient c2 = server.newClient();
+        TCPClient c3 = server.newClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        assertTrue(c3.connect(server.getHost(), server.getPort()));
 
 
         // The incoming messages will be received on another thread
@@ -238,23 +274,18 @@ public class TcpClientTest {
         c1.addListener(userListing);
 
         // Clients log in with specific usernames
-        // Get some randomness added to the usernames
-        int rand = (int) (Math.random() * 10000);
-        String C1_USERNAME = "UnitTestC1" + rand;
-        String C2_USERNAME = "UnitTestC2" + rand;
-        String C3_USERNAME = "UnitTestC3" + rand;
-        c1.tryLogin(C1_USERNAME);
-        c2.tryLogin(C2_USERNAME);
-        c3.tryLogin(C3_USERNAME);
-
-        // Allow the login to happen
-        Thread.sleep(THREAD_SLEEP_TIME);
+        String C1_USERNAME = "UnitTestC1";
+        String C2_USERNAME = "UnitTestC2";
+        String C3_USERNAME = "UnitTestC3";
+        assertLogin(c1, C1_USERNAME);
+        assertLogin(c2, C2_USERNAME);
+        assertLogin(c3, C3_USERNAME);
 
         // Try to get user listing
         c1.refreshUserList();
 
-        // Allow the user listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Wait for the user listing response to arrive
+        assertTrue(userListing.awaitListing());
 
         // We should get all the users listed in a single message and it should contain all the three client names
         assertTrue(userListing.getCount() >= 3);
@@ -271,13 +302,13 @@ public class TcpClientTest {
     /**
      * Test if supported command listing works correctly.
      *
-     * @throws InterruptedException When test is interrupted while sleeping
+     * @throws InterruptedException When test is interrupted while waiting
      */
     @Test
     public void testSupportedCommands() throws InterruptedException {
         // Create a TCP chat client.
-        TCPClient c1 = new TCPClient();
-        assertTrue(c1.connect(SERVER_HOST, SERVER_PORT));
+        TCPClient c1 = server.newClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
 
         // The incoming messages will be received on another thread
         c1.startListenThread();
@@ -289,8 +320,8 @@ public class TcpClientTest {
         // Try to get supported command listing
         c1.askSupportedCommands();
 
-        // Allow the listing response to arrive
-        Thread.sleep(THREAD_SLEEP_TIME);
+        // Wait for the listing response to arrive
+        assertTrue(supported.awaitListing());
 
         // We should get all the users listed in a single message and it should contain all the three client names
         assertTrue(supported.contains("msg"));
@@ -302,4 +333,16 @@ public class TcpClientTest {
         // Disconnect all clients
         c1.disconnect();
     }
+
+    /**
+     * Log the client in and wait for the server to accept the username.
+     *
+     * @param client   a connected client
+     * @param username the username to log in with
+     * @throws Exception When the response does not arrive in time
+     */
+    private static void assertLogin(TCPClient client, String username) throws Exception {
+        LoginResult result = client.login(username).get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(result.toString(), result.isSuccess());
+    }
 }
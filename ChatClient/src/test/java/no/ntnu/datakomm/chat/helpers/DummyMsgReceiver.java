@@ -1,5 +1,8 @@
 package no.ntnu.datakomm.chat.helpers;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import no.ntnu.datakomm.chat.TextMessage;
@@ -14,13 +17,15 @@ public class DummyMsgReceiver extends EmptyChatListener {
     private String msgError = null;
 
     @Override
-    public void onMessageReceived(TextMessage message) {
+    public synchronized void onMessageReceived(TextMessage message) {
         messages.add(message);
+        signal();
     }
 
     @Override
-    public void onMessageError(String errMsg) {
+    public synchronized void onMessageError(String errMsg) {
         msgError = errMsg;
+        signal();
     }
 
     /**
@@ -29,14 +34,14 @@ public class DummyMsgReceiver extends EmptyChatListener {
      *
      * @return
      */
-    public String getMsgError() {
+    public synchronized String getMsgError() {
         return msgError;
     }
 
     /**
      * Delete all buffered messages
      */
-    public void clearMessages() {
+    public synchronized void clearMessages() {
         messages.clear();
     }
 
@@ -46,11 +51,55 @@ public class DummyMsgReceiver extends EmptyChatListener {
      * @param msg
      * @return
      */
-    public boolean hasReceived(TextMessage msg) {
+    public synchronized boolean hasReceived(TextMessage msg) {
         // return messages.contains(msg);
         for (TextMessage m : messages) {
             if (m.equals(msg)) return true;
         }
         return false;
     }
+
+    /**
+     * Return true if all the given messages have been received by this listener
+     *
+     * @param msgs
+     * @return
+     */
+    public synchronized boolean hasReceivedAll(Collection<TextMessage> msgs) {
+        return messages.size() >= msgs.size() && new HashSet<>(messages).containsAll(msgs);
+    }
+
+    /**
+     * Wait until the given message has been received by this listener
+     *
+     * @param msg
+     * @return true if received, false on timeout
+     */
+    public boolean awaitMessage(TextMessage msg) throws InterruptedException {
+        return await(() -> hasReceived(msg));
+    }
+
+    /**
+     * Wait until all the given messages have been received by this listener
+     *
+     * @param msgs
+     * @return true if received, false on timeout
+     */
+    public boolean awaitMessages(Collection<TextMessage> msgs) throws InterruptedException {
+        return await(() -> hasReceivedAll(msgs));
+    }
+
+    /**
+     * @return a copy of the messages received, in the order they arrived
+     */
+    public synchronized List<TextMessage> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    /**
+     * @return the number of messages received
+     */
+    public synchronized int getCount() {
+        return messages.size();
+    }
 }
@@ -1,12 +1,11 @@
 package no.ntnu.datakomm.chat.helpers;
 
-import no.ntnu.datakomm.chat.ChatListener;
 import no.ntnu.datakomm.chat.TextMessage;
 
 /**
  * A class that just remembers what responses have been received
  */
-public class DummyResponseCounter implements ChatListener {
+public class DummyResponseCounter extends EmptyChatListener {
 
     public int loginSuccess = 0;
     public int loginError = 0;
@@ -18,42 +17,72 @@ public class DummyResponseCounter implements ChatListener {
     public int disconn = 0;
 
     @Override
-    public void onLoginResult(boolean success, String errMsg) {
+    public synchronized void onLoginResult(boolean success, String errMsg) {
         if (success) {
             loginSuccess++;
         } else {
             loginError++;
         }
+        signal();
     }
 
     @Override
-    public void onMessageReceived(TextMessage message) {
+    public synchronized void onMessageReceived(TextMessage message) {
         msg++;
+        signal();
     }
 
     @Override
-    public void onMessageError(String errMsg) {
+    public synchronized void onMessageError(String errMsg) {
         msgErr++;
+        signal();
     }
 
     @Override
-    public void onUserList(String[] usernames) {
+    public synchronized void onUserList(String[] usernames) {
         userList++;
+        signal();
     }
 
     @Override
-    public void onSupportedCommands(String[] commands) {
+    public synchronized void onSupportedCommands(String[] commands) {
         supported++;
+        signal();
     }
 
     @Override
-    public void onCommandError(String errMsg) {
+    public synchronized void onCommandError(String errMsg) {
         cmdErr++;
+        signal();
     }
 
     @Override
-    public void onDisconnect() {
+    public synchronized void onDisconnect() {
         disconn++;
+        signal();
+    }
+
+    /**
+     * Wait until this many login results (success or error) have been received
+     *
+     * @param count the number of login results
+     * @return true if received, false on timeout
+     */
+    public boolean awaitLoginResults(int count) throws InterruptedException {
+        return await(() -> loginSuccess + loginError >= count);
+    }
+
+    /**
+     * Reset all the counters to zero
+     */
+    public synchronized void reset() {
+        loginSuccess = 0;
+        loginError = 0;
+        msg = 0;
+        msgErr = 0;
+        userList = 0;
+        supported = 0;
+        cmdErr = 0;
+        disconn = 0;
     }
-    
 }
@@ -9,18 +9,21 @@ import java.util.Set;
  */
 public class DummySupportedReceiver extends EmptyChatListener {
     private Set<String> commands = new HashSet<>();
+    private int listings = 0;
 
     @Override
-    public void onSupportedCommands(String[] commands) {
+    public synchronized void onSupportedCommands(String[] commands) {
         // Convert the String[] to List<String>, then to HashMap<String>
         this.commands.addAll(Arrays.asList(commands));
+        listings++;
+        signal();
     }
 
     /**
      * Return the number of commands received in the last listing.
      * @return
      */
-    public int getCount() {
+    public synchronized int getCount() {
         return commands.size();
     }
 
@@ -29,7 +32,15 @@ public class DummySupportedReceiver extends EmptyChatListener {
      * @param command
      * @return
      */
-    public boolean contains(String command) {
+    public synchronized boolean contains(String command) {
         return commands.contains(command);
     }
+
+    /**
+     * Wait until a command listing has been received
+     * @return true if received, false on timeout
+     */
+    public boolean awaitListing() throws InterruptedException {
+        return await(() -> listings > 0);
+    }
 }
@@ -9,18 +9,21 @@ import java.util.Set;
  */
 public class DummyUserListingReceiver extends EmptyChatListener {
     private Set<String> usernames = new HashSet<>();
+    private int listings = 0;
 
     @Override
-    public void onUserList(String[] usernames) {
+    public synchronized void onUserList(String[] usernames) {
         // Convert the String[] to List<String>, then to HashMap<String>
         this.usernames.addAll(Arrays.asList(usernames));
+        listings++;
+        signal();
     }
 
     /**
      * Return the number of users received in the last listing
      * @return
      */
-    public int getCount() {
+    public synchronized int getCount() {
         return usernames.size();
     }
 
@@ -29,7 +32,15 @@ public class DummyUserListingReceiver extends EmptyChatListener {
      * @param username
      * @return
      */
-    public boolean contains(String username) {
+    public synchronized boolean contains(String username) {
         return usernames.contains(username);
     }
+
+    /**
+     * Wait until a user listing has been received
+     * @return true if received, false on timeout
+     */
+    public boolean awaitListing() throws InterruptedException {
+        return await(() -> listings > 0);
+    }
 }
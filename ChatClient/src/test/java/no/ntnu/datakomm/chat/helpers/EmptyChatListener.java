@@ -1,13 +1,24 @@
 package no.ntnu.datakomm.chat.helpers;
 
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
 import no.ntnu.datakomm.chat.ChatListener;
 import no.ntnu.datakomm.chat.TextMessage;
 
 /**
  * An empty template class for ChatListener. Can be used as a base class to
  * avoid typing all methods which are not necessary.
+ * <p>
+ * The events arrive on the client's listening thread. Instead of sleeping for a fixed time, a
+ * test waits with {@link #await(BooleanSupplier)} until the events it expects have arrived.
+ * Subclasses remembering events do so in synchronized methods, and call {@link #signal()}.
  */
 public class EmptyChatListener implements ChatListener {
+    /**
+     * How long {@link #await(BooleanSupplier)} waits at most, in milliseconds.
+     */
+    public static final long TIMEOUT_MILLIS = 5000;
 
     @Override
     public void onLoginResult(boolean success, String errMsg) {
@@ -36,4 +47,31 @@ public class EmptyChatListener implements ChatListener {
     @Override
     public void onDisconnect() {
     }
+
+    /**
+     * Wait until a condition on the events received holds, at most {@link #TIMEOUT_MILLIS}.
+     *
+     * @param condition checked with the listener locked, every time an event arrives
+     * @return true if the condition holds, false on timeout
+     * @throws InterruptedException When the test is interrupted while waiting
+     */
+    public synchronized boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+        while (!condition.getAsBoolean()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Wake up the tests waiting for events. Called with the listener locked, after an event is
+     * remembered.
+     */
+    protected void signal() {
+        notifyAll();
+    }
 }
@@ -0,0 +1,121 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.TCPClient;
+import no.ntnu.datakomm.chat.server.ChatServer;
+import no.ntnu.datakomm.chat.server.OutboundLimits;
+import org.junit.rules.ExternalResource;
+
+/**
+ * A chat server on the loopback interface, started before every test and stopped after it. The
+ * tests do not depend on a remote server: no network, no other students using the same usernames,
+ * and a fresh server for every test. Use it as a JUnit rule:
+ * <pre>
+ * &#64;Rule
+ * public LocalChatServer server = new LocalChatServer();
+ * </pre>
+ */
+public class LocalChatServer extends ExternalResource {
+
+    private final InetAddress host = InetAddress.getLoopbackAddress();
+    private final List<TCPClient> clients = new ArrayList<>();
+    private volatile ChatServer server;
+
+    @Override
+    protected void before() throws Throwable {
+        // Port 0: any free port, so that tests can run in parallel with anything else
+        server = new ChatServer(new InetSocketAddress(host, 0), OutboundLimits.DEFAULT);
+        server.start();
+    }
+
+    @Override
+    protected void after() {
+        // Close the clients a failed test left connected, so their threads do not outlive it
+        for (TCPClient client : clients) {
+            client.disconnect();
+        }
+        clients.clear();
+        server.stop();
+    }
+
+    /**
+     * Stop the server and start a new one on the same port. All the clients lose their
+     * connection, and can connect again.
+     *
+     * @throws IOException when the new server can not listen on the port
+     */
+    public void restart() throws IOException {
+        stop();
+        start();
+    }
+
+    /**
+     * Stop the server, as if it went down. All the clients lose their connection, and can not
+     * connect again until {@link #start()}.
+     */
+    public void stop() {
+        server.stop();
+    }
+
+    /**
+     * Start a new server on the port of the stopped one.
+     *
+     * @throws IOException when the new server can not listen on the port
+     */
+    public void start() throws IOException {
+        InetSocketAddress address = new InetSocketAddress(host, server.getPort());
+        server = new ChatServer(address, OutboundLimits.DEFAULT);
+        server.start();
+    }
+
+    /**
+     * @return host address of the server
+     */
+    public String getHost() {
+        return host.getHostAddress();
+    }
+
+    /**
+     * @return TCP port of the server
+     */
+    public int getPort() {
+        return server.getPort();
+    }
+
+    /**
+     * @return the server itself
+     */
+    public ChatServer getServer() {
+        return server;
+    }
+
+    /**
+     * Create a client which is disconnected after the test. It is not connected yet.
+     *
+     * @return the new client
+     */
+    public TCPClient newClient() {
+        TCPClient client = new TCPClient();
+        clients.add(client);
+        return client;
+    }
+
+    /**
+     * Wait until the client has received everything the server sent it before. The server answers
+     * the requests of one client in order, so when the response to a user listing arrives, every
+     * message sent to the client earlier has arrived as well. This lets a test check that a client
+     * did not receive something, without sleeping.
+     *
+     * @param client a connected client
+     * @throws Exception when the response does not arrive in time
+     */
+    public void sync(TCPClient client) throws Exception {
+        client.users().get(EmptyChatListener.TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,222 @@
+package no.ntnu.datakomm.chat.server;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+import no.ntnu.datakomm.chat.TCPClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Clients using text lines and clients using binary frames in the same chat room.
+ */
+public class MixedFramingTest {
+    // The longest text alice can send: her name and the frame header must fit in a frame
+    private static final int LONGEST_TEXT = BinaryFraming.MAX_FRAME_LENGTH - 2 - 1 - "alice ".length();
+
+    private ChatServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+    private Socket alice;
+    private BufferedReader aliceIn;
+    private Socket bob;
+    private DataInputStream bobIn;
+    private BufferedReader carolIn;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ChatServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), OutboundLimits.DEFAULT);
+        server.start();
+        alice = connect();
+        aliceIn = reader(alice);
+        assertEquals("loginok", request(alice, aliceIn, "login alice"));
+
+        bob = connect();
+        bobIn = new DataInputStream(bob.getInputStream());
+        write(bob, (BinaryFraming.NEGOTIATION_REQUEST + "\n").getBytes(StandardCharsets.US_ASCII));
+        assertEquals(BinaryFraming.NEGOTIATION_ACCEPTED + "\n", readAscii(bobIn,
+                BinaryFraming.NEGOTIATION_ACCEPTED.length() + 1));
+        writeFrame(bob, "login bob");
+        assertEquals("loginok", readFrame(bobIn));
+
+        Socket carol = connect();
+        carolIn = reader(carol);
+        assertEquals("loginok", request(carol, carolIn, "login carol"));
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Test that the longest message is delivered to both text and binary clients, and that a longer
+     * one is refused without disturbing the server
+     */
+    @Test
+    public void testLongestMessage() throws IOException {
+        String text = "x".repeat(LONGEST_TEXT);
+        assertEquals("msgok 2", request(alice, aliceIn, "msg " + text));
+        assertEquals("msg alice " + text, readFrame(bobIn));
+        assertEquals("msg alice " + text, readLine(carolIn));
+
+        assertEquals("msgerr message too long", request(alice, aliceIn, "msg " + text + "y"));
+        // Counted in bytes, not in characters
+        String wide = "æ".repeat(LONGEST_TEXT / 2 + 1);
+        assertEquals("msgerr message too long", request(alice, aliceIn, "msg " + wide));
+
+        assertEquals("msgok 2", request(alice, aliceIn, "msg still here"));
+        assertEquals("msg alice still here", readFrame(bobIn));
+        assertEquals("msg alice still here", readLine(carolIn));
+        assertEquals("users alice bob carol", request(alice, aliceIn, "users"));
+    }
+
+    /**
+     * Test that a private message is refused when the sender's name is longer than the
+     * recipient's, so that the line received fits but the one to deliver does not
+     */
+    @Test
+    public void testLongestPrivateMessage() throws IOException {
+        String longName = "alice".repeat(4);
+        assertEquals("loginok", request(alice, aliceIn, "login " + longName));
+        String command = "privmsg bob ";
+        String text = "x".repeat(BinaryFraming.MAX_FRAME_LENGTH - command.length() - 1);
+        assertEquals("msgerr message too long", request(alice, aliceIn, command + text));
+
+        String longest = text.substring(0, LONGEST_TEXT - longName.length() + "alice".length());
+        assertEquals("msgok 1", request(alice, aliceIn, command + longest));
+        assertEquals("privmsg " + longName + " " + longest, readFrame(bobIn));
+    }
+
+    /**
+     * Test that a user list too long for one frame is split over several frames, which the client
+     * joins again, while a text client gets it in one line
+     */
+    @Test
+    public void testUserListOverSeveralFrames() throws Exception {
+        List<String> expected = new ArrayList<>(List.of("alice", "bob", "carol"));
+        for (int i = 0; i < 5; i++) {
+            String username = "user" + i + "x".repeat(3000);
+            Socket socket = connect();
+            assertEquals("loginok", request(socket, reader(socket), "login " + username));
+            expected.add(username);
+        }
+        String list = String.join(" ", expected);
+        assertEquals("users " + list, request(alice, aliceIn, "users"));
+
+        writeFrame(bob, "users");
+        StringBuilder joined = new StringBuilder();
+        int frames = 0;
+        String part;
+        do {
+            part = readFrame(bobIn);
+            frames++;
+            assertTrue(part.startsWith("users "));
+            joined.append(part, "users ".length(), part.length());
+        } while (part.endsWith(" "));
+        assertEquals(list, joined.toString());
+        assertTrue(frames >= 2);
+
+        TCPClient client = new TCPClient();
+        try {
+            assertTrue(client.connect(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort(), true));
+            assertTrue(client.isBinaryFraming());
+            client.startListenThread();
+            List<String> users = client.users().get(5, TimeUnit.SECONDS);
+            assertEquals(expected, users);
+            // The next list is not mixed up with the parts of this one
+            assertEquals(expected, client.users().get(5, TimeUnit.SECONDS));
+        } finally {
+            client.disconnect();
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+        sockets.add(socket);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static BufferedReader reader(Socket socket) throws IOException {
+        return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static void write(Socket socket, byte[] bytes) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+    /**
+     * Send a command as a line and read its response, skipping the presence notifications.
+     */
+    private static String request(Socket socket, BufferedReader in, String command) throws IOException {
+        write(socket, (command + "\n").getBytes(StandardCharsets.UTF_8));
+        return readLine(in);
+    }
+
+    private static String readLine(BufferedReader in) throws IOException {
+        String line;
+        do {
+            line = in.readLine();
+        } while (line != null && (line.startsWith("joined ") || line.startsWith("left ")));
+        return line;
+    }
+
+    private static String readAscii(DataInputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private static void writeFrame(Socket socket, String command) throws IOException {
+        ByteBuffer frame = BinaryFraming.encode(command);
+        write(socket, frame.array());
+    }
+
+    /**
+     * Read the next frame, skipping the presence notifications, and convert it to a line.
+     */
+    private static String readFrame(DataInputStream in) throws IOException {
+        while (true) {
+            // The varint length first, to know how many bytes follow
+            ByteBuffer header = ByteBuffer.allocate(3);
+            int length = 0;
+            byte b;
+            do {
+                b = in.readByte();
+                length |= (b & 0x7F) << 7 * header.position();
+                header.put(b);
+            } while (b < 0);
+            ByteBuffer buffer = ByteBuffer.allocate(header.position() + length);
+            buffer.put(header.flip());
+            in.readFully(buffer.array(), buffer.position(), length);
+            buffer.clear();
+            BinaryFraming.Frame frame = new BinaryFraming.Frame(buffer);
+            assertTrue(BinaryFraming.decode(buffer, frame));
+            BinaryFraming.Opcode opcode = frame.getOpcode();
+            if (opcode != BinaryFraming.Opcode.JOINED && opcode != BinaryFraming.Opcode.LEFT) {
+                String argument = frame.getArgument();
+                return argument.isEmpty() ? opcode.getWord() : opcode.getWord() + " " + argument;
+            }
+        }
+    }
+}
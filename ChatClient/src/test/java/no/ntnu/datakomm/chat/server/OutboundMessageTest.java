@@ -0,0 +1,74 @@
+package no.ntnu.datakomm.chat.server;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class OutboundMessageTest {
+
+    /**
+     * Test that a message is encoded once per framing, into a read-only buffer shared by all the
+     * recipients
+     */
+    @Test
+    public void testEncodedOnce() {
+        OutboundMessage message = new OutboundMessage("msg alice hello");
+        ByteBuffer text = message.encoded(false);
+        ByteBuffer binary = message.encoded(true);
+        assertSame(text, message.encoded(false));
+        assertSame(binary, message.encoded(true));
+        assertTrue(text.isReadOnly());
+        assertTrue(binary.isReadOnly());
+
+        // A recipient consumes its own view, the shared buffer is unchanged
+        ByteBuffer view = text.duplicate();
+        view.position(view.limit());
+        assertEquals("msg alice hello\n", decodeText(message.encoded(false)));
+    }
+
+    /**
+     * Test that the text line and the binary frame carry the same command, and that newlines are
+     * only kept in the frame
+     */
+    @Test
+    public void testFramings() throws ProtocolException {
+        OutboundMessage message = new OutboundMessage("msg alice first\r\nsecond\nthird");
+        assertEquals("msg alice first second third\n", decodeText(message.encoded(false)));
+
+        // Decoded from a copy: the frame is read-only, decoding needs a heap buffer's array
+        ByteBuffer frame = ByteBuffer.allocate(BinaryFraming.MAX_FRAME_LENGTH);
+        frame.put(message.encoded(true).duplicate()).flip();
+        BinaryFraming.Frame decoded = new BinaryFraming.Frame(frame);
+        assertTrue(BinaryFraming.decode(frame, decoded));
+        assertEquals(BinaryFraming.Opcode.MSG, decoded.getOpcode());
+        assertEquals("alice first\r\nsecond\nthird", decoded.getArgument());
+    }
+
+    /**
+     * Test that a message too long for a frame can still be sent as a line, but not as a frame
+     */
+    @Test
+    public void testTooLongForFrame() {
+        String line = "msg alice " + "x".repeat(BinaryFraming.MAX_FRAME_LENGTH);
+        OutboundMessage message = new OutboundMessage(line);
+        assertEquals(line + "\n", decodeText(message.encoded(false)));
+        try {
+            message.encoded(true);
+            fail("A message longer than a frame was encoded");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static String decodeText(ByteBuffer encoded) {
+        ByteBuffer view = encoded.duplicate();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
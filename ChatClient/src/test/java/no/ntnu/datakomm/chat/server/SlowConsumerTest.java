@@ -0,0 +1,201 @@
+package no.ntnu.datakomm.chat.server;
+
+import no.ntnu.datakomm.chat.SocketProfile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * A client which stops reading gets its presence notifications coalesced, then its public messages
+ * dropped, and is finally disconnected, at the levels of its {@link OutboundLimits}.
+ */
+public class SlowConsumerTest {
+    private static final OutboundLimits LIMITS = new OutboundLimits(16 * 1024, 32 * 1024, 64 * 1024);
+    private static final String EVICTION_REASON = "cmderr disconnected: too far behind reading messages";
+    // Enough messages to fill the limits several times over, whatever the kernel buffers take
+    private static final int MAX_MESSAGES = 10000;
+    private static final String TEXT = "x".repeat(1000);
+
+    private ChatServer server;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ChatServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), LIMITS);
+        // Small kernel buffers, so the data queued by the server quickly reaches the limits
+        server.setSocketProfile(SocketProfile.MANY_IDLE_CONNECTIONS);
+        server.start();
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        server.stop();
+    }
+
+    /**
+     * Test that public messages are dropped from the drop level on, not before, and that presence
+     * notifications are coalesced while the client is congested
+     */
+    @Test
+    public void testDropPublicMessages() throws IOException {
+        Socket slow = connect();
+        login(slow, "slow");
+        Socket sender = connect();
+        BufferedReader senderIn = login(sender, "sender");
+
+        int sent = 0;
+        SessionStats stats = stats("slow");
+        while (stats.getDroppedMessages() == 0) {
+            assertTrue("No message dropped after " + sent + " messages: " + stats, sent < MAX_MESSAGES);
+            int peakBefore = stats.getPeakQueuedBytes();
+            String response = request(sender, senderIn, "msg " + TEXT);
+            sent++;
+            stats = stats("slow");
+            if (stats.getDroppedMessages() > 0) {
+                // The first message dropped, once the queue has reached the drop level
+                assertEquals("msgok 0", response);
+                assertTrue(stats.toString(), peakBefore >= LIMITS.getDropLevel());
+            } else {
+                assertEquals("msgok 1", response);
+            }
+            assertTrue(stats.toString(), stats.getPeakQueuedBytes() <= LIMITS.getMaxQueuedBytes());
+        }
+        assertTrue(stats.isCongested());
+
+        // Further public messages are dropped too, the queue does not grow
+        int queued = stats.getQueuedBytes();
+        for (int i = 0; i < 10; i++) {
+            assertEquals("msgok 0", request(sender, senderIn, "msg " + TEXT));
+        }
+        stats = stats("slow");
+        assertEquals(11, stats.getDroppedMessages());
+        assertTrue(stats.getQueuedBytes() <= queued);
+        assertEquals(11, server.getDroppedCount());
+
+        // A user joining and leaving twice: the later notifications replace the held ones
+        for (int i = 0; i < 2; i++) {
+            Socket visitor = connect();
+            login(visitor, "visitor");
+            visitor.close();
+            awaitGone("visitor");
+        }
+        assertEquals(3, stats("slow").getCoalescedMessages());
+        assertEquals(0, server.getEvictedCount());
+    }
+
+    /**
+     * Test that a client whose queue would go above the maximum is disconnected, while the other
+     * clients go on
+     */
+    @Test
+    public void testEvictSlowConsumer() throws IOException {
+        Socket slow = connect();
+        BufferedReader slowIn = login(slow, "slow");
+        Socket sender = connect();
+        BufferedReader senderIn = login(sender, "sender");
+
+        // Private messages are queued even when public ones are dropped, until the maximum
+        int sent = 0;
+        String response = "msgok 1";
+        while (response.equals("msgok 1")) {
+            assertTrue("Not disconnected after " + sent + " messages", sent < MAX_MESSAGES);
+            SessionStats stats = findStats("slow");
+            // Null once the response to the last message is written, the eviction follows it
+            if (stats != null) {
+                assertTrue(stats.toString(), stats.getPeakQueuedBytes() <= LIMITS.getMaxQueuedBytes());
+            }
+            response = request(sender, senderIn, "privmsg slow " + TEXT);
+            sent++;
+        }
+        // The message which did not fit disconnected the client, before the next one was read
+        assertEquals("msgerr incorrect recipient slow", response);
+        assertEquals(1, server.getEvictedCount());
+        assertTrue(sent * (long) TEXT.length() > LIMITS.getMaxQueuedBytes());
+        assertNull(findStats("slow"));
+        assertEquals("msgok 0", request(sender, senderIn, "msg still here"));
+
+        // The slow client gets whole messages up to the disconnection, the rest is dropped. The
+        // last line may be cut short, or be the reason, depending on the room left in the socket.
+        String line;
+        String last = null;
+        int received = 0;
+        while ((line = slowIn.readLine()) != null) {
+            if (last != null && !last.startsWith("joined ")) {
+                assertEquals("privmsg sender " + TEXT, last);
+                received++;
+            }
+            last = line;
+        }
+        assertTrue(received < sent);
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        sockets.add(socket);
+        socket.setReceiveBufferSize(4096);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()));
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private BufferedReader login(Socket socket, String username) throws IOException {
+        Reader reader = new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8);
+        BufferedReader in = new BufferedReader(reader, 1);
+        assertEquals("loginok", request(socket, in, "login " + username));
+        return in;
+    }
+
+    /**
+     * Send a command and read its response, skipping the presence notifications.
+     */
+    private static String request(Socket socket, BufferedReader in, String command) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        String line;
+        do {
+            line = in.readLine();
+        } while (line != null && (line.startsWith("joined ") || line.startsWith("left ")));
+        return line;
+    }
+
+    private SessionStats stats(String username) {
+        SessionStats stats = findStats(username);
+        assertNotNull("No session for " + username, stats);
+        return stats;
+    }
+
+    private SessionStats findStats(String username) {
+        for (SessionStats stats : server.getSessionStats()) {
+            if (username.equals(stats.getUsername())) {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    private void awaitGone(String username) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (findStats(username) != null) {
+            assertTrue(username + " is still connected", System.currentTimeMillis() < deadline);
+            Thread.onSpinWait();
+        }
+    }
+}
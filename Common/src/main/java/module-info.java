@@ -0,0 +1,6 @@
+module no.ntnu.datakomm.common {
+  requires java.logging;
+  requires java.management;
+
+  exports no.ntnu.datakomm.common;
+}
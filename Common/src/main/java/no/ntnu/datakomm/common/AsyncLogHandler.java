@@ -0,0 +1,152 @@
+package no.ntnu.datakomm.common;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * A log handler that keeps the formatting and writing of log records off the threads that log.
+ * Records are put in a fixed-size ring buffer, and a single writer thread passes them on to the
+ * target handler, flushing it once every time the buffer is emptied. Logging never blocks: when the
+ * buffer is full the record is dropped and counted, and the writer reports the number of dropped
+ * records once it catches up.
+ * <p>
+ * The target formats the records on the writer thread, so its formatter should not use the source
+ * class or method of a record: they would be looked up on the wrong thread.
+ */
+public class AsyncLogHandler extends Handler {
+    // How long the idle writer sleeps before it checks the buffer again, in case a wakeup was missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Handler target;
+    private final AtomicReferenceArray<LogRecord> slots;
+    private final int mask;
+    // Sequence number of the next slot to claim (producers) and to read (writer)
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private volatile boolean writerParked;
+    private volatile boolean closed;
+
+    /**
+     * @param target   the handler that formats and writes the records
+     * @param capacity the number of records the buffer holds, rounded up to a power of two
+     */
+    public AsyncLogHandler(Handler target, int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid log buffer capacity: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.target = target;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.writer = new Thread(this::writeRecords, "log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (this.closed || !this.isLoggable(record)) {
+            return;
+        }
+        long slot;
+        do {
+            slot = this.tail.get();
+            if (slot - this.head > this.mask) {
+                this.dropped.increment();
+                return;
+            }
+        } while (!this.tail.compareAndSet(slot, slot + 1));
+        this.slots.set((int) slot & this.mask, record);
+        if (this.writerParked) {
+            LockSupport.unpark(this.writer);
+        }
+    }
+
+    /**
+     * Wait until the records published so far are written, and flush the target.
+     */
+    @Override
+    public void flush() {
+        long published = this.tail.get();
+        while (this.head < published && this.writer.isAlive()) {
+            LockSupport.unpark(this.writer);
+            Thread.yield();
+        }
+        this.target.flush();
+    }
+
+    /**
+     * Write the records still in the buffer, stop the writer thread and close the target.
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        LockSupport.unpark(this.writer);
+        try {
+            this.writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        this.target.close();
+    }
+
+    /**
+     * @return the number of records dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return this.dropped.sum();
+    }
+
+    private void writeRecords() {
+        long reportedDrops = 0;
+        while (true) {
+            long next = this.head;
+            int index = (int) next & this.mask;
+            LogRecord record = this.slots.get(index);
+            if (record != null) {
+                this.slots.lazySet(index, null);
+                this.head = next + 1;
+                this.write(record);
+            } else if (next != this.tail.get()) {
+                // The slot is claimed, but the record is not stored yet
+                Thread.yield();
+            } else {
+                long drops = this.dropped.sum();
+                if (drops > reportedDrops) {
+                    this.write(new LogRecord(Level.WARNING, "Log buffer full, dropped "
+                            + (drops - reportedDrops) + " log records"));
+                    reportedDrops = drops;
+                }
+                this.target.flush();
+                if (this.closed) {
+                    return;
+                }
+                this.writerParked = true;
+                if (this.head == this.tail.get()) {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                this.writerParked = false;
+            }
+        }
+    }
+
+    private void write(LogRecord record) {
+        try {
+            this.target.publish(record);
+        } catch (RuntimeException e) {
+            this.reportError("Could not write log record", e, ErrorManager.WRITE_FAILURE);
+        }
+    }
+}
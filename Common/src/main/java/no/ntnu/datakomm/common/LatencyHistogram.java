@@ -0,0 +1,145 @@
+package no.ntnu.datakomm.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram in the style of HdrHistogram: values are counted in buckets whose width
+ * grows with the value, so every recorded value is kept with a relative error of at most 1/64
+ * (about 1.6%), from one microsecond up to hours, in a fixed amount of memory. Recording is
+ * lock-free and can be done from many threads at the same time.
+ * <p>
+ * Values below 128 get a bucket each. Above that, every power of two is split into 64 buckets
+ * of equal width.
+ * <p>
+ * The values recorded during an interval are found by comparing two copies, see
+ * {@link #since(LatencyHistogram)}, so the recording threads never have to switch histograms.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = SUB_BUCKET_COUNT * 2;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * Record one value.
+     *
+     * @param value the value to record, for example a latency in microseconds. Negative values are
+     *              recorded as zero.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        this.counts.incrementAndGet(bucketOf(value));
+        this.totalCount.incrementAndGet();
+        long max;
+        do {
+            max = this.maxValue.get();
+        } while (value > max && !this.maxValue.compareAndSet(max, value));
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getTotalCount() {
+        return this.totalCount.get();
+    }
+
+    /**
+     * @return the largest value recorded, exactly
+     */
+    public long getMaxValue() {
+        return this.maxValue.get();
+    }
+
+    /**
+     * Get the value at a percentile: the given percentage of the recorded values are less than or
+     * equal to it (within the precision of the histogram).
+     *
+     * @param percentile the percentile, between 0 and 100
+     * @return the value at the percentile, or 0 when nothing is recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = this.totalCount.get();
+        if (total == 0) {
+            return 0;
+        }
+        long wanted = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += this.counts.get(bucket);
+            if (seen >= wanted) {
+                return Math.min(highestValueOf(bucket), this.maxValue.get());
+            }
+        }
+        return this.maxValue.get();
+    }
+
+    /**
+     * Copy the values recorded so far. Values recorded by other threads while copying may be
+     * left out, they are in the next copy.
+     *
+     * @return a histogram with the same values, not changed by later recording
+     */
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.maxValue.set(this.maxValue.get());
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            long count = this.counts.get(bucket);
+            copy.counts.set(bucket, count);
+            total += count;
+        }
+        copy.totalCount.set(total);
+        return copy;
+    }
+
+    /**
+     * Get the values recorded between an earlier copy of this histogram and this one. The largest
+     * value is then only known within the precision of the histogram.
+     *
+     * @param earlier an earlier {@link #copy()} of the same histogram
+     * @return the values in this histogram and not in the earlier one
+     */
+    public LatencyHistogram since(LatencyHistogram earlier) {
+        LatencyHistogram difference = new LatencyHistogram();
+        long total = 0;
+        int highestBucket = -1;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            long count = this.counts.get(bucket) - earlier.counts.get(bucket);
+            if (count > 0) {
+                difference.counts.set(bucket, count);
+                total += count;
+                highestBucket = bucket;
+            }
+        }
+        difference.totalCount.set(total);
+        if (highestBucket >= 0) {
+            difference.maxValue.set(Math.min(highestValueOf(highestBucket), this.maxValue.get()));
+        }
+        return difference;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < LINEAR_LIMIT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+        return LINEAR_LIMIT + (shift - 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    private static long highestValueOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) {
+            return bucket;
+        }
+        int shift = (bucket - LINEAR_LIMIT) / SUB_BUCKET_COUNT + 1;
+        long top = (bucket - LINEAR_LIMIT) % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+        return ((top + 1) << shift) - 1;
+    }
+}
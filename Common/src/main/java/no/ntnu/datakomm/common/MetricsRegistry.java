@@ -0,0 +1,296 @@
+package no.ntnu.datakomm.common;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * A set of named metrics: counters, gauges and latency histograms. Updating a metric is lock-free
+ * and cheap enough to be done for every request: counters are {@link LongAdder}s, histograms are
+ * {@link LatencyHistogram}s. Look the metrics up once and keep them in fields, the lookup by name
+ * is not meant for the hot path.
+ * <p>
+ * The metrics can be read over JMX, see {@link #registerMBean()}, and written to the log
+ * periodically, see {@link #startReporting(long, TimeUnit)}.
+ */
+public class MetricsRegistry {
+    // Percentiles of the histograms shown in the text dump and over JMX
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+
+    private final String domain;
+    private final String name;
+    private final Logger logger;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<>();
+
+    private ObjectName objectName;
+    private ScheduledExecutorService reporter;
+
+    /**
+     * @param domain the package of the application using the registry: the JMX domain of the
+     *               MBean, and the parent of the logger the reports are written to, so that they
+     *               go where the application's own logs go
+     * @param name   the name of the registry, used in the JMX object name and the text dump
+     */
+    public MetricsRegistry(String domain, String name) {
+        this.domain = domain;
+        this.name = name;
+        this.logger = Logger.getLogger(domain + "." + MetricsRegistry.class.getSimpleName());
+    }
+
+    /**
+     * @return the name of the registry
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Get a counter, created the first time it is asked for.
+     *
+     * @param name the name of the counter
+     * @return the counter
+     */
+    public LongAdder counter(String name) {
+        return this.counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Register a gauge: a value which is read when the metrics are reported.
+     *
+     * @param name  the name of the gauge
+     * @param value reads the current value. Called from the reporting thread and JMX threads.
+     */
+    public void gauge(String name, LongSupplier value) {
+        this.gauges.put(name, value);
+    }
+
+    /**
+     * Get a latency histogram, created the first time it is asked for.
+     *
+     * @param name the name of the histogram. By convention it ends with the unit of the recorded
+     *             values, for example {@code request.latency.us}.
+     * @return the histogram
+     */
+    public LatencyHistogram histogram(String name) {
+        return this.histograms.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    /**
+     * @return the current value of every metric as text, one metric per line
+     */
+    public String dump() {
+        return this.dump(null, 0);
+    }
+
+    /**
+     * Make the metrics readable over JMX, as the attributes of an MBean named
+     * {@code <domain>:type=Metrics,name=<registry name>}. A histogram shows up as one
+     * attribute for the count, the max and each percentile. Nothing happens if the registry is
+     * already registered, or if another MBean has the same name.
+     */
+    public synchronized void registerMBean() {
+        if (this.objectName != null) {
+            return;
+        }
+        try {
+            ObjectName mbeanName = new ObjectName(this.domain + ":type=Metrics,name="
+                    + ObjectName.quote(this.name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(), mbeanName);
+            this.objectName = mbeanName;
+        } catch (JMException e) {
+            this.logger.log(Level.WARNING, "Could not register metrics " + this.name + " over JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Remove the MBean registered by {@link #registerMBean()}.
+     */
+    public synchronized void unregisterMBean() {
+        if (this.objectName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(this.objectName);
+        } catch (JMException e) {
+            this.logger.log(Level.WARNING, "Could not unregister metrics " + this.name + ": " + e.getMessage());
+        }
+        this.objectName = null;
+    }
+
+    /**
+     * Write the metrics to the log at a fixed rate, on a background thread. Counters are shown
+     * together with their rate per second since the previous report.
+     *
+     * @param period the time between two reports
+     * @param unit   the unit of the period
+     */
+    public synchronized void startReporting(long period, TimeUnit unit) {
+        this.stopReporting();
+        this.reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Map<String, Long> previousCounts = new HashMap<>();
+        double seconds = unit.toNanos(period) / 1e9;
+        this.reporter.scheduleAtFixedRate(() -> this.logger.info(this.dump(previousCounts, seconds)),
+                period, period, unit);
+    }
+
+    /**
+     * Stop the reports started by {@link #startReporting(long, TimeUnit)}.
+     */
+    public synchronized void stopReporting() {
+        if (this.reporter != null) {
+            this.reporter.shutdownNow();
+            this.reporter = null;
+        }
+    }
+
+    /**
+     * @param previousCounts the counter values of the previous dump, updated with the current ones.
+     *                       Null when no rates are shown.
+     * @param seconds        the time since the previous dump
+     */
+    private String dump(Map<String, Long> previousCounts, double seconds) {
+        StringBuilder text = new StringBuilder("Metrics ").append(this.name).append(':');
+        for (Map.Entry<String, LongAdder> counter : this.counters.entrySet()) {
+            long count = counter.getValue().sum();
+            text.append(String.format("%n  %-28s %12d", counter.getKey(), count));
+            if (previousCounts != null) {
+                Long previous = previousCounts.put(counter.getKey(), count);
+                long delta = count - (previous != null ? previous : 0);
+                text.append(String.format("  %10.1f/s", delta / seconds));
+            }
+        }
+        for (Map.Entry<String, LongSupplier> gauge : this.gauges.entrySet()) {
+            text.append(String.format("%n  %-28s %12d", gauge.getKey(), gauge.getValue().getAsLong()));
+        }
+        for (Map.Entry<String, LatencyHistogram> histogram : this.histograms.entrySet()) {
+            LatencyHistogram values = histogram.getValue();
+            text.append(String.format("%n  %-28s %12d", histogram.getKey(), values.getTotalCount()));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                text.append(' ').append(PERCENTILE_NAMES[i]).append('=')
+                        .append(values.getValueAtPercentile(PERCENTILES[i]));
+            }
+            text.append(" max=").append(values.getMaxValue());
+        }
+        return text.toString();
+    }
+
+    /**
+     * The metrics as read-only MBean attributes, looked up by name whenever they are read. The
+     * attribute list is built again every time, so metrics added later show up as well.
+     */
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = counters.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            LongSupplier gauge = gauges.get(attribute);
+            if (gauge != null) {
+                return gauge.getAsLong();
+            }
+            int dot = attribute.lastIndexOf('.');
+            LatencyHistogram histogram = dot > 0 ? histograms.get(attribute.substring(0, dot)) : null;
+            if (histogram != null) {
+                String statistic = attribute.substring(dot + 1);
+                if (statistic.equals("count")) {
+                    return histogram.getTotalCount();
+                } else if (statistic.equals("max")) {
+                    return histogram.getMaxValue();
+                }
+                for (int i = 0; i < PERCENTILES.length; i++) {
+                    if (statistic.equals(PERCENTILE_NAMES[i])) {
+                        return histogram.getValueAtPercentile(PERCENTILES[i]);
+                    }
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, this.getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out of the list, as the DynamicMBean contract says
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            if (actionName.equals("dump") && (params == null || params.length == 0)) {
+                return dump();
+            }
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String counter : counters.keySet()) {
+                attributes.add(longAttribute(counter, "Counter"));
+            }
+            for (String gauge : gauges.keySet()) {
+                attributes.add(longAttribute(gauge, "Gauge"));
+            }
+            for (String histogram : histograms.keySet()) {
+                attributes.add(longAttribute(histogram + ".count", "Number of values recorded"));
+                for (String percentile : PERCENTILE_NAMES) {
+                    attributes.add(longAttribute(histogram + "." + percentile, "Percentile"));
+                }
+                attributes.add(longAttribute(histogram + ".max", "Largest value recorded"));
+            }
+            MBeanOperationInfo dumpOperation = new MBeanOperationInfo("dump", "All the metrics as text",
+                    null, String.class.getName(), MBeanOperationInfo.INFO);
+            return new MBeanInfo(MetricsRegistry.class.getName(), "Metrics " + name,
+                    attributes.toArray(new MBeanAttributeInfo[0]), null,
+                    new MBeanOperationInfo[]{dumpOperation}, null);
+        }
+
+        private MBeanAttributeInfo longAttribute(String name, String description) {
+            return new MBeanAttributeInfo(name, long.class.getName(), description, true, false, false);
+        }
+    }
+}
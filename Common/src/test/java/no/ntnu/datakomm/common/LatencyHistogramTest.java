@@ -0,0 +1,51 @@
+package no.ntnu.datakomm.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Test that a value alone in the histogram is found with a relative error of at most 1/64
+     */
+    @Test
+    public void testPrecision() {
+        for (long value = 1; value < 1L << 40; value = value * 3 / 2 + 1) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            histogram.record(Long.MAX_VALUE / 4);
+            long found = histogram.getValueAtPercentile(50);
+            assertTrue("value " + value + " found as " + found,
+                    found >= value && found - value <= value / 64);
+        }
+    }
+
+    /**
+     * Test the values recorded between two copies
+     */
+    @Test
+    public void testSince() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram first = histogram.copy();
+        for (int i = 0; i < 50; i++) {
+            histogram.record(1000);
+        }
+        LatencyHistogram second = histogram.copy();
+
+        LatencyHistogram interval = second.since(first);
+        assertEquals(50, interval.getTotalCount());
+        assertEquals(1000, interval.getValueAtPercentile(1), 1000 / 64);
+        assertEquals(1000, interval.getMaxValue(), 1000 / 64);
+
+        // Recording more does not change the copies
+        histogram.record(5);
+        assertEquals(150, second.getTotalCount());
+        assertEquals(0, second.since(second).getTotalCount());
+        assertEquals(0, second.since(second).getMaxValue());
+        assertEquals(151, histogram.copy().since(new LatencyHistogram()).getTotalCount());
+    }
+}
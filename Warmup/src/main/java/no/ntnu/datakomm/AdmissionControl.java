@@ -0,0 +1,104 @@
+package no.ntnu.datakomm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many client connections the server serves at the same time. At most
+ * {@code maxConcurrent} connections are served, and at most {@code queueDepth} more connections
+ * are accepted and wait for a free slot. Connections beyond that are rejected, so a connection
+ * storm can not make the server create an unlimited number of threads.
+ */
+class AdmissionControl {
+    // The response sent to a client that is rejected because the server is full
+    static final String BUSY_RESPONSE = "error server busy";
+
+    private final int maxAdmitted;
+    private final Semaphore slots;
+    private final AtomicInteger admitted = new AtomicInteger();
+
+    /**
+     * @param maxConcurrent maximum number of connections served at the same time
+     * @param queueDepth maximum number of connections waiting for a free slot
+     */
+    AdmissionControl(int maxConcurrent, int queueDepth) {
+        if (maxConcurrent < 1 || queueDepth < 0) {
+            throw new IllegalArgumentException("Invalid admission limits: " + maxConcurrent + "/" + queueDepth);
+        }
+        this.maxAdmitted = (int) Math.min(Integer.MAX_VALUE, (long) maxConcurrent + queueDepth);
+        this.slots = new Semaphore(maxConcurrent);
+    }
+
+    /**
+     * Creates an admission control that never rejects a connection.
+     *
+     * @return the unlimited admission control
+     */
+    static AdmissionControl unlimited() {
+        return new AdmissionControl(Integer.MAX_VALUE, 0);
+    }
+
+    /**
+     * Try to admit a new connection. When admitted, the connection must be served with a task
+     * returned by {@link #guard(Runnable, Closeable)}, which releases the admission when done.
+     *
+     * @return true when the connection is admitted, false when it must be rejected
+     */
+    boolean tryAdmit() {
+        int current;
+        do {
+            current = this.admitted.get();
+            if (current >= this.maxAdmitted) {
+                return false;
+            }
+        } while (!this.admitted.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    /**
+     * Wraps the task serving an admitted connection: the task waits for a free slot before it
+     * runs, and gives back both the slot and the admission when it finishes. When interrupted
+     * while waiting, the task never runs and the connection is closed instead.
+     *
+     * @param task       the task serving the connection
+     * @param connection the connection, closed when the task does not run
+     * @return the guarded task
+     */
+    Runnable guard(Runnable task, Closeable connection) {
+        return () -> {
+            try {
+                this.slots.acquire();
+                try {
+                    task.run();
+                } finally {
+                    this.slots.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                try {
+                    connection.close();
+                } catch (IOException closeException) {
+                    // The client is gone anyway
+                }
+            } finally {
+                this.admitted.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Give back an admission whose task will never run, for example because the executor refused it.
+     */
+    void release() {
+        this.admitted.decrementAndGet();
+    }
+
+    /**
+     * @return the number of admitted connections, both served and waiting
+     */
+    int getAdmittedCount() {
+        return this.admitted.get();
+    }
+}
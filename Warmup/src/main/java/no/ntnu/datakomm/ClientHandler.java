@@ -1,81 +1,141 @@
 package no.ntnu.datakomm;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
 
-public class ClientHandler extends Thread {
+/**
+ * Serves one client connection of the blocking server. It is a task rather than a thread of its
+ * own, so the server decides how client handlers are executed, see {@link ExecutionStrategy}.
+ * <p>
+ * The client may pipeline its requests. Every read answers all the complete requests received so
+ * far, and the responses are written to the socket in batches, see {@link FlushPolicy}.
+ */
+public class ClientHandler implements Runnable {
+    private static final Logger logger = Logging.getLogger(ClientHandler.class);
     private final Socket clientSocket;
+    private final FlushPolicy flushPolicy;
+    private final ServerMetrics metrics;
+    private final RequestProcessor processor = new RequestProcessor();
+    // Number of responses in the write buffer, and when the first of them was created
+    private int batchSize = 0;
+    private long batchStartNanos;
 
     public ClientHandler(Socket clientSocket) {
+        this(clientSocket, FlushPolicy.DEFAULT);
+    }
+
+    /**
+     * @param clientSocket the socket of the client to serve
+     * @param flushPolicy decides when the collected responses are written to the socket
+     */
+    public ClientHandler(Socket clientSocket, FlushPolicy flushPolicy) {
+        this(clientSocket, flushPolicy, ServerMetrics.unregistered());
+    }
+
+    /**
+     * @param clientSocket the socket of the client to serve
+     * @param flushPolicy decides when the collected responses are written to the socket
+     * @param metrics the metrics of the server
+     */
+    ClientHandler(Socket clientSocket, FlushPolicy flushPolicy, ServerMetrics metrics) {
         this.clientSocket = clientSocket;
+        this.flushPolicy = flushPolicy;
+        this.metrics = metrics;
     }
 
     @Override
     public void run() {
-        BufferedReader reader = null;
-        PrintWriter writer = null;
+        this.metrics.connectionOpened();
         try {
-            reader = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
-            writer = new PrintWriter(this.clientSocket.getOutputStream(), true);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+            InputStream in = this.clientSocket.getInputStream();
+            OutputStream out = this.clientSocket.getOutputStream();
+            ByteBuffer readBuffer = this.processor.getReadBuffer();
 
-        boolean run = true;
-
-        while (run) {
-            String clientMessage = this.getClientMessage(reader);
-
-            if (clientMessage != null) {
-                if (clientMessage.equalsIgnoreCase("game over")) {
-                    this.closeClientSocket();
+            boolean run = true;
+            while (run) {
+                int bytesRead = in.read(readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(),
+                        readBuffer.remaining());
+                if (bytesRead < 0) {
+                    // The client closed the connection without saying "game over"
                     run = false;
                 } else {
-                    String response = this.createResponse(clientMessage);
-                    writer.println(response);
+                    this.metrics.bytesReceived(bytesRead);
+                    readBuffer.position(readBuffer.position() + bytesRead);
+                    this.processRequests(out);
+                    run = !this.processor.isGameOver();
+                    if (!run || in.available() == 0) {
+                        // No more requests waiting, there is no reason to hold the responses back
+                        this.flush(out);
+                    }
                 }
             }
+        } catch (IOException e) {
+            this.metrics.error();
+            logger.fine(() -> "Could not serve client: " + e.getMessage());
+        } finally {
+            this.closeClientSocket();
+            this.metrics.connectionClosed();
         }
     }
 
-    private String createResponse(String clientMessage) {
-        String response = "error";
-
-        String[] parts = clientMessage.split("\\+");
-
-        if (parts.length == 2) {
-            try {
-                int firstInt = Integer.parseInt(parts[0]);
-                int secondInt = Integer.parseInt(parts[1]);
-                response = "" + (firstInt + secondInt);
-            } catch (NumberFormatException e) {
-                response = "error";
+    /**
+     * Answer all the complete requests received so far, writing the responses to the socket
+     * whenever the flush policy (or a full write buffer) requires it.
+     */
+    private void processRequests(OutputStream out) throws IOException {
+        int responses;
+        do {
+            int room = this.flushPolicy.getMaxBatch() - this.batchSize;
+            responses = this.processor.process(Math.max(room, 1));
+            if (responses > 0 && this.batchSize == 0) {
+                this.batchStartNanos = System.nanoTime();
             }
-        }
-
-        return response;
+            this.batchSize += responses;
+            if (this.flushPolicy.mustFlush(this.batchSize, this.batchStartNanos)
+                    || !this.processor.hasResponseRoom()) {
+                this.flush(out);
+            }
+        } while (responses > 0);
     }
 
-    private void closeClientSocket() {
-        try {
-            this.clientSocket.close();
-        } catch (IOException e) {
-            System.out.println("Something went wrong when closing the client socket: " + e.getMessage());
+    /**
+     * Write all the collected responses to the socket in one write.
+     */
+    private void flush(OutputStream out) throws IOException {
+        ByteBuffer writeBuffer = this.processor.getWriteBuffer();
+        if (writeBuffer.position() > 0) {
+            out.write(writeBuffer.array(), writeBuffer.arrayOffset(), writeBuffer.position());
+            out.flush();
+            this.metrics.bytesSent(writeBuffer.position());
+            this.metrics.responsesSent(this.batchSize, this.batchStartNanos);
+            writeBuffer.clear();
         }
+        this.batchSize = 0;
     }
 
-    private String getClientMessage(BufferedReader reader) {
-        String clientMessage = null;
+    /**
+     * Creates the response to a single request line, according to the protocol: a request on the
+     * form {@code a+b} is answered with the sum, anything else (including operands or sums outside
+     * the int range) is answered with {@code error}.
+     * The servers evaluate their requests with the same {@link RequestParser}, directly on their
+     * buffers, so this method gives exactly the responses the clients get.
+     *
+     * @param clientMessage the request line, without the newline
+     * @return the response line, without the newline
+     */
+    static String createResponse(String clientMessage) {
+        return RequestParser.respond(clientMessage);
+    }
 
+    private void closeClientSocket() {
         try {
-            clientMessage = reader.readLine();
+            this.clientSocket.close();
         } catch (IOException e) {
-            System.out.println("Could not read from client");
+            logger.warning("Something went wrong when closing the client socket: " + e.getMessage());
         }
-
-        return clientMessage;
     }
 }
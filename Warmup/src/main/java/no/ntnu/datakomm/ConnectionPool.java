@@ -0,0 +1,369 @@
+package no.ntnu.datakomm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import no.ntnu.datakomm.common.LatencyHistogram;
+import no.ntnu.datakomm.common.MetricsRegistry;
+
+/**
+ * Keeps connections to the warm-up server open and lends them to callers, so a conversation of a
+ * few {@code a+b} requests does not pay for a TCP handshake and teardown of its own, and the
+ * client does not pile up connections in TIME_WAIT.
+ * <p>
+ * A caller borrows a connection, sends its requests and gives the connection back (or simply
+ * calls {@link #request(String)}). The most recently used idle connection is lent first, so it is
+ * the warmest one, and the oldest ones are left to expire. A connection idle for a while is
+ * checked with a request before it is lent; a background thread closes the connections idle for
+ * too long, and opens new ones to keep the minimum ready. The limits are set by a
+ * {@link PoolPolicy}.
+ */
+public class ConnectionPool implements Closeable {
+    private static final Logger logger = Logging.getLogger(ConnectionPool.class);
+    // A connection idle for longer than this is checked before it is lent (ms)
+    private static final long VALIDATE_AFTER_IDLE = 1000;
+    // The request used to check a connection, and its expected response
+    private static final String PROBE_REQUEST = "0+0";
+    private static final String PROBE_RESPONSE = "0";
+
+    private final InetSocketAddress address;
+    private final PoolPolicy policy;
+    private final SocketProfile socketProfile;
+
+    // Most recently used first. Guarded by this, as is the count of open connections.
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    private int openCount = 0;
+    private boolean closed = false;
+    private final ScheduledExecutorService evictor;
+
+    private final MetricsRegistry metricsRegistry;
+    private final LongAdder borrows;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder waits;
+    private final LongAdder timeouts;
+    private final LongAdder evicted;
+    private final LongAdder broken;
+    private final LatencyHistogram borrowLatency;
+
+    /**
+     * Creates a pool whose connections use the socket profile chosen by the system property
+     * warmup.socket.profile, see {@link SocketProfile#configured()}.
+     *
+     * @param host   the host where the server runs
+     * @param port   the TCP port of the server
+     * @param policy the limits of the pool
+     */
+    public ConnectionPool(String host, int port, PoolPolicy policy) {
+        this(host, port, policy, SocketProfile.configured());
+    }
+
+    /**
+     * Creates a pool and opens the minimum number of idle connections in the background.
+     *
+     * @param host          the host where the server runs
+     * @param port          the TCP port of the server
+     * @param policy        the limits of the pool
+     * @param socketProfile the options of the connections
+     */
+    public ConnectionPool(String host, int port, PoolPolicy policy, SocketProfile socketProfile) {
+        this.address = new InetSocketAddress(host, port);
+        this.policy = policy;
+        this.socketProfile = socketProfile;
+
+        this.metricsRegistry = new MetricsRegistry(Logging.PACKAGE, "ConnectionPool-" + host + "-" + port);
+        this.borrows = this.metricsRegistry.counter("borrows");
+        // Borrowed an idle connection, opened a new one, or waited for one to be given back
+        this.hits = this.metricsRegistry.counter("hits");
+        this.misses = this.metricsRegistry.counter("misses");
+        this.waits = this.metricsRegistry.counter("waits");
+        this.timeouts = this.metricsRegistry.counter("timeouts");
+        // Closed after the idle timeout, or because a request (or the check) failed
+        this.evicted = this.metricsRegistry.counter("evicted");
+        this.broken = this.metricsRegistry.counter("broken");
+        this.metricsRegistry.gauge("connections.idle", this::getIdleCount);
+        this.metricsRegistry.gauge("connections.open", this::getOpenCount);
+        this.metricsRegistry.gauge("hit.rate.percent", () -> Math.round(this.getHitRate() * 100));
+        // From asking for a connection until getting it, including opening a new one
+        this.borrowLatency = this.metricsRegistry.histogram("borrow.wait.us");
+
+        this.evictor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "connection-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Check often enough that no connection stays much longer than the idle timeout
+        long periodMillis = Math.max(100, TimeUnit.NANOSECONDS.toMillis(policy.getIdleTimeoutNanos()) / 4);
+        this.evictor.scheduleWithFixedDelay(this::maintain, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Borrow a connection: an idle one if there is any, otherwise a new one if the pool is below
+     * its maximum, otherwise the first one given back within the maximum waiting time. The
+     * connection must be given back with {@link #release(PooledConnection)}.
+     *
+     * @return a connection, used by the caller only until it is given back
+     * @throws IOException when no connection can be opened, none was given back in time, or the
+     *                     pool is closed
+     * @throws InterruptedException when interrupted while waiting for a connection
+     */
+    public PooledConnection borrow() throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        long deadline = startNanos + this.policy.getMaxWaitNanos();
+        this.borrows.increment();
+        boolean waited = false;
+        while (true) {
+            PooledConnection connection;
+            synchronized (this) {
+                while (true) {
+                    if (this.closed) {
+                        throw new IOException("The connection pool is closed");
+                    }
+                    connection = this.idle.pollFirst();
+                    if (connection != null || this.openCount < this.policy.getMaxTotal()) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        this.timeouts.increment();
+                        throw new IOException("No connection given back within "
+                                + TimeUnit.NANOSECONDS.toMillis(this.policy.getMaxWaitNanos()) + " ms");
+                    }
+                    waited = true;
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                if (connection == null) {
+                    // Reserve the place of the new connection before opening it, outside the lock
+                    this.openCount++;
+                }
+            }
+
+            boolean fromIdle = connection != null;
+            if (connection == null) {
+                connection = this.open();
+                this.misses.increment();
+            } else if (!this.isHealthy(connection, startNanos)) {
+                // The server closed it meanwhile: try the next one
+                this.destroy(connection);
+                this.broken.increment();
+                continue;
+            } else if (!waited) {
+                this.hits.increment();
+            }
+            if (waited) {
+                this.waits.increment();
+            }
+            connection.setLentFromIdle(fromIdle);
+            this.borrowLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+            return connection;
+        }
+    }
+
+    /**
+     * Give back a borrowed connection. It is kept for the next caller, unless it is broken, the
+     * pool already has its maximum of idle connections, or the pool is closed.
+     *
+     * @param connection the connection, not to be used by the caller any more
+     */
+    public void release(PooledConnection connection) {
+        if (connection.isBroken()) {
+            this.broken.increment();
+            this.destroy(connection);
+            return;
+        }
+        synchronized (this) {
+            if (!this.closed && this.idle.size() < this.policy.getMaxIdle()) {
+                connection.setIdleSinceNanos(System.nanoTime());
+                this.idle.addFirst(connection);
+                this.notify();
+                return;
+            }
+        }
+        this.destroy(connection);
+    }
+
+    /**
+     * Send one request on a pooled connection and give the connection back. A request failing on a
+     * connection which was idle in the pool is sent again on another connection: the server may
+     * have closed the idle ones (after a restart, all of them), and {@code a+b} requests can safely
+     * be repeated. Every failed connection is closed, so this ends at the latest with a new one.
+     *
+     * @param request the request, without the newline
+     * @return the response, without the newline
+     * @throws IOException when the request fails on a new connection, or no connection is available
+     * @throws InterruptedException when interrupted while waiting for a connection
+     */
+    public String request(String request) throws IOException, InterruptedException {
+        while (true) {
+            PooledConnection connection = this.borrow();
+            try {
+                return connection.request(request);
+            } catch (IOException e) {
+                if (!connection.isLentFromIdle()) {
+                    throw e;
+                }
+                logger.fine(() -> "Request failed on a pooled connection, trying another one: " + e.getMessage());
+            } finally {
+                this.release(connection);
+            }
+        }
+    }
+
+    /**
+     * @return the part of the borrows served by an idle connection, without waiting, between 0 and 1
+     */
+    public double getHitRate() {
+        long total = this.borrows.sum();
+        return total == 0 ? 0 : (double) this.hits.sum() / total;
+    }
+
+    /**
+     * @return the number of connections ready to be lent
+     */
+    public synchronized long getIdleCount() {
+        return this.idle.size();
+    }
+
+    /**
+     * @return the number of open connections, idle and lent
+     */
+    public synchronized long getOpenCount() {
+        return this.openCount;
+    }
+
+    /**
+     * @return the metrics of the pool: borrows, hits, misses, waits, timeouts, evicted and broken
+     * connections, hit rate and the time spent getting a connection
+     */
+    public MetricsRegistry getMetrics() {
+        return this.metricsRegistry;
+    }
+
+    /**
+     * Close the idle connections and stop the background thread. Connections still lent are
+     * closed when given back.
+     */
+    @Override
+    public void close() {
+        List<PooledConnection> closing;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            closing = new ArrayList<>(this.idle);
+            this.idle.clear();
+            this.notifyAll();
+        }
+        this.evictor.shutdownNow();
+        for (PooledConnection connection : closing) {
+            this.destroy(connection);
+        }
+    }
+
+    /**
+     * Open a new connection, whose place in the pool is already reserved.
+     */
+    private PooledConnection open() throws IOException {
+        try {
+            return new PooledConnection(this.socketProfile.connect(this.address));
+        } catch (IOException e) {
+            synchronized (this) {
+                this.openCount--;
+                this.notify();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Check a connection which has been idle for a while with a request. The server may have
+     * closed it meanwhile.
+     */
+    private boolean isHealthy(PooledConnection connection, long nowNanos) {
+        if (connection.isBroken()) {
+            return false;
+        }
+        if (nowNanos - connection.getIdleSinceNanos() < TimeUnit.MILLISECONDS.toNanos(VALIDATE_AFTER_IDLE)) {
+            return true;
+        }
+        try {
+            return PROBE_RESPONSE.equals(connection.request(PROBE_REQUEST));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close a connection and free its place in the pool.
+     */
+    private void destroy(PooledConnection connection) {
+        connection.close();
+        synchronized (this) {
+            this.openCount--;
+            this.notify();
+        }
+    }
+
+    /**
+     * Run regularly on the background thread: close the connections idle for longer than the idle
+     * timeout (keeping the minimum), and open connections until the minimum is idle.
+     */
+    private void maintain() {
+        try {
+            List<PooledConnection> expired = new ArrayList<>();
+            int missing;
+            synchronized (this) {
+                long now = System.nanoTime();
+                // The least recently used connections are at the end
+                Iterator<PooledConnection> oldest = this.idle.descendingIterator();
+                while (oldest.hasNext() && this.idle.size() > this.policy.getMinIdle()) {
+                    PooledConnection connection = oldest.next();
+                    if (now - connection.getIdleSinceNanos() < this.policy.getIdleTimeoutNanos()) {
+                        break;
+                    }
+                    oldest.remove();
+                    expired.add(connection);
+                }
+                missing = this.closed ? 0 : Math.min(this.policy.getMinIdle() - this.idle.size(),
+                        this.policy.getMaxTotal() - this.openCount);
+                if (missing > 0) {
+                    this.openCount += missing;
+                }
+            }
+            for (PooledConnection connection : expired) {
+                this.evicted.increment();
+                this.destroy(connection);
+            }
+            for (int i = 0; i < missing; i++) {
+                PooledConnection connection;
+                try {
+                    connection = this.open();
+                } catch (IOException e) {
+                    // Tried again on the next run; release the places reserved for the others
+                    logger.fine(() -> "Could not open a pooled connection: " + e.getMessage());
+                    synchronized (this) {
+                        this.openCount -= missing - i - 1;
+                        this.notifyAll();
+                    }
+                    return;
+                }
+                this.release(connection);
+            }
+        } catch (RuntimeException e) {
+            // An exception would cancel the scheduled task
+            logger.warning("Connection pool maintenance failed: " + e);
+        }
+    }
+}
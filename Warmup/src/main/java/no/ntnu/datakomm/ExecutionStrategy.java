@@ -0,0 +1,77 @@
+package no.ntnu.datakomm;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How the blocking server runs its {@link ClientHandler} tasks.
+ */
+public enum ExecutionStrategy {
+    // A new platform thread for every client, the original behavior of the server
+    THREAD_PER_CONNECTION,
+    // A fixed number of platform threads, clients wait in a bounded queue for a free thread.
+    // The executor refuses clients when the queue is full
+    BOUNDED_POOL,
+    // A new virtual thread for every client. Requires JDK 21 or newer, on older JDKs the
+    // server falls back to THREAD_PER_CONNECTION
+    VIRTUAL_THREADS;
+
+    /**
+     * Creates an executor for client handler tasks. A {@link #BOUNDED_POOL} queues as many tasks
+     * as it has threads.
+     *
+     * @param poolSize number of threads, only used by {@link #BOUNDED_POOL}
+     * @return the executor to run the client handlers on
+     */
+    public Executor createExecutor(int poolSize) {
+        return this.createExecutor(poolSize, poolSize);
+    }
+
+    /**
+     * Creates an executor for client handler tasks.
+     *
+     * @param poolSize      number of threads, only used by {@link #BOUNDED_POOL}
+     * @param queueCapacity number of tasks waiting for a free thread, only used by
+     *                      {@link #BOUNDED_POOL}. More tasks are refused with a
+     *                      {@link java.util.concurrent.RejectedExecutionException}.
+     * @return the executor to run the client handlers on
+     */
+    public Executor createExecutor(int poolSize, int queueCapacity) {
+        Executor executor;
+        switch (this) {
+            case BOUNDED_POOL:
+                executor = new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(Math.max(1, queueCapacity)));
+                break;
+            case VIRTUAL_THREADS:
+                executor = createVirtualThreadExecutor();
+                break;
+            default:
+                executor = task -> new Thread(task).start();
+                break;
+        }
+        return executor;
+    }
+
+    /**
+     * The project is compiled for Java 8, so the virtual thread executor is looked up by reflection.
+     *
+     * @return a virtual-thread-per-task executor, or a thread-per-task executor when the running JDK
+     * does not support virtual threads
+     */
+    private static Executor createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            Logging.getLogger(ExecutionStrategy.class)
+                    .info("Virtual threads are not supported by this JDK, using a thread per connection");
+            return THREAD_PER_CONNECTION.createExecutor(0);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package no.ntnu.datakomm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the responses collected for a pipelining client are written to the socket. The
+ * servers answer all the requests they have received before writing, so many responses are sent
+ * in one write instead of one write (and one TCP segment) per response. The batch is still
+ * written when it reaches {@code maxBatch} responses, or when the oldest response in it has
+ * waited {@code maxLatency}, so a client streaming requests without pause gets its answers in time.
+ */
+public class FlushPolicy {
+    /**
+     * The policy used when nothing else is configured: at most 64 responses or 1 ms per batch.
+     */
+    public static final FlushPolicy DEFAULT = new FlushPolicy(64, 1, TimeUnit.MILLISECONDS);
+
+    private final int maxBatch;
+    private final long maxLatencyNanos;
+
+    /**
+     * @param maxBatch the maximum number of responses written in one batch
+     * @param maxLatency the maximum time a response may wait for the rest of its batch
+     * @param unit the time unit of maxLatency
+     */
+    public FlushPolicy(int maxBatch, long maxLatency, TimeUnit unit) {
+        if (maxBatch < 1 || maxLatency < 0) {
+            throw new IllegalArgumentException("Invalid flush policy: " + maxBatch + "/" + maxLatency);
+        }
+        this.maxBatch = maxBatch;
+        this.maxLatencyNanos = unit.toNanos(maxLatency);
+    }
+
+    /**
+     * @return the maximum number of responses written in one batch
+     */
+    public int getMaxBatch() {
+        return this.maxBatch;
+    }
+
+    /**
+     * Check whether a batch must be written now.
+     *
+     * @param batchSize number of responses in the batch
+     * @param firstResponseNanos {@link System#nanoTime()} when the first response of the batch was created
+     * @return true when the batch must be written
+     */
+    boolean mustFlush(int batchSize, long firstResponseNanos) {
+        return batchSize >= this.maxBatch
+                || (batchSize > 0 && System.nanoTime() - firstResponseNanos >= this.maxLatencyNanos);
+    }
+}
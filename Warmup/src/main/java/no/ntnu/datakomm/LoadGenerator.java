@@ -0,0 +1,214 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import no.ntnu.datakomm.common.LatencyHistogram;
+
+/**
+ * Generates load against the warm-up server for capacity planning. A configurable number of
+ * connections send {@code a+b} requests and check the answers, while the latency of every request
+ * is recorded in histograms. Throughput, errors and latency percentiles are reported for every
+ * interval and for the whole run.
+ * <p>
+ * Two load models are supported:
+ * <ul>
+ *     <li>Closed loop: every connection sends its next request as soon as the previous one is
+ *     answered. The load adapts to the speed of the server, it shows the maximum throughput.</li>
+ *     <li>Open loop: requests are sent at a fixed total rate, no matter how fast the server
+ *     answers. Latency is measured from the time a request should have been sent, so time spent
+ *     waiting behind a slow response is counted as well (no coordinated omission).</li>
+ * </ul>
+ * The connections are served by virtual threads when the JDK supports them, otherwise by one
+ * platform thread per connection.
+ */
+public class LoadGenerator {
+    private static final Logger logger = Logging.getLogger(LoadGenerator.class);
+
+    /**
+     * How the load generator decides when to send the next request.
+     */
+    public enum LoadModel {
+        CLOSED_LOOP,
+        OPEN_LOOP
+    }
+
+    private final String host;
+    private final int port;
+    private final int connections;
+    private final LoadModel loadModel;
+    private final double targetRate;
+    // The options of the connections, see SocketProfile.configured()
+    private final SocketProfile socketProfile = SocketProfile.configured();
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+
+    /**
+     * @param host        the host where the server runs
+     * @param port        the TCP port of the server
+     * @param connections the number of connections to use
+     * @param loadModel   how the next request is scheduled
+     * @param targetRate  the total number of requests per second over all the connections. Only used
+     *                    in the open loop model.
+     */
+    public LoadGenerator(String host, int port, int connections, LoadModel loadModel, double targetRate) {
+        if (connections < 1 || (loadModel == LoadModel.OPEN_LOOP && targetRate <= 0)) {
+            throw new IllegalArgumentException("Invalid load: " + connections + " connections, rate " + targetRate);
+        }
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.loadModel = loadModel;
+        this.targetRate = targetRate;
+    }
+
+    /**
+     * Generate load for the given time, reporting the results every interval, and report the
+     * totals at the end.
+     *
+     * @param durationSeconds how long to generate load
+     * @param reportIntervalSeconds how often to report the results of the last interval
+     * @throws InterruptedException when interrupted while waiting for the connections to finish
+     */
+    public void run(int durationSeconds, int reportIntervalSeconds) throws InterruptedException {
+        logger.info("Generating " + this.loadModel + " load with " + this.connections + " connections"
+                + (this.loadModel == LoadModel.OPEN_LOOP ? " at " + this.targetRate + " requests/s" : "")
+                + " against " + this.host + ":" + this.port + " for " + durationSeconds + " s");
+
+        long startNanos = System.nanoTime();
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+        CountDownLatch done = new CountDownLatch(this.connections);
+        Executor executor = ExecutionStrategy.VIRTUAL_THREADS.createExecutor(0);
+        for (int i = 0; i < this.connections; i++) {
+            executor.execute(() -> {
+                try {
+                    this.runConnection(endNanos);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        long[] lastRequests = {0};
+        long[] lastErrors = {0};
+        LatencyHistogram[] lastLatency = {new LatencyHistogram()};
+        reporter.scheduleAtFixedRate(() -> {
+            // The latencies of the interval are the ones added to the total since the last report
+            LatencyHistogram latency = this.totalLatency.copy();
+            LatencyHistogram interval = latency.since(lastLatency[0]);
+            lastLatency[0] = latency;
+            long totalRequests = this.requests.sum();
+            long totalErrors = this.errors.sum();
+            long elapsedSeconds = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos);
+            this.report("t=" + elapsedSeconds + "s", totalRequests - lastRequests[0],
+                    totalErrors - lastErrors[0], reportIntervalSeconds, interval);
+            lastRequests[0] = totalRequests;
+            lastErrors[0] = totalErrors;
+        }, reportIntervalSeconds, reportIntervalSeconds, TimeUnit.SECONDS);
+
+        done.await();
+        reporter.shutdownNow();
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        this.report("TOTAL", this.requests.sum(), this.errors.sum(), elapsedSeconds, this.totalLatency);
+    }
+
+    /**
+     * Run one connection until the end time: send requests, check the responses and record
+     * the latencies. A response which does not come within the read timeout of the socket profile
+     * is counted as an error, and the connection is replaced by a new one, so a single stall of
+     * the server does not take the connection out of the load for the rest of the run.
+     */
+    private void runConnection(long endNanos) {
+        while (System.nanoTime() < endNanos) {
+            try (Socket socket = this.socketProfile.connect(this.host, this.port)) {
+                this.sendRequests(socket, endNanos);
+                return;
+            } catch (SocketTimeoutException e) {
+                this.errors.increment();
+                logger.fine(() -> "No response in time, reconnecting: " + e.getMessage());
+            } catch (IOException e) {
+                this.errors.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send requests on a connection until the end time, then end the conversation.
+     *
+     * @throws SocketTimeoutException when a response does not come within the read timeout
+     * @throws IOException when the connection fails or the server closes it
+     */
+    private void sendRequests(Socket socket, long endNanos) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // In the open loop, every connection takes its share of the target rate
+        long intervalNanos = this.loadModel == LoadModel.OPEN_LOOP
+                ? (long) (this.connections * 1e9 / this.targetRate) : 0;
+        OutputStream out = socket.getOutputStream();
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                StandardCharsets.US_ASCII));
+
+        // Spread the first requests of the connections over one interval
+        long nextSendNanos = System.nanoTime() + (intervalNanos > 0 ? random.nextLong(intervalNanos) : 0);
+        while (nextSendNanos < endNanos) {
+            long intendedNanos = nextSendNanos;
+            if (this.loadModel == LoadModel.OPEN_LOOP) {
+                long waitNanos = intendedNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+                nextSendNanos += intervalNanos;
+            } else {
+                intendedNanos = System.nanoTime();
+                nextSendNanos = intendedNanos;
+            }
+
+            int a = random.nextInt(100000);
+            int b = random.nextInt(100000);
+            out.write((a + "+" + b + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            String response = in.readLine();
+            if (response == null) {
+                throw new IOException("Connection closed by the server");
+            }
+            this.record(System.nanoTime() - intendedNanos, response.equals(String.valueOf(a + b)));
+        }
+        out.write("game over\n".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private void record(long latencyNanos, boolean correct) {
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+        this.requests.increment();
+        if (!correct) {
+            this.errors.increment();
+        }
+        this.totalLatency.record(latencyMicros);
+    }
+
+    private void report(String label, long requestCount, long errorCount, double seconds,
+                        LatencyHistogram latency) {
+        logger.info(() -> String.format("%-6s %10.0f req/s %8d requests %6d errors   latency us:"
+                        + " p50=%d p99=%d p99.9=%d max=%d",
+                label, requestCount / seconds, requestCount, errorCount,
+                latency.getValueAtPercentile(50), latency.getValueAtPercentile(99),
+                latency.getValueAtPercentile(99.9), latency.getMaxValue()));
+    }
+}
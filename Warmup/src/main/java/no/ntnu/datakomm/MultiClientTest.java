@@ -1,52 +1,39 @@
 package no.ntnu.datakomm;
 
+import java.util.Locale;
+import java.util.logging.Logger;
+
 /**
- * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server)
+ * A class used to test whether the server can handle multiple TCP client simultaneously (a multi-threaded server),
+ * and how many. It runs a {@link LoadGenerator} against the server on this machine.
  */
 public class MultiClientTest {
+    private static final Logger logger = Logging.getLogger(MultiClientTest.class);
+    private static final String HOST = "localhost";
 
     /**
-     * Run multiple parallel clients that all connect to the same server
+     * Run many parallel clients that all connect to the same server
      *
-     * @param args Command-line arguments. Not used.
+     * @param args Command-line arguments, all optional: the load model ("closed_loop" or "open_loop"),
+     *             the number of connections, the target rate in requests per second (open loop only),
+     *             the duration in seconds and the report interval in seconds.
      */
     public static void main(String args[]) {
-        log("Starting several clients to test servers multi-threading capability");
-        startNewClient();
-        startNewClient();
-        startNewClient();
-        log("Multi client app main thread done");
-    }
+        LoadGenerator.LoadModel loadModel = args.length > 0
+                ? LoadGenerator.LoadModel.valueOf(args[0].toUpperCase(Locale.ROOT))
+                : LoadGenerator.LoadModel.CLOSED_LOOP;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        double targetRate = args.length > 2 ? Double.parseDouble(args[2]) : 10000;
+        int durationSeconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int reportIntervalSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 1;
 
-    /**
-     * Start a new client in a new thread.
-     */
-    private static void startNewClient() {
-        final SimpleTcpClient client = new SimpleTcpClient();
-        Runnable taskToBeExecutedOnAnotherThread = new Runnable() {
-            public void run() {
-                try {
-                    long threadId = Thread.currentThread().getId();
-                    log("Starting a client on thread #" + threadId);
-                    client.run();
-                    log("Done processing client on thread #" + threadId);
-                } catch (InterruptedException e) {
-                    log("Client 1 interrupted");
-                    Thread.currentThread().interrupt();
-                }
-            }
-        };
-        Thread t = new Thread(taskToBeExecutedOnAnotherThread);
-        t.start();
-    }
-
-    /**
-     * Log a message to the system console.
-     *
-     * @param message The message to be logged (printed).
-     */
-    private static void log(String message) {
-        String threadId = "THREAD #" + Thread.currentThread().getId() + ": ";
-        System.out.println(threadId + message);
+        LoadGenerator generator = new LoadGenerator(HOST, SimpleTcpServer.PORT, connections, loadModel, targetRate);
+        try {
+            generator.run(durationSeconds, reportIntervalSeconds);
+        } catch (InterruptedException e) {
+            logger.warning("Load generation interrupted");
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Multi client app main thread done");
     }
 }
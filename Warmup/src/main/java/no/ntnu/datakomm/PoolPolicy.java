@@ -0,0 +1,71 @@
+package no.ntnu.datakomm;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The limits of a {@link ConnectionPool}. The pool keeps at least {@code minIdle} connections
+ * open and ready, at most {@code maxIdle} connections idle, and at most {@code maxTotal}
+ * connections open at all (idle and lent). A caller finding no connection, while the pool is at
+ * its maximum, waits up to {@code maxWait} for one to be given back. Idle connections above the
+ * minimum are closed once they have not been used for {@code idleTimeout}.
+ */
+public class PoolPolicy {
+    /**
+     * The policy used when nothing else is configured: 2 to 8 idle connections, 64 at most,
+     * 1 s waiting time and 30 s idle timeout.
+     */
+    public static final PoolPolicy DEFAULT = new PoolPolicy(2, 8, 64, 1000, 30000, TimeUnit.MILLISECONDS);
+
+    private final int minIdle;
+    private final int maxIdle;
+    private final int maxTotal;
+    private final long maxWaitNanos;
+    private final long idleTimeoutNanos;
+
+    /**
+     * @param minIdle     the number of connections kept open and ready, even when not used
+     * @param maxIdle     the maximum number of idle connections, more are closed when given back
+     * @param maxTotal    the maximum number of open connections, idle and lent
+     * @param maxWait     how long a caller waits for a connection when the pool is at its maximum
+     * @param idleTimeout how long an idle connection above the minimum is kept
+     * @param unit        the time unit of maxWait and idleTimeout
+     */
+    public PoolPolicy(int minIdle, int maxIdle, int maxTotal, long maxWait, long idleTimeout, TimeUnit unit) {
+        if (minIdle < 0 || maxIdle < minIdle || maxTotal < 1 || maxTotal < maxIdle || maxWait < 0
+                || idleTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid pool policy: idle " + minIdle + "-" + maxIdle
+                    + ", total " + maxTotal + ", wait " + maxWait + ", idle timeout " + idleTimeout);
+        }
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+        this.maxTotal = maxTotal;
+        this.maxWaitNanos = unit.toNanos(maxWait);
+        this.idleTimeoutNanos = unit.toNanos(idleTimeout);
+    }
+
+    public int getMinIdle() {
+        return this.minIdle;
+    }
+
+    public int getMaxIdle() {
+        return this.maxIdle;
+    }
+
+    public int getMaxTotal() {
+        return this.maxTotal;
+    }
+
+    /**
+     * @return how long a caller waits for a connection, in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return this.maxWaitNanos;
+    }
+
+    /**
+     * @return how long an idle connection above the minimum is kept, in nanoseconds
+     */
+    public long getIdleTimeoutNanos() {
+        return this.idleTimeoutNanos;
+    }
+}
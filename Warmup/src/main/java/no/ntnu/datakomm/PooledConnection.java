@@ -0,0 +1,127 @@
+package no.ntnu.datakomm;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One connection to the warm-up server, lent by a {@link ConnectionPool}. It is used by one
+ * caller at a time: between borrowing it and giving it back, the caller sends requests and reads
+ * their responses with {@link #request(String)}.
+ */
+public final class PooledConnection {
+    // How long closing waits for the server to close its side (ms)
+    private static final int CLOSE_TIMEOUT = 1000;
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final BufferedReader in;
+    // When the connection was last given back to the pool, see System.nanoTime()
+    private long idleSinceNanos;
+    private boolean broken = false;
+    private long requestCount = 0;
+    // True when lent from the idle connections, false when opened for the caller
+    private boolean lentFromIdle = false;
+
+    /**
+     * @param socket a connected socket, see {@link SocketProfile#connect(java.net.InetSocketAddress)}
+     * @throws IOException when the streams of the socket can not be opened
+     */
+    PooledConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        try {
+            this.out = this.socket.getOutputStream();
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream(), StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            this.socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Send one request and wait for its response. If this fails, the connection is broken and is
+     * closed when given back to the pool.
+     *
+     * @param request the request, without the newline
+     * @return the response, without the newline
+     * @throws IOException when sending or receiving fails, or the server closed the connection
+     */
+    public String request(String request) throws IOException {
+        try {
+            this.out.write((request + "\n").getBytes(StandardCharsets.US_ASCII));
+            this.out.flush();
+            String response = this.in.readLine();
+            if (response == null) {
+                throw new IOException("The server closed the connection");
+            }
+            this.requestCount++;
+            return response;
+        } catch (IOException e) {
+            this.broken = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return true when a request failed, the connection can not be used any more
+     */
+    boolean isBroken() {
+        return this.broken || this.socket.isClosed();
+    }
+
+    /**
+     * @return the number of requests answered on this connection
+     */
+    public long getRequestCount() {
+        return this.requestCount;
+    }
+
+    /**
+     * @return true if the connection was idle in the pool before it was lent, so the server may
+     * have closed it meanwhile; false if it was opened for the caller
+     */
+    boolean isLentFromIdle() {
+        return this.lentFromIdle;
+    }
+
+    void setLentFromIdle(boolean lentFromIdle) {
+        this.lentFromIdle = lentFromIdle;
+    }
+
+    long getIdleSinceNanos() {
+        return this.idleSinceNanos;
+    }
+
+    void setIdleSinceNanos(long idleSinceNanos) {
+        this.idleSinceNanos = idleSinceNanos;
+    }
+
+    /**
+     * End the conversation with "game over" and wait for the server to close its side before
+     * closing the socket. The side closing first keeps the connection in TIME_WAIT, so it stays on
+     * the server instead of piling up in the client.
+     */
+    void close() {
+        try {
+            if (!this.broken) {
+                this.out.write("game over\n".getBytes(StandardCharsets.US_ASCII));
+                this.out.flush();
+                this.socket.setSoTimeout(CLOSE_TIMEOUT);
+                while (this.in.read() >= 0) {
+                    // Nothing is expected after game over, only the end of the stream
+                }
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        } finally {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                // Nothing more to do
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package no.ntnu.datakomm;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Parses {@code a+b} requests directly from the bytes of a read buffer and writes the decimal
+ * response directly into a write buffer. No strings, arrays or boxed numbers are created for a
+ * request, so serving a request does not produce any garbage.
+ * <p>
+ * A valid request is two decimal integers, each with an optional minus sign, separated by a plus
+ * sign. Operands or sums outside the int range are answered with {@code error}, just like any
+ * other malformed request.
+ */
+final class RequestParser {
+    static final String ERROR_RESPONSE = "error";
+
+    private static final byte[] ERROR_BYTES = ERROR_RESPONSE.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GAME_OVER_BYTES = "game over".getBytes(StandardCharsets.US_ASCII);
+    // Returned by evaluate() for a malformed request, outside the range of any valid sum
+    private static final long INVALID = Long.MIN_VALUE;
+    // The longest response: "-2147483648" or "error"
+    static final int MAX_RESPONSE_LENGTH = 11;
+
+    private RequestParser() {
+    }
+
+    /**
+     * Check whether a request line is the "game over" command, ignoring case.
+     *
+     * @param buffer the buffer holding the request
+     * @param start index of the first byte of the request
+     * @param end index after the last byte of the request, without the newline
+     * @return true when the request is "game over"
+     */
+    static boolean isGameOver(ByteBuffer buffer, int start, int end) {
+        if (end - start != GAME_OVER_BYTES.length) {
+            return false;
+        }
+        for (int i = 0; i < GAME_OVER_BYTES.length; i++) {
+            byte b = buffer.get(start + i);
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != GAME_OVER_BYTES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Evaluate one request line and put the response (without the newline) into the output buffer.
+     * The output buffer must have at least {@link #MAX_RESPONSE_LENGTH} bytes remaining.
+     *
+     * @param buffer the buffer holding the request
+     * @param start index of the first byte of the request
+     * @param end index after the last byte of the request, without the newline
+     * @param out the buffer where the response is written
+     */
+    static void respond(ByteBuffer buffer, int start, int end, ByteBuffer out) {
+        long sum = evaluate(buffer, start, end);
+        if (sum == INVALID) {
+            out.put(ERROR_BYTES);
+        } else {
+            putDecimal(sum, out);
+        }
+    }
+
+    /**
+     * Evaluate a request given as a string. Used by the blocking server, which reads its requests
+     * as strings anyway.
+     *
+     * @param request the request line, without the newline
+     * @return the response line, without the newline
+     */
+    static String respond(String request) {
+        ByteBuffer buffer = ByteBuffer.wrap(request.getBytes(StandardCharsets.UTF_8));
+        long sum = evaluate(buffer, 0, buffer.limit());
+        return sum == INVALID ? ERROR_RESPONSE : Long.toString(sum);
+    }
+
+    /**
+     * @return the sum of the two operands, or {@link #INVALID} if the request is malformed or the
+     * sum does not fit in an int
+     */
+    private static long evaluate(ByteBuffer buffer, int start, int end) {
+        int plus = -1;
+        // The first character may be a minus sign, so the separator is searched from the second one
+        for (int i = start + 1; i < end; i++) {
+            if (buffer.get(i) == '+') {
+                plus = i;
+                break;
+            }
+        }
+        if (plus < 0) {
+            return INVALID;
+        }
+        long first = parseInt(buffer, start, plus);
+        long second = parseInt(buffer, plus + 1, end);
+        if (first == INVALID || second == INVALID) {
+            return INVALID;
+        }
+        long sum = first + second;
+        if (sum < Integer.MIN_VALUE || sum > Integer.MAX_VALUE) {
+            return INVALID;
+        }
+        return sum;
+    }
+
+    /**
+     * Parse a decimal int with an optional minus sign.
+     *
+     * @return the value, or {@link #INVALID} when it is not a valid int
+     */
+    private static long parseInt(ByteBuffer buffer, int start, int end) {
+        boolean negative = start < end && buffer.get(start) == '-';
+        int i = negative ? start + 1 : start;
+        if (i == end) {
+            return INVALID;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                return INVALID;
+            }
+            value = value * 10 + digit;
+            if (value > (long) Integer.MAX_VALUE + 1) {
+                return INVALID;
+            }
+        }
+        if (negative) {
+            value = -value;
+        } else if (value > Integer.MAX_VALUE) {
+            return INVALID;
+        }
+        return value;
+    }
+
+    /**
+     * Put the decimal representation of a number into the buffer, without creating a string.
+     */
+    private static void putDecimal(long value, ByteBuffer out) {
+        if (value < 0) {
+            out.put((byte) '-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        int position = out.position();
+        for (int i = position + digits - 1; i >= position; i--) {
+            out.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        out.position(position + digits);
+    }
+}
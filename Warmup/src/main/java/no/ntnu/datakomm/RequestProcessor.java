@@ -0,0 +1,136 @@
+package no.ntnu.datakomm;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits the bytes received from one client into request lines and answers them. Received bytes
+ * are put in the read buffer; every complete line found there is answered into the write buffer.
+ * A client may send many requests without waiting for the responses (pipelining): all the
+ * complete lines are answered in one go, and the caller writes the collected responses to the
+ * socket in one write.
+ * <p>
+ * Used by both the blocking {@link ClientHandler} and the {@link SelectorConnection}.
+ */
+class RequestProcessor {
+    // The longest request line accepted, a longer line is answered with "error" and discarded
+    static final int MAX_LINE_LENGTH = 1024;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    // Room needed in the write buffer for one more response, including the newline
+    private static final int RESPONSE_ROOM = RequestParser.MAX_RESPONSE_LENGTH + 1;
+
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(MAX_LINE_LENGTH);
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+    // True while the rest of an over-long line is being skipped
+    private boolean discardingLine = false;
+    // True when an over-long line is still to be answered with "error", once there is room
+    private boolean errorPending = false;
+    // True when the client has sent "game over"
+    private boolean gameOver = false;
+
+    /**
+     * @return the buffer where bytes received from the client must be put, in write mode
+     */
+    ByteBuffer getReadBuffer() {
+        return this.readBuffer;
+    }
+
+    /**
+     * @return the buffer holding responses not sent to the client yet, in write mode
+     */
+    ByteBuffer getWriteBuffer() {
+        return this.writeBuffer;
+    }
+
+    /**
+     * @return true when the client has sent "game over". No more requests are processed after it.
+     */
+    boolean isGameOver() {
+        return this.gameOver;
+    }
+
+    /**
+     * @return true when there is room in the write buffer for at least one more response
+     */
+    boolean hasResponseRoom() {
+        return this.writeBuffer.remaining() >= RESPONSE_ROOM;
+    }
+
+    /**
+     * Answer the complete request lines in the read buffer. Processing stops when all complete
+     * lines are answered, when the given number of responses is reached, when the write buffer
+     * is full, or when the client has sent "game over". The incomplete rest of the read buffer is
+     * kept for the next call. An over-long line is answered with "error" in its place among the
+     * responses, and the rest of it is skipped.
+     *
+     * @param maxResponses the maximum number of responses to write
+     * @return the number of responses written to the write buffer
+     */
+    int process(int maxResponses) {
+        int responses = this.writePendingError(maxResponses, 0);
+        this.readBuffer.flip();
+        int lineStart = this.readBuffer.position();
+        while (this.readBuffer.hasRemaining() && !this.gameOver && !this.errorPending
+                && responses < maxResponses && this.hasResponseRoom()) {
+            int position = this.readBuffer.position();
+            if (this.readBuffer.get() == '\n') {
+                if (this.discardingLine) {
+                    this.discardingLine = false;
+                } else if (this.processLine(lineStart, position)) {
+                    responses++;
+                }
+                lineStart = this.readBuffer.position();
+            }
+        }
+        boolean lineTooLong = lineStart == 0 && !this.readBuffer.hasRemaining()
+                && this.readBuffer.limit() == this.readBuffer.capacity();
+        this.readBuffer.position(lineStart);
+        this.readBuffer.compact();
+
+        if (lineTooLong) {
+            // The line does not fit in the buffer: answer it as an invalid request, skip the rest
+            this.readBuffer.clear();
+            if (!this.discardingLine) {
+                this.discardingLine = true;
+                this.errorPending = true;
+            }
+        }
+        return this.writePendingError(maxResponses, responses);
+    }
+
+    /**
+     * Answer an over-long line with "error", if there is room for one more response.
+     *
+     * @return the number of responses written, including the error
+     */
+    private int writePendingError(int maxResponses, int responses) {
+        if (this.errorPending && responses < maxResponses && this.hasResponseRoom()) {
+            this.errorPending = false;
+            this.writeResponse(RequestParser.ERROR_RESPONSE);
+            return responses + 1;
+        }
+        return responses;
+    }
+
+    /**
+     * @return true when a response was written, false for "game over"
+     */
+    private boolean processLine(int start, int end) {
+        if (end > start && this.readBuffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (RequestParser.isGameOver(this.readBuffer, start, end)) {
+            this.gameOver = true;
+            return false;
+        }
+        RequestParser.respond(this.readBuffer, start, end, this.writeBuffer);
+        this.writeBuffer.put((byte) '\n');
+        return true;
+    }
+
+    private void writeResponse(String response) {
+        for (int i = 0; i < response.length(); i++) {
+            this.writeBuffer.put((byte) response.charAt(i));
+        }
+        this.writeBuffer.put((byte) '\n');
+    }
+}
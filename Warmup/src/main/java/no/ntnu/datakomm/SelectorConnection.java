@@ -0,0 +1,112 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.logging.Logger;
+
+/**
+ * The state of one client connection served by a {@link SelectorServer}: the channel plus a
+ * {@link RequestProcessor} that collects bytes until full lines (requests) are available and holds
+ * the responses that could not be written to the socket yet.
+ */
+class SelectorConnection {
+    private static final Logger logger = Logging.getLogger(SelectorConnection.class);
+    private final SocketChannel channel;
+    private final FlushPolicy flushPolicy;
+    private final ServerMetrics metrics;
+    private final RequestProcessor processor = new RequestProcessor();
+
+    SelectorConnection(SocketChannel channel, FlushPolicy flushPolicy, ServerMetrics metrics) {
+        this.channel = channel;
+        this.flushPolicy = flushPolicy;
+        this.metrics = metrics;
+        metrics.connectionOpened();
+    }
+
+    /**
+     * Handle the readiness events reported by the selector for this connection.
+     *
+     * @param key the selection key of the connection
+     */
+    void handle(SelectionKey key) {
+        try {
+            if (key.isValid() && key.isReadable()) {
+                this.read(key);
+            }
+            if (key.isValid() && key.isWritable()) {
+                this.processAndFlush(key);
+            }
+        } catch (IOException e) {
+            this.metrics.error();
+            logger.fine(() -> "Client connection failed: " + e.getMessage());
+            this.close(key);
+        }
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        int bytesRead = this.channel.read(this.processor.getReadBuffer());
+        if (bytesRead < 0) {
+            this.close(key);
+            return;
+        }
+        this.metrics.bytesReceived(bytesRead);
+        this.processAndFlush(key);
+    }
+
+    /**
+     * Answer the received requests in batches of at most maxBatch responses, writing each batch
+     * with one write. Stops when all the requests are answered, or when the socket does not accept
+     * more data: reading is then paused until the client has read its responses, so a client that
+     * does not read can not make the server buffer an unlimited amount of data.
+     * <p>
+     * The requests are answered as soon as they are read, so the latency bound of the flush
+     * policy is always met here.
+     */
+    private void processAndFlush(SelectionKey key) throws IOException {
+        ByteBuffer writeBuffer = this.processor.getWriteBuffer();
+        boolean pending = this.write(writeBuffer);
+        while (!pending && !this.processor.isGameOver()) {
+            long startNanos = System.nanoTime();
+            int responses = this.processor.process(this.flushPolicy.getMaxBatch());
+            if (responses == 0) {
+                break;
+            }
+            pending = this.write(writeBuffer);
+            this.metrics.responsesSent(responses, startNanos);
+        }
+
+        if (!pending && this.processor.isGameOver()) {
+            this.close(key);
+            return;
+        }
+        int interest = pending ? SelectionKey.OP_WRITE : 0;
+        if (!pending && !this.processor.isGameOver()) {
+            interest |= SelectionKey.OP_READ;
+        }
+        key.interestOps(interest);
+    }
+
+    /**
+     * Write as much of the collected responses as the socket accepts.
+     *
+     * @return true when some responses are still waiting to be written
+     */
+    private boolean write(ByteBuffer writeBuffer) throws IOException {
+        writeBuffer.flip();
+        this.metrics.bytesSent(this.channel.write(writeBuffer));
+        writeBuffer.compact();
+        return writeBuffer.position() > 0;
+    }
+
+    private void close(SelectionKey key) {
+        this.metrics.connectionClosed();
+        key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            logger.warning("Something went wrong when closing the client channel: " + e.getMessage());
+        }
+    }
+}
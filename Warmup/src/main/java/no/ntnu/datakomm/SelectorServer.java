@@ -0,0 +1,263 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking version of the warm-up server. Instead of one thread per client, a small fixed
+ * number of I/O threads (event loops) serve all the connections. Each event loop owns a
+ * {@link Selector} and the connections registered with it. The accepting thread hands every new
+ * connection over to the next event loop, round-robin.
+ * <p>
+ * Several selector servers can listen on the same port with SO_REUSEPORT, each with its own
+ * accepting thread and event loops, see {@link SimpleTcpServer#setAcceptorShards(int)}.
+ */
+public class SelectorServer {
+    private static final Logger logger = Logging.getLogger(SelectorServer.class);
+
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final FlushPolicy flushPolicy;
+    private final SocketProfile socketProfile;
+    private final ServerMetrics metrics;
+    private final int shard;
+    private final boolean reusePort;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running;
+
+    /**
+     * Creates a server with one I/O thread per available CPU core.
+     *
+     * @param port the TCP port to listen on
+     */
+    public SelectorServer(int port) {
+        this(port, Runtime.getRuntime().availableProcessors(), FlushPolicy.DEFAULT);
+    }
+
+    /**
+     * @param port the TCP port to listen on
+     * @param ioThreads the number of event loop threads serving the connections
+     * @param flushPolicy decides how many responses to a pipelining client are written at once
+     */
+    public SelectorServer(int port, int ioThreads, FlushPolicy flushPolicy) {
+        this(port, ioThreads, flushPolicy, SocketProfile.configured(), ServerMetrics.unregistered());
+    }
+
+    /**
+     * @param port the TCP port to listen on
+     * @param ioThreads the number of event loop threads serving the connections
+     * @param flushPolicy decides how many responses to a pipelining client are written at once
+     * @param socketProfile the options of the listening socket and of the client connections
+     * @param metrics the metrics to report into
+     */
+    SelectorServer(int port, int ioThreads, FlushPolicy flushPolicy, SocketProfile socketProfile,
+                   ServerMetrics metrics) {
+        this(port, ioThreads, flushPolicy, socketProfile, metrics, 0, false);
+    }
+
+    /**
+     * @param port the TCP port to listen on
+     * @param ioThreads the number of event loop threads serving the connections
+     * @param flushPolicy decides how many responses to a pipelining client are written at once
+     * @param socketProfile the options of the listening socket and of the client connections
+     * @param metrics the metrics to report into
+     * @param shard the number of this server among the servers sharing the port, from 0. It
+     *              numbers its threads and its acceptor metrics.
+     * @param reusePort true to share the port with the other shards using SO_REUSEPORT
+     */
+    SelectorServer(int port, int ioThreads, FlushPolicy flushPolicy, SocketProfile socketProfile,
+                   ServerMetrics metrics, int shard, boolean reusePort) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("At least one I/O thread is required");
+        }
+        this.port = port;
+        this.eventLoops = new EventLoop[ioThreads];
+        this.flushPolicy = flushPolicy;
+        this.socketProfile = socketProfile;
+        this.metrics = metrics;
+        this.shard = shard;
+        this.reusePort = reusePort;
+    }
+
+    /**
+     * Starts the event loops and accepts connections on the calling thread until {@link #stop()}
+     * is called or the listening socket fails.
+     */
+    public void run() {
+        try {
+            this.serverChannel = this.socketProfile.bindChannel(this.port, this.reusePort);
+            this.running = true;
+            for (int i = 0; i < this.eventLoops.length; i++) {
+                // The event loops of all the shards are numbered together
+                int index = this.shard * this.eventLoops.length + i;
+                this.eventLoops[i] = new EventLoop(index, this.flushPolicy, this.socketProfile, this.metrics);
+                this.eventLoops[i].start();
+            }
+            logger.info("Selector server " + (this.reusePort ? "shard " + this.shard + " " : "")
+                    + "listening on port " + this.port + " with " + this.eventLoops.length
+                    + " I/O threads and socket profile " + this.socketProfile);
+
+            ServerMetrics.AcceptorMetrics acceptorMetrics = this.metrics.acceptor(this.shard);
+            int next = 0;
+            while (this.running) {
+                SocketChannel clientChannel = this.serverChannel.accept();
+                long acceptedNanos = System.nanoTime();
+                this.metrics.connectionAccepted();
+                this.eventLoops[next].register(clientChannel);
+                acceptorMetrics.connectionHandedOver(acceptedNanos);
+                next = (next + 1) % this.eventLoops.length;
+            }
+        } catch (IOException e) {
+            if (this.running) {
+                logger.warning("Selector server stopped: " + e.getMessage());
+            }
+        } finally {
+            this.stop();
+        }
+    }
+
+    /**
+     * Stops accepting connections and closes all the event loops together with their connections.
+     */
+    public void stop() {
+        this.running = false;
+        try {
+            if (this.serverChannel != null) {
+                this.serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warning("Could not close server channel: " + e.getMessage());
+        }
+        for (EventLoop eventLoop : this.eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * One I/O thread with its own selector. New connections are queued by the accepting thread and
+     * registered by the event loop itself, since a channel can not be registered with a selector
+     * while another thread is blocked in {@link Selector#select()}.
+     */
+    private static class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final FlushPolicy flushPolicy;
+        private final SocketProfile socketProfile;
+        private final ServerMetrics metrics;
+        // Set by shutdown(), the loop then closes its connections and returns
+        private volatile boolean stopping = false;
+
+        EventLoop(int index, FlushPolicy flushPolicy, SocketProfile socketProfile, ServerMetrics metrics)
+                throws IOException {
+            super("selector-io-" + index);
+            this.selector = Selector.open();
+            this.flushPolicy = flushPolicy;
+            this.socketProfile = socketProfile;
+            this.metrics = metrics;
+        }
+
+        void register(SocketChannel channel) {
+            this.pendingChannels.add(channel);
+            if (this.stopping) {
+                // Accepted while the server was stopping: the loop may have closed its queued
+                // channels already
+                this.closePendingChannels();
+            } else {
+                this.selector.wakeup();
+            }
+        }
+
+        /**
+         * Make the event loop close its connections, including the ones not registered yet, and
+         * wait for it to finish. The loop closes them itself, so that none is registered while
+         * they are being closed.
+         */
+        void shutdown() {
+            this.stopping = true;
+            this.selector.wakeup();
+            if (Thread.currentThread() != this) {
+                try {
+                    this.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!this.stopping) {
+                    this.selector.select();
+                    this.registerPendingChannels();
+
+                    Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SelectorConnection connection = (SelectorConnection) key.attachment();
+                        connection.handle(key);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (!this.stopping) {
+                    logger.warning("Event loop " + this.getName() + " failed: " + e.getMessage());
+                }
+            } finally {
+                this.closeAll();
+            }
+        }
+
+        private void closeAll() {
+            try {
+                for (SelectionKey key : this.selector.keys()) {
+                    key.channel().close();
+                }
+                this.selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                logger.warning("Could not close selector: " + e.getMessage());
+            }
+            this.closePendingChannels();
+        }
+
+        private void closePendingChannels() {
+            SocketChannel channel;
+            while ((channel = this.pendingChannels.poll()) != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.warning("Could not close client channel: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = this.pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    this.socketProfile.configure(channel.socket());
+                    SelectionKey key = channel.register(this.selector, SelectionKey.OP_READ);
+                    key.attach(new SelectorConnection(channel, this.flushPolicy, this.metrics));
+                } catch (IOException e) {
+                    logger.warning("Could not register client channel: " + e.getMessage());
+                    try {
+                        channel.close();
+                    } catch (IOException closeException) {
+                        logger.warning("Could not close client channel: " + closeException.getMessage());
+                    }
+                }
+            }
+        }
+    }
+}
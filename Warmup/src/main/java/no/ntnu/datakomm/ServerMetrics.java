@@ -0,0 +1,122 @@
+package no.ntnu.datakomm;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import no.ntnu.datakomm.common.LatencyHistogram;
+import no.ntnu.datakomm.common.MetricsRegistry;
+
+/**
+ * The metrics a server reports into its {@link MetricsRegistry}, shared by all its connections.
+ * Every method is lock-free and can be called for every request.
+ */
+final class ServerMetrics {
+    private final MetricsRegistry registry;
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder active = new LongAdder();
+    private final LongAdder requests;
+    private final LongAdder bytesIn;
+    private final LongAdder bytesOut;
+    private final LongAdder errors;
+    private final LatencyHistogram requestLatency;
+
+    /**
+     * @param registry the registry to create the metrics in
+     */
+    ServerMetrics(MetricsRegistry registry) {
+        this.registry = registry;
+        this.accepted = registry.counter("connections.accepted");
+        this.rejected = registry.counter("connections.rejected");
+        registry.gauge("connections.active", this.active::sum);
+        this.requests = registry.counter("requests");
+        this.bytesIn = registry.counter("bytes.in");
+        this.bytesOut = registry.counter("bytes.out");
+        this.errors = registry.counter("errors");
+        // From answering a request until its response is written to the socket
+        this.requestLatency = registry.histogram("request.latency.us");
+    }
+
+    /**
+     * Metrics which are not reported anywhere, for servers and handlers created without a registry.
+     *
+     * @return new metrics in a registry of their own
+     */
+    static ServerMetrics unregistered() {
+        return new ServerMetrics(new MetricsRegistry(Logging.PACKAGE, "unregistered"));
+    }
+
+    /**
+     * The metrics of one acceptor thread, in the same registry.
+     *
+     * @param shard the number of the acceptor, from 0
+     * @return the metrics, created the first time they are asked for
+     */
+    AcceptorMetrics acceptor(int shard) {
+        return new AcceptorMetrics(this.registry, shard);
+    }
+
+    void connectionAccepted() {
+        this.accepted.increment();
+    }
+
+    void connectionRejected() {
+        this.rejected.increment();
+    }
+
+    void connectionOpened() {
+        this.active.increment();
+    }
+
+    void connectionClosed() {
+        this.active.decrement();
+    }
+
+    void bytesReceived(int count) {
+        this.bytesIn.add(count);
+    }
+
+    void bytesSent(int count) {
+        this.bytesOut.add(count);
+    }
+
+    /**
+     * A batch of responses is written to the socket.
+     *
+     * @param responses  the number of responses in the batch
+     * @param startNanos when the oldest response of the batch was created
+     */
+    void responsesSent(int responses, long startNanos) {
+        this.requests.add(responses);
+        this.requestLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+    }
+
+    void error() {
+        this.errors.increment();
+    }
+
+    /**
+     * The connections accepted by one acceptor thread, and how long it is busy with each of them:
+     * from accept() returning until the connection is handed over to its handler or event loop.
+     * An acceptor can accept at most one connection per that time, the others wait in the backlog.
+     */
+    static final class AcceptorMetrics {
+        private final LongAdder accepted;
+        private final LatencyHistogram acceptLatency;
+
+        private AcceptorMetrics(MetricsRegistry registry, int shard) {
+            this.accepted = registry.counter("acceptor." + shard + ".connections");
+            this.acceptLatency = registry.histogram("acceptor." + shard + ".accept.us");
+        }
+
+        /**
+         * A connection is handed over.
+         *
+         * @param acceptedNanos when accept() returned it
+         */
+        void connectionHandedOver(long acceptedNanos) {
+            this.accepted.increment();
+            this.acceptLatency.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - acceptedNanos));
+        }
+    }
+}
@@ -5,16 +5,31 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import no.ntnu.datakomm.common.LatencyHistogram;
 
 /**
  * A Simple TCP client, used as a warm-up exercise for assignment A4.
  */
 public class SimpleTcpClient {
+    private static final Logger logger = Logging.getLogger(SimpleTcpClient.class);
     // Remote host where the server will be running
     private static final String HOST = "datakomm.work";
     // TCP port
     private static final int PORT = 1301;
+    // The most bytes of pipelined requests in flight when the socket's send buffer size is unknown
+    private static final int DEFAULT_MAX_BYTES_IN_FLIGHT = 8 * 1024;
+
+    // The options of the connections, see SocketProfile.configured()
+    private SocketProfile socketProfile = SocketProfile.configured();
 
     private Socket clientSocket;
     private PrintWriter outToServer;
@@ -23,18 +38,39 @@ public class SimpleTcpClient {
     /**
      * Run the TCP Client.
      *
-     * @param args Command line arguments. Not used.
+     * @param args Command line arguments, all optional: "pipelined", followed by the number of
+     *             requests to send and the number of requests to keep in flight; or "pooled",
+     *             followed by the number of conversations and the number of threads having them.
      */
     public static void main(String[] args) {
         SimpleTcpClient client = new SimpleTcpClient();
         try {
-            client.run();
+            if (args.length > 0 && args[0].equalsIgnoreCase("pipelined")) {
+                int requestCount = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+                int window = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+                client.runPipelined(requestCount, window);
+            } else if (args.length > 0 && args[0].equalsIgnoreCase("pooled")) {
+                int conversations = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+                int threads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+                client.runPooled(conversations, threads);
+            } else {
+                client.run();
+            }
         } catch (InterruptedException e) {
-            log("Client interrupted");
+            logger.info("Client interrupted");
             Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Set the options of the connections to the server.
+     *
+     * @param socketProfile the profile to use
+     */
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
     /**
      * Run the TCP Client application. The logic is already implemented, no need to change anything in this method.
      * You can experiment, of course.
@@ -43,60 +79,247 @@ public class SimpleTcpClient {
      *                              This exception is thrown if the execution is interrupted halfway.
      */
     public void run() throws InterruptedException {
-        log("Simple TCP client started");
+        logger.info("Simple TCP client started");
 
         if (!connectToServer(HOST, PORT)) {
-            log("ERROR: Failed to connect to the server");
+            logger.severe("Failed to connect to the server");
             return;
         }
-        log("Connection to the server established");
+        logger.info("Connection to the server established");
 
         int a = (int) (1 + Math.random() * 10);
         int b = (int) (1 + Math.random() * 10);
         String request = a + "+" + b;
 
         if (!sendRequestToServer(request)) {
-            log("ERROR: Failed to send valid message to server!");
+            logger.severe("Failed to send valid message to server!");
             return;
         }
-        log("Sent " + request + " to server");
+        logger.info("Sent " + request + " to server");
 
         String response = readResponseFromServer();
         if (response == null) {
-            log("ERROR: Failed to receive server's response!");
+            logger.severe("Failed to receive server's response!");
             return;
         }
-        log("Server responded with: " + response);
+        logger.info("Server responded with: " + response);
 
         sleepRandomTime();
         request = "bla+bla";
         if (!sendRequestToServer(request)) {
-            log("ERROR: Failed to send invalid message to server!");
+            logger.severe("Failed to send invalid message to server!");
             return;
         }
-        log("Sent " + request + " to server");
+        logger.info("Sent " + request + " to server");
 
         response = readResponseFromServer();
         if (response == null) {
-            log("ERROR: Failed to receive server's response!");
+            logger.severe("Failed to receive server's response!");
             return;
         }
-        log("Server responded with: " + response);
+        logger.info("Server responded with: " + response);
 
         if (!sendRequestToServer("game over") || !closeConnection()) {
-            log("ERROR: Failed to stop conversation");
+            logger.severe("Failed to stop conversation");
             return;
         }
-        log("Game over, connection closed");
+        logger.info("Game over, connection closed");
 
         // When the connection is closed, try to send one more message. It should fail.
         if (!sendRequestToServer("2+2")) {
-            log("Sending another message after closing the connection failed as expected");
+            logger.info("Sending another message after closing the connection failed as expected");
         } else {
-            log("ERROR: sending a message after closing the connection did not fail!");
+            logger.severe("Sending a message after closing the connection did not fail!");
+        }
+
+        logger.info("Simple TCP client finished");
+    }
+
+    /**
+     * Run the TCP client in pipelined mode: send many random requests without waiting for each
+     * response, and check that every response matches the request it answers.
+     *
+     * @param requestCount number of requests to send
+     * @param window       maximum number of requests sent but not answered yet
+     * @throws InterruptedException Never thrown, declared for symmetry with {@link #run()}
+     */
+    public void runPipelined(int requestCount, int window) throws InterruptedException {
+        logger.info("Pipelined TCP client started");
+
+        if (!connectToServer(HOST, PORT)) {
+            logger.severe("Failed to connect to the server");
+            return;
+        }
+
+        List<String> requests = new ArrayList<>(requestCount);
+        List<String> expected = new ArrayList<>(requestCount);
+        for (int i = 0; i < requestCount; i++) {
+            int a = (int) (1 + Math.random() * 1000);
+            int b = (int) (1 + Math.random() * 1000);
+            requests.add(a + "+" + b);
+            expected.add(String.valueOf(a + b));
+        }
+
+        long startTime = System.nanoTime();
+        List<String> responses = sendPipelined(requests, window);
+        long elapsedMillis = (System.nanoTime() - startTime) / 1000000;
+
+        int wrong = 0;
+        for (int i = 0; i < responses.size(); i++) {
+            if (!responses.get(i).equals(expected.get(i))) {
+                wrong++;
+            }
         }
+        logger.info("Received " + responses.size() + " of " + requestCount + " responses in " + elapsedMillis
+                + " ms, " + wrong + " wrong responses");
 
-        log("Simple TCP client finished");
+        if (!sendRequestToServer("game over") || !closeConnection()) {
+            logger.severe("Failed to stop conversation");
+        }
+    }
+
+    /**
+     * Run many short conversations (a valid and an invalid request, like {@link #run()} but
+     * without the pauses) from several threads, on connections lent by a {@link ConnectionPool}
+     * instead of a new connection per conversation. Logs the throughput and the pool statistics.
+     *
+     * @param conversations number of conversations, shared by the threads
+     * @param threads       number of threads having conversations at the same time
+     * @throws InterruptedException when interrupted while waiting for the threads
+     */
+    public void runPooled(int conversations, int threads) throws InterruptedException {
+        logger.info("Pooled TCP client started");
+        LongAdder done = new LongAdder();
+        LongAdder wrong = new LongAdder();
+        LongAdder failed = new LongAdder();
+        try (ConnectionPool pool = new ConnectionPool(HOST, PORT, PoolPolicy.DEFAULT, this.socketProfile)) {
+            long startTime = System.nanoTime();
+            List<Thread> workers = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                int share = conversations / threads + (t < conversations % threads ? 1 : 0);
+                Thread worker = new Thread(() -> {
+                    for (int i = 0; i < share; i++) {
+                        try {
+                            if (!converse(pool)) {
+                                wrong.increment();
+                            }
+                            done.increment();
+                        } catch (IOException e) {
+                            failed.increment();
+                            logger.fine(() -> "Conversation failed: " + e.getMessage());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                    }
+                }, "pooled-client-" + t);
+                workers.add(worker);
+                worker.start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsedMillis = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+            logger.info("Had " + done.sum() + " conversations in " + elapsedMillis + " ms ("
+                    + done.sum() * 1000 / elapsedMillis + "/s), " + wrong.sum() + " with wrong responses, "
+                    + failed.sum() + " failed");
+            LatencyHistogram borrowWait = pool.getMetrics().histogram("borrow.wait.us");
+            logger.info(String.format("Pool hit rate %.1f%%, borrow wait us: p50=%d p99=%d max=%d",
+                    pool.getHitRate() * 100, borrowWait.getValueAtPercentile(50),
+                    borrowWait.getValueAtPercentile(99), borrowWait.getMaxValue()));
+            logger.info("Pool metrics:\n" + pool.getMetrics().dump());
+        }
+    }
+
+    /**
+     * One conversation on a pooled connection: a valid and an invalid request.
+     *
+     * @return true when both responses are right
+     */
+    private static boolean converse(ConnectionPool pool) throws IOException, InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int a = 1 + random.nextInt(10);
+        int b = 1 + random.nextInt(10);
+        PooledConnection connection = pool.borrow();
+        try {
+            return connection.request(a + "+" + b).equals(String.valueOf(a + b))
+                    && connection.request("bla+bla").equals("error");
+        } finally {
+            pool.release(connection);
+        }
+    }
+
+    /**
+     * Send requests to the server without waiting for each response. At most {@code window}
+     * requests are in flight at the same time, and at most as many bytes of them as the socket's
+     * send buffer holds, see {@link #getMaxBytesInFlight()}. The server answers the requests in
+     * the order they were sent, so the responses are matched to the requests by their order.
+     *
+     * @param requests the requests to send, without newlines
+     * @param window   maximum number of requests sent but not answered yet
+     * @return the responses, in the same order as the requests. If the connection fails, the
+     * list holds only the responses received before the failure.
+     */
+    public List<String> sendPipelined(List<String> requests, int window) {
+        List<String> responses = new ArrayList<>(requests.size());
+        // The length of every request sent, newline included, to know how much is in flight
+        int[] lengths = new int[requests.size()];
+        int sent = 0;
+        long bytesInFlight = 0;
+        long maxBytesInFlight = this.getMaxBytesInFlight();
+        try {
+            while (responses.size() < requests.size()) {
+                // Fill the window, then send all the new requests in one write. A request longer
+                // than the limit is sent alone.
+                while (sent < requests.size() && sent - responses.size() < window) {
+                    String request = requests.get(sent);
+                    int length = request.getBytes(Charset.defaultCharset()).length + 1;
+                    if (sent > responses.size() && bytesInFlight + length > maxBytesInFlight) {
+                        break;
+                    }
+                    this.outToServer.print(request);
+                    this.outToServer.print('\n');
+                    lengths[sent] = length;
+                    bytesInFlight += length;
+                    sent++;
+                }
+                this.outToServer.flush();
+                if (this.outToServer.checkError()) {
+                    logger.severe("Failed to send pipelined requests");
+                    break;
+                }
+
+                // Wait for one response, then take all the responses that have already arrived
+                do {
+                    String response = this.inFromServer.readLine();
+                    if (response == null) {
+                        logger.severe("The server closed the connection");
+                        return responses;
+                    }
+                    bytesInFlight -= lengths[responses.size()];
+                    responses.add(response);
+                } while (responses.size() < sent && this.inFromServer.ready());
+            }
+        } catch (IOException e) {
+            logger.warning("Could not read pipelined responses: " + e.getMessage());
+        }
+        return responses;
+    }
+
+    /**
+     * Get the most bytes of requests to have in flight. The requests are written before their
+     * responses are read: once the responses fill the server's send buffer and this client's
+     * receive buffer, the server stops reading, and a write that does not fit in the socket
+     * buffers left would wait forever. What fits in this client's send buffer is always written.
+     *
+     * @return the size of the socket's send buffer, in bytes
+     */
+    private int getMaxBytesInFlight() {
+        try {
+            return this.clientSocket.getSendBufferSize();
+        } catch (SocketException e) {
+            return DEFAULT_MAX_BYTES_IN_FLIGHT;
+        }
     }
 
     /**
@@ -104,11 +327,11 @@ public class SimpleTcpClient {
      */
     private void sleepRandomTime()  {
         long secondsToSleep = 2 + (long) (Math.random() * 5);
-        log("Sleeping " + secondsToSleep + " seconds to allow simulate long client-server connection...");
+        logger.info("Sleeping " + secondsToSleep + " seconds to allow simulate long client-server connection...");
         try {
             Thread.sleep(secondsToSleep * 1000);
         } catch (InterruptedException e) {
-            System.out.println("Thread sleep interrupted... Oh, well...");
+            logger.warning("Thread sleep interrupted... Oh, well...");
         }
     }
 
@@ -126,7 +349,7 @@ public class SimpleTcpClient {
 
         try {
             // Connect to server
-            this.clientSocket = new Socket(host, port);
+            this.clientSocket = this.socketProfile.connect(host, port);
             connected = true;
 
             // PrintWriter to send message to server
@@ -136,9 +359,9 @@ public class SimpleTcpClient {
             this.inFromServer = new BufferedReader(new InputStreamReader(this.clientSocket.getInputStream()));
 
         } catch (UnknownHostException e) {
-            System.out.println("Host not found: " + e.getMessage());
+            logger.warning("Host not found: " + e.getMessage());
         } catch (IOException e) {
-            System.out.println("Something went wrong when trying to create socket: " + e.getMessage());
+            logger.warning("Something went wrong when trying to create socket: " + e.getMessage());
         }
 
 
@@ -160,7 +383,7 @@ public class SimpleTcpClient {
             this.clientSocket.close();
             connectionClosed = true;
         } catch (IOException e) {
-            System.out.println("Could not close connection: " + e.getMessage());
+            logger.warning("Could not close connection: " + e.getMessage());
         }
 
         return connectionClosed;
@@ -201,19 +424,9 @@ public class SimpleTcpClient {
             try {
                 response = this.inFromServer.readLine();
             } catch (IOException e) {
-                System.out.println("Could not read message from server: " + e.getMessage());
+                logger.warning("Could not read message from server: " + e.getMessage());
             }
         }
         return response;
     }
-
-    /**
-     * Log a message to the system console.
-     *
-     * @param message The message to be logged (printed).
-     */
-    private static void log(String message) {
-        String threadId = "THREAD #" + Thread.currentThread().getId() + ": ";
-        System.out.println(threadId + message);
-    }
 }
@@ -6,43 +6,352 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import no.ntnu.datakomm.common.MetricsRegistry;
 
 /**
  * A Simple TCP server, used as a warm-up exercise for assignment A4.
  */
 public class SimpleTcpServer {
+    private static final Logger logger = Logging.getLogger(SimpleTcpServer.class);
+
+    static final int PORT = 1301;
+    // Seconds between two metrics reports in the log, 0 for none. Can be changed with the system
+    // property warmup.metrics.interval
+    private static final int METRICS_INTERVAL = Integer.getInteger("warmup.metrics.interval", 0);
+    // The number of acceptor threads sharing the port, see setAcceptorShards(). Can be changed
+    // with the system property warmup.acceptor.shards
+    private static final int ACCEPTOR_SHARDS = Integer.getInteger("warmup.acceptor.shards", 1);
+
+    /**
+     * How the server handles its client connections.
+     */
+    public enum Mode {
+        // One blocking ClientHandler thread per client connection
+        BLOCKING,
+        // Non-blocking connections served by a fixed number of selector event loops
+        SELECTOR
+    }
 
-    private static final int PORT = 1301;
+    private final Mode mode;
+    private final int port;
+    private ExecutionStrategy executionStrategy = ExecutionStrategy.THREAD_PER_CONNECTION;
+    private int poolSize = Runtime.getRuntime().availableProcessors() * 4;
+    // The clients waiting for a thread of the bounded pool
+    private int queueDepth = this.poolSize;
+    private AdmissionControl admissionControl = AdmissionControl.unlimited();
+    private FlushPolicy flushPolicy = FlushPolicy.DEFAULT;
+    private SocketProfile socketProfile = SocketProfile.configured();
+    private int acceptorShards = 1;
+    private final MetricsRegistry metricsRegistry;
+    private final ServerMetrics metrics;
 
-    //private ServerSocket welcomeSocket;
+    // One per acceptor shard
+    private final List<ServerSocket> welcomeSockets = new CopyOnWriteArrayList<>();
+    private final List<SelectorServer> selectorServers = new CopyOnWriteArrayList<>();
+    private volatile boolean mustRun;
 
+    /**
+     * Run the TCP server.
+     *
+     * @param args Command line arguments, all optional: the server mode ("blocking" or "selector"),
+     *             the execution strategy of the blocking mode ("thread_per_connection",
+     *             "bounded_pool" or "virtual_threads"), the maximum number of concurrent connections
+     *             and the maximum number of connections waiting for a free slot.
+     */
     public static void main(String[] args) {
-        SimpleTcpServer server = new SimpleTcpServer();
-        log("Simple TCP server starting");
+        Mode mode = Mode.BLOCKING;
+        if (args.length > 0) {
+            mode = Mode.valueOf(args[0].toUpperCase(Locale.ROOT));
+        }
+        SimpleTcpServer server = new SimpleTcpServer(mode);
+        if (args.length > 1) {
+            server.setExecutionStrategy(ExecutionStrategy.valueOf(args[1].toUpperCase(Locale.ROOT)));
+        }
+        if (args.length > 3) {
+            server.setAdmissionLimits(Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        }
+        server.setAcceptorShards(ACCEPTOR_SHARDS);
+        logger.info("Simple TCP server starting in " + mode + " mode");
+        if (METRICS_INTERVAL > 0) {
+            server.getMetrics().startReporting(METRICS_INTERVAL, TimeUnit.SECONDS);
+        }
         server.run();
-        log("ERROR: the server should never go out of the run() method! After handling one client");
+        logger.severe("The server should never go out of the run() method! After handling one client");
     }
 
+    /**
+     * Creates a server with one thread per client connection.
+     */
+    public SimpleTcpServer() {
+        this(Mode.BLOCKING);
+    }
+
+    /**
+     * @param mode how the server handles its client connections
+     */
+    public SimpleTcpServer(Mode mode) {
+        this(mode, PORT);
+    }
+
+    /**
+     * Creates a server listening on another port than the default one, for example to run it
+     * inside another application (benchmarks, tests).
+     *
+     * @param mode how the server handles its client connections
+     * @param port the TCP port to listen on
+     */
+    public SimpleTcpServer(Mode mode, int port) {
+        this.mode = mode;
+        this.port = port;
+        this.metricsRegistry = new MetricsRegistry(Logging.PACKAGE, "SimpleTcpServer-" + port);
+        this.metrics = new ServerMetrics(this.metricsRegistry);
+    }
+
+    /**
+     * @return the metrics of the server: connections, requests, bytes, errors and request latency.
+     * They are readable over JMX while the server runs.
+     */
+    public MetricsRegistry getMetrics() {
+        return this.metricsRegistry;
+    }
+
+    /**
+     * Set how the blocking mode runs its client handlers.
+     *
+     * @param executionStrategy the strategy to use
+     */
+    public void setExecutionStrategy(ExecutionStrategy executionStrategy) {
+        this.executionStrategy = executionStrategy;
+    }
+
+    /**
+     * Limit the number of client connections of the blocking mode. With a bounded pool, the number
+     * of pool threads equals the number of concurrent connections, and its queue holds the
+     * connections waiting for a free slot. Without limits, the bounded pool has
+     * {@code 4 * cores} threads and as many places in its queue.
+     *
+     * @param maxConcurrent maximum number of connections served at the same time
+     * @param queueDepth maximum number of accepted connections waiting for a free slot. More
+     *                   connections are rejected with an error response.
+     */
+    public void setAdmissionLimits(int maxConcurrent, int queueDepth) {
+        this.admissionControl = new AdmissionControl(maxConcurrent, queueDepth);
+        this.poolSize = maxConcurrent;
+        this.queueDepth = queueDepth;
+    }
+
+    /**
+     * Set when the responses to a client pipelining its requests are written to the socket.
+     *
+     * @param flushPolicy the policy to use
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * Set the options of the listening socket and of the client connections. The default is
+     * chosen with the system property warmup.socket.profile, see {@link SocketProfile#configured()}.
+     *
+     * @param socketProfile the profile to use
+     */
+    public void setSocketProfile(SocketProfile socketProfile) {
+        this.socketProfile = socketProfile;
+    }
+
+    /**
+     * Accept the connections with several threads, each with its own listening socket bound to the
+     * port with SO_REUSEPORT, so the kernel spreads the new connections over them instead of
+     * queueing them all for one thread (on Linux). In the selector mode, each shard also has its
+     * own event loops, the available CPU cores being shared between the shards. Every shard
+     * reports its connections and how long it is busy with each of them in the metrics, as
+     * acceptor.N.connections and acceptor.N.accept.us.
+     * <p>
+     * Where SO_REUSEPORT is not supported, the server falls back to one shard.
+     *
+     * @param acceptorShards the number of acceptor threads, 1 for the single listening socket
+     */
+    public void setAcceptorShards(int acceptorShards) {
+        if (acceptorShards < 1) {
+            throw new IllegalArgumentException("At least one acceptor shard is required");
+        }
+        this.acceptorShards = acceptorShards;
+    }
+
+    /**
+     * Run the server. The method returns only when the server is stopped, or if it fails.
+     */
     public void run() {
+        this.mustRun = true;
+        this.metricsRegistry.registerMBean();
+        try {
+            int shards = this.acceptorShards;
+            if (shards > 1 && !SocketProfile.isReusePortSupported()) {
+                logger.warning("SO_REUSEPORT is not supported, accepting with one thread instead of " + shards);
+                shards = 1;
+            }
+            if (this.mode == Mode.SELECTOR) {
+                this.runSelector(shards);
+            } else {
+                this.runBlocking(shards);
+            }
+        } finally {
+            this.metricsRegistry.unregisterMBean();
+        }
+    }
+
+    /**
+     * Stop accepting new clients and make {@link #run()} return. Clients already connected to the
+     * blocking server are served until they close their connection.
+     */
+    public void stop() {
+        this.mustRun = false;
+        for (SelectorServer selectorServer : this.selectorServers) {
+            selectorServer.stop();
+        }
+        for (ServerSocket welcomeSocket : this.welcomeSockets) {
+            try {
+                welcomeSocket.close();
+            } catch (IOException e) {
+                logger.warning("Could not close server socket: " + e.getMessage());
+            }
+        }
+    }
+
+    private void runSelector(int shards) {
+        int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / shards);
+        for (int shard = 0; shard < shards; shard++) {
+            this.selectorServers.add(new SelectorServer(this.port, ioThreads, this.flushPolicy,
+                    this.socketProfile, this.metrics, shard, shards > 1));
+        }
+        this.runShards(shards, "selector-acceptor", shard -> this.selectorServers.get(shard).run());
+    }
+
+    private void runBlocking(int shards) {
         // TODO - implement the logic of the server, according to the protocol.
         // Take a look at the tutorial to understand the basic blocks: creating a listening socket,
         // accepting the next client connection, sending and receiving messages and closing the connection
+        Executor executor = this.executionStrategy.createExecutor(this.poolSize, this.queueDepth);
         try {
-            ServerSocket welcomeSocket = new ServerSocket(PORT);
+            for (int shard = 0; shard < shards; shard++) {
+                this.welcomeSockets.add(shards > 1
+                        ? this.socketProfile.bindChannel(this.port, true).socket()
+                        : this.socketProfile.bind(this.port));
+            }
+            logger.info("Listening on port " + this.port + (shards > 1 ? " with " + shards + " acceptor shards" : "")
+                    + " with socket profile " + this.socketProfile);
+            this.runShards(shards, "acceptor", shard -> this.accept(this.welcomeSockets.get(shard), shard, executor));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Could not listen on port " + this.port, e);
+            this.stop();
+        } finally {
+            if (executor instanceof ExecutorService) {
+                ((ExecutorService) executor).shutdown();
+            }
+        }
+    }
 
-            boolean mustRun = true;
+    /**
+     * Run the first shard on the calling thread and the others on threads of their own, and return
+     * when all of them have returned.
+     *
+     * @param shards     the number of shards
+     * @param threadName the name of the threads, followed by the number of their shard
+     * @param shard      runs one shard, given its number
+     */
+    private void runShards(int shards, String threadName, IntConsumer shard) {
+        Thread[] threads = new Thread[shards - 1];
+        for (int i = 1; i < shards; i++) {
+            int number = i;
+            threads[i - 1] = new Thread(() -> shard.accept(number), threadName + "-" + i);
+            threads[i - 1].start();
+        }
+        shard.accept(0);
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            while (mustRun) {
+    /**
+     * Accept clients on one listening socket and hand them over to their handlers, until the
+     * server is stopped.
+     *
+     * @param welcomeSocket the listening socket of the shard
+     * @param shard         the number of the shard
+     * @param executor      runs the client handlers of all the shards
+     */
+    private void accept(ServerSocket welcomeSocket, int shard, Executor executor) {
+        ServerMetrics.AcceptorMetrics acceptorMetrics = this.metrics.acceptor(shard);
+        try {
+            while (this.mustRun) {
                 Socket clientSocket = welcomeSocket.accept();
+                long acceptedNanos = System.nanoTime();
+                this.metrics.connectionAccepted();
+                this.configureClientSocket(clientSocket);
 
-                ClientHandler clientHandler = new ClientHandler(clientSocket);
-                clientHandler.start();
+                if (this.admissionControl.tryAdmit()) {
+                    ClientHandler clientHandler = new ClientHandler(clientSocket, this.flushPolicy, this.metrics);
+                    try {
+                        executor.execute(this.admissionControl.guard(clientHandler, clientSocket));
+                    } catch (RejectedExecutionException e) {
+                        this.admissionControl.release();
+                        this.rejectClient(clientSocket);
+                    }
+                } else {
+                    this.rejectClient(clientSocket);
+                }
+                acceptorMetrics.connectionHandedOver(acceptedNanos);
+            }
+        } catch (IOException e) {
+            if (this.mustRun) {
+                logger.log(Level.SEVERE, "Server socket failed", e);
             }
+        }
+    }
+
+    /**
+     * Set the options of the socket profile on an accepted connection. A connection whose options
+     * can not be set is still served.
+     *
+     * @param clientSocket the socket of the client
+     */
+    private void configureClientSocket(Socket clientSocket) {
+        try {
+            this.socketProfile.configure(clientSocket);
+        } catch (IOException e) {
+            logger.warning("Could not set the socket options of a client: " + e.getMessage());
+        }
+    }
 
+    /**
+     * Tell a client that the server is full and close its connection.
+     *
+     * @param clientSocket the socket of the rejected client
+     */
+    private void rejectClient(Socket clientSocket) {
+        this.metrics.connectionRejected();
+        try {
+            PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
+            writer.println(AdmissionControl.BUSY_RESPONSE);
         } catch (IOException e) {
-            e.printStackTrace();
+            logger.warning("Could not send rejection to client: " + e.getMessage());
         }
+        this.closeClientSocket(clientSocket);
     }
 
     /**
@@ -57,7 +366,7 @@ public class SimpleTcpServer {
         try {
             serverSocket = new ServerSocket(PORT);
         } catch (IOException e) {
-            System.out.println("Could not create server socket: " + e.getMessage());
+            logger.warning("Could not create server socket: " + e.getMessage());
         }
         return serverSocket;
     }
@@ -76,7 +385,7 @@ public class SimpleTcpServer {
         try {
             request = reader.readLine();
         } catch (IOException e) {
-            System.out.println("Could not read request: " + e.getMessage());
+            logger.warning("Could not read request: " + e.getMessage());
         }
 
         return request;
@@ -97,14 +406,14 @@ public class SimpleTcpServer {
                 writer.println(response);
                 this.closeClientSocket(client);
             } catch (Exception e) {
-                System.out.println(e.getMessage());
+                logger.warning("Could not send response: " + e.getMessage());
             }
         }else {
             try {
                 writer.println(response);
                 responseSent = true;
             } catch (Exception e) {
-                System.out.println("Could not send response: " + e.getMessage());
+                logger.warning("Could not send response: " + e.getMessage());
             }
         }
 
@@ -129,19 +438,9 @@ public class SimpleTcpServer {
         try {
             clientSocket.close();
         } catch (IOException e) {
-            System.out.println("Could not close client socket: " + e.getMessage());
+            logger.warning("Could not close client socket: " + e.getMessage());
         }
 
         return socketClosed;
     }
-
-
-    /**
-     * Log a message to the system console.
-     *
-     * @param message The message to be logged (printed).
-     */
-    private static void log(String message) {
-        System.out.println(message);
-    }
 }
@@ -0,0 +1,259 @@
+package no.ntnu.datakomm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * Named sets of socket options, applied the same way to the client sockets, the listening socket
+ * and the accepted sockets of the warm-up applications. The profile used by default is
+ * {@link #LOW_LATENCY}; another one can be chosen with the system property
+ * {@code warmup.socket.profile}, for example {@code -Dwarmup.socket.profile=bulk_throughput}.
+ * <p>
+ * A buffer size of 0 keeps the operating system's default (which it may grow automatically), a
+ * timeout of 0 waits forever.
+ */
+public enum SocketProfile {
+    /**
+     * Nothing is set: the options of {@code new Socket(host, port)} and {@code new ServerSocket(port)}.
+     */
+    SYSTEM_DEFAULT(false, 0, 0, false, false, 50, 0, 0),
+    /**
+     * Small requests answered one by one: no Nagle delay, default buffers, and timeouts so a
+     * client never hangs on a server that does not answer.
+     */
+    LOW_LATENCY(true, 0, 0, false, true, 128, 5000, 10000),
+    /**
+     * Large pipelined batches: 1 MB buffers so the TCP window never limits the transfer. Nagle's
+     * algorithm is off as well: the writes are already large, and when the last, partial segment
+     * of a batch waits for the delayed acknowledgement of the other side, a batch takes about
+     * 40 ms instead of less than one (see SocketProfileBenchmark, SYSTEM_DEFAULT).
+     */
+    BULK_THROUGHPUT(true, 1024 * 1024, 1024 * 1024, false, true, 128, 5000, 30000),
+    /**
+     * Many connections which are mostly idle: small buffers to save kernel memory per connection,
+     * keep-alive to find peers which are gone, and a long accept backlog for connection storms.
+     * Idle clients are not timed out.
+     */
+    MANY_IDLE_CONNECTIONS(true, 16 * 1024, 16 * 1024, true, true, 4096, 5000, 0);
+
+    private static final Logger logger = Logging.getLogger(SocketProfile.class);
+    // StandardSocketOptions.SO_REUSEPORT, null before Java 9 where it does not exist
+    private static final SocketOption<Boolean> SO_REUSEPORT = findReusePortOption();
+
+    private final boolean tcpNoDelay;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final boolean keepAlive;
+    private final boolean reuseAddress;
+    private final int backlog;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+
+    SocketProfile(boolean tcpNoDelay, int sendBufferSize, int receiveBufferSize, boolean keepAlive,
+                  boolean reuseAddress, int backlog, int connectTimeoutMillis, int readTimeoutMillis) {
+        this.tcpNoDelay = tcpNoDelay;
+        this.sendBufferSize = sendBufferSize;
+        this.receiveBufferSize = receiveBufferSize;
+        this.keepAlive = keepAlive;
+        this.reuseAddress = reuseAddress;
+        this.backlog = backlog;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+    }
+
+    /**
+     * @return the profile named by the system property {@code warmup.socket.profile}, or
+     * {@link #LOW_LATENCY} when it is not set or unknown
+     */
+    public static SocketProfile configured() {
+        String name = System.getProperty("warmup.socket.profile");
+        if (name == null) {
+            return LOW_LATENCY;
+        }
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            logger.warning("Unknown socket profile " + name + ", using " + LOW_LATENCY);
+            return LOW_LATENCY;
+        }
+    }
+
+    /**
+     * Open a client connection with the options of this profile. The buffer sizes are set before
+     * connecting, so the TCP window scaling is agreed on accordingly.
+     *
+     * @param host the host to connect to
+     * @param port the TCP port to connect to
+     * @return the connected socket
+     * @throws IOException when the host is unknown, or the connection fails or times out
+     */
+    public Socket connect(String host, int port) throws IOException {
+        return this.connect(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Open a client connection with the options of this profile.
+     *
+     * @param address the address to connect to
+     * @return the connected socket
+     * @throws IOException when the address is not resolved, or the connection fails or times out
+     */
+    public Socket connect(InetSocketAddress address) throws IOException {
+        Socket socket = new Socket();
+        try {
+            this.configure(socket);
+            if (this.readTimeoutMillis > 0) {
+                socket.setSoTimeout(this.readTimeoutMillis);
+            }
+            socket.connect(address, this.connectTimeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a listening socket with the options of this profile. The receive buffer size is
+     * inherited by the accepted sockets.
+     *
+     * @param port the TCP port to listen on
+     * @return the bound socket
+     * @throws IOException when the socket can not be bound
+     */
+    public ServerSocket bind(int port) throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        try {
+            this.configure(serverSocket);
+            serverSocket.bind(new InetSocketAddress(port), this.backlog);
+            return serverSocket;
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Create a listening channel with the options of this profile, optionally with SO_REUSEPORT so
+     * several channels, each with its own acceptor thread, can listen on the same port. The kernel
+     * then spreads the new connections over them.
+     *
+     * @param port      the TCP port to listen on
+     * @param reusePort true to share the port with the other channels bound with SO_REUSEPORT
+     * @return the bound channel, in blocking mode. Its {@link ServerSocketChannel#socket()} can be
+     * used like the socket returned by {@link #bind(int)}.
+     * @throws IOException when the channel can not be bound, or SO_REUSEPORT is not supported
+     */
+    public ServerSocketChannel bindChannel(int port, boolean reusePort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        try {
+            if (reusePort) {
+                if (!isReusePortSupported(serverChannel)) {
+                    throw new IOException("SO_REUSEPORT is not supported on this platform");
+                }
+                serverChannel.setOption(SO_REUSEPORT, true);
+            }
+            this.configure(serverChannel.socket());
+            serverChannel.bind(new InetSocketAddress(port), this.backlog);
+            return serverChannel;
+        } catch (IOException e) {
+            serverChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return true when listening channels can share a port with SO_REUSEPORT: from Java 9, on
+     * Linux and the BSDs (with load balancing on Linux only, from kernel 3.9)
+     */
+    public static boolean isReusePortSupported() {
+        try (ServerSocketChannel probe = ServerSocketChannel.open()) {
+            return isReusePortSupported(probe);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static boolean isReusePortSupported(ServerSocketChannel serverChannel) {
+        return SO_REUSEPORT != null && serverChannel.supportedOptions().contains(SO_REUSEPORT);
+    }
+
+    /**
+     * The project is built for Java 8, whose StandardSocketOptions has no SO_REUSEPORT yet.
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> findReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Set the options of a listening socket which is not bound yet. The backlog is given when
+     * binding, see {@link #getBacklog()}.
+     *
+     * @param serverSocket the listening socket, or the socket of a server channel
+     * @throws IOException when an option can not be set
+     */
+    public void configure(ServerSocket serverSocket) throws IOException {
+        if (this.reuseAddress) {
+            serverSocket.setReuseAddress(true);
+        }
+        if (this.receiveBufferSize > 0) {
+            serverSocket.setReceiveBufferSize(this.receiveBufferSize);
+        }
+    }
+
+    /**
+     * Set the options of a client socket before it connects, or of a socket accepted by a server.
+     * The read timeout is only set by {@link #connect(String, int)}: a server waits for its idle
+     * clients as long as they keep the connection.
+     *
+     * @param socket the socket, or the socket of a channel
+     * @throws IOException when an option can not be set
+     */
+    public void configure(Socket socket) throws IOException {
+        if (this.tcpNoDelay) {
+            socket.setTcpNoDelay(true);
+        }
+        if (this.sendBufferSize > 0) {
+            socket.setSendBufferSize(this.sendBufferSize);
+        }
+        if (this.receiveBufferSize > 0) {
+            socket.setReceiveBufferSize(this.receiveBufferSize);
+        }
+        if (this.keepAlive) {
+            socket.setKeepAlive(true);
+        }
+    }
+
+    /**
+     * @return the maximum number of connections waiting to be accepted
+     */
+    public int getBacklog() {
+        return this.backlog;
+    }
+
+    /**
+     * @return how long connecting waits for the server, in milliseconds, 0 for ever
+     */
+    public int getConnectTimeoutMillis() {
+        return this.connectTimeoutMillis;
+    }
+
+    /**
+     * @return how long a client waits for a response, in milliseconds, 0 for ever
+     */
+    public int getReadTimeoutMillis() {
+        return this.readTimeoutMillis;
+    }
+}
@@ -0,0 +1,175 @@
+package no.ntnu.datakomm;
+
+import no.ntnu.datakomm.common.MetricsRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPoolTest {
+    // How many ms to wait at most for the server or the pool
+    private static final long TIMEOUT = 5000;
+
+    private int port;
+    private SimpleTcpServer server;
+    private Thread serverThread;
+    private ConnectionPool pool;
+
+    @Before
+    public void startServer() throws IOException, InterruptedException {
+        try (ServerSocket free = new ServerSocket(0)) {
+            this.port = free.getLocalPort();
+        }
+        this.start();
+    }
+
+    @After
+    public void stopServer() throws InterruptedException {
+        if (this.pool != null) {
+            this.pool.close();
+        }
+        this.stop();
+    }
+
+    /**
+     * Test that the first borrow opens a connection, and the next ones get it back from the pool
+     */
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        this.pool = this.newPool(new PoolPolicy(0, 2, 2, 1000, 60000, TimeUnit.MILLISECONDS));
+        assertEquals("3", this.pool.request("1+2"));
+        assertEquals("7", this.pool.request("3+4"));
+        assertEquals("-1", this.pool.request("-2+1"));
+
+        MetricsRegistry metrics = this.pool.getMetrics();
+        assertEquals(3, metrics.counter("borrows").sum());
+        assertEquals(1, metrics.counter("misses").sum());
+        assertEquals(2, metrics.counter("hits").sum());
+        assertEquals(2.0 / 3, this.pool.getHitRate(), 0.001);
+        assertEquals(1, this.pool.getOpenCount());
+        assertEquals(1, this.pool.getIdleCount());
+
+        // Two callers at once need two connections
+        PooledConnection first = this.pool.borrow();
+        PooledConnection second = this.pool.borrow();
+        assertNotSame(first, second);
+        assertEquals(2, metrics.counter("misses").sum());
+        this.pool.release(first);
+        this.pool.release(second);
+        assertEquals(2, this.pool.getIdleCount());
+    }
+
+    /**
+     * Test that a caller waits at most the maximum waiting time for a connection to be given back,
+     * and gets one given back meanwhile
+     */
+    @Test
+    public void testMaxWait() throws Exception {
+        this.pool = this.newPool(new PoolPolicy(0, 1, 1, 200, 60000, TimeUnit.MILLISECONDS));
+        PooledConnection lent = this.pool.borrow();
+        long start = System.nanoTime();
+        try {
+            this.pool.borrow();
+            fail("Got a second connection from a pool of one");
+        } catch (IOException e) {
+            long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Waited " + waitedMillis + " ms", waitedMillis >= 190 && waitedMillis < TIMEOUT);
+        }
+        assertEquals(1, this.pool.getMetrics().counter("timeouts").sum());
+
+        Thread releaser = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.pool.release(lent);
+        });
+        releaser.start();
+        PooledConnection givenBack = this.pool.borrow();
+        assertSame(lent, givenBack);
+        assertEquals(1, this.pool.getMetrics().counter("waits").sum());
+        this.pool.release(givenBack);
+        releaser.join();
+    }
+
+    /**
+     * Test that the connections idle for longer than the idle timeout are closed, down to the
+     * minimum
+     */
+    @Test
+    public void testIdleEviction() throws Exception {
+        this.pool = this.newPool(new PoolPolicy(1, 4, 4, 1000, 200, TimeUnit.MILLISECONDS));
+        PooledConnection[] lent = new PooledConnection[3];
+        for (int i = 0; i < lent.length; i++) {
+            lent[i] = this.pool.borrow();
+        }
+        for (PooledConnection connection : lent) {
+            this.pool.release(connection);
+        }
+        assertTrue(this.pool.getIdleCount() >= 3);
+
+        assertTrue(await(() -> this.pool.getIdleCount() == 1 && this.pool.getOpenCount() == 1));
+        assertTrue(this.pool.getMetrics().counter("evicted").sum() >= 2);
+        assertEquals("2", this.pool.request("1+1"));
+    }
+
+    /**
+     * Test that a request failing on connections the restarted server has closed while they were
+     * idle, including connections opened in advance and never used, is sent on a new one
+     */
+    @Test
+    public void testStaleConnectionRetry() throws Exception {
+        this.pool = this.newPool(new PoolPolicy(2, 2, 4, 1000, 60000, TimeUnit.MILLISECONDS));
+        assertTrue(await(() -> this.pool.getIdleCount() == 2));
+
+        this.stop();
+        this.start();
+        assertEquals("4", this.pool.request("2+2"));
+        // Both connections opened in advance failed, then a new one was opened
+        assertEquals(3, this.pool.getMetrics().counter("borrows").sum());
+        assertEquals("6", this.pool.request("3+3"));
+    }
+
+    private ConnectionPool newPool(PoolPolicy policy) {
+        return new ConnectionPool("localhost", this.port, policy, SocketProfile.LOW_LATENCY);
+    }
+
+    private void start() throws InterruptedException {
+        this.server = new SimpleTcpServer(SimpleTcpServer.Mode.SELECTOR, this.port);
+        this.serverThread = new Thread(this.server::run, "test-server");
+        this.serverThread.start();
+        assertTrue("The server does not accept connections", await(() -> {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("localhost", this.port));
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }));
+    }
+
+    private void stop() throws InterruptedException {
+        this.server.stop();
+        this.serverThread.join(TIMEOUT);
+    }
+
+    private static boolean await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            Thread.sleep(10);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,106 @@
+package no.ntnu.datakomm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RequestParserTest {
+
+    /**
+     * Test sums of operands with and without minus signs
+     */
+    @Test
+    public void testSigns() {
+        assertEquals("42", RequestParser.respond("12+30"));
+        assertEquals("-3", RequestParser.respond("-1+-2"));
+        assertEquals("-2", RequestParser.respond("-5+3"));
+        assertEquals("2", RequestParser.respond("5+-3"));
+        assertEquals("0", RequestParser.respond("-0+0"));
+        // Only a minus sign is allowed in front of an operand
+        assertEquals("error", RequestParser.respond("+1+2"));
+        assertEquals("error", RequestParser.respond("1++2"));
+        assertEquals("error", RequestParser.respond("--1+2"));
+        assertEquals("error", RequestParser.respond("1+2-"));
+    }
+
+    /**
+     * Test requests where an operand, or the plus sign, is missing
+     */
+    @Test
+    public void testMissingOperand() {
+        assertEquals("error", RequestParser.respond(""));
+        assertEquals("error", RequestParser.respond("12"));
+        assertEquals("error", RequestParser.respond("1+"));
+        assertEquals("error", RequestParser.respond("+2"));
+        assertEquals("error", RequestParser.respond("+"));
+        assertEquals("error", RequestParser.respond("-+2"));
+        assertEquals("error", RequestParser.respond("1+-"));
+    }
+
+    /**
+     * Test requests containing other characters than digits
+     */
+    @Test
+    public void testNonDigits() {
+        assertEquals("error", RequestParser.respond("a+b"));
+        assertEquals("error", RequestParser.respond("1+2x"));
+        assertEquals("error", RequestParser.respond(" 1+2"));
+        assertEquals("error", RequestParser.respond("1 + 2"));
+        assertEquals("error", RequestParser.respond("1.5+2"));
+        assertEquals("error", RequestParser.respond("1+2+3"));
+        assertEquals("error", RequestParser.respond("١+٢"));
+    }
+
+    /**
+     * Test operands and sums at the limits of int, and operands too long even for a long
+     */
+    @Test
+    public void testOverflow() {
+        assertEquals("2147483647", RequestParser.respond("2147483647+0"));
+        assertEquals("-2147483648", RequestParser.respond("-2147483648+0"));
+        assertEquals("-1", RequestParser.respond("2147483647+-2147483648"));
+        // The sum does not fit in an int
+        assertEquals("error", RequestParser.respond("2147483647+1"));
+        assertEquals("error", RequestParser.respond("-2147483648+-1"));
+        // An operand does not fit in an int
+        assertEquals("error", RequestParser.respond("2147483648+-1"));
+        assertEquals("error", RequestParser.respond("0+-2147483649"));
+        // An operand does not fit in a long
+        assertEquals("error", RequestParser.respond("9223372036854775808+0"));
+        assertEquals("error", RequestParser.respond("1+99999999999999999999999999"));
+    }
+
+    /**
+     * Test the responses written into a buffer, from a request in the middle of another buffer
+     */
+    @Test
+    public void testRespondInBuffer() {
+        ByteBuffer request = ByteBuffer.wrap("xx-2147483648+1yy".getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer out = ByteBuffer.allocate(2 * RequestParser.MAX_RESPONSE_LENGTH);
+        RequestParser.respond(request, 2, 15, out);
+        assertEquals("-2147483647", new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII));
+
+        out.clear();
+        RequestParser.respond(request, 0, 15, out);
+        assertEquals("error", new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Test the "game over" command, in any case
+     */
+    @Test
+    public void testGameOver() {
+        assertTrue(isGameOver("game over"));
+        assertTrue(isGameOver("Game Over"));
+        assertFalse(isGameOver("game over!"));
+        assertFalse(isGameOver("game"));
+    }
+
+    private static boolean isGameOver(String request) {
+        ByteBuffer buffer = ByteBuffer.wrap(request.getBytes(StandardCharsets.US_ASCII));
+        return RequestParser.isGameOver(buffer, 0, buffer.limit());
+    }
+}
@@ -0,0 +1,96 @@
+package no.ntnu.datakomm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RequestProcessorTest {
+    private final RequestProcessor processor = new RequestProcessor();
+
+    /**
+     * Test a request arriving in several reads, cut at every possible place
+     */
+    @Test
+    public void testRequestSplitAcrossReads() {
+        String request = "-12+30\r\n";
+        for (int cut = 1; cut < request.length(); cut++) {
+            receive(request.substring(0, cut));
+            assertEquals(0, processor.process(Integer.MAX_VALUE));
+            receive(request.substring(cut));
+            assertEquals(1, processor.process(Integer.MAX_VALUE));
+        }
+        assertEquals(repeat("18\n", request.length() - 1), takeResponses());
+    }
+
+    /**
+     * Test pipelined requests, the last one arriving with the next read
+     */
+    @Test
+    public void testPipelinedRequests() {
+        receive("1+1\n2+2\n3+");
+        assertEquals(2, processor.process(Integer.MAX_VALUE));
+        receive("3\ngame over\n4+4\n");
+        assertEquals(1, processor.process(Integer.MAX_VALUE));
+        assertTrue(processor.isGameOver());
+        assertEquals("2\n4\n6\n", takeResponses());
+    }
+
+    /**
+     * Test a line longer than the read buffer: answered once with an error, and the rest of it,
+     * over several reads, is skipped
+     */
+    @Test
+    public void testOverlongLine() {
+        for (int i = 0; i < 3; i++) {
+            receive(repeat("9", RequestProcessor.MAX_LINE_LENGTH));
+            assertEquals(i == 0 ? 1 : 0, processor.process(Integer.MAX_VALUE));
+        }
+        receive("0+1\n2+2\n");
+        assertEquals(1, processor.process(Integer.MAX_VALUE));
+        assertEquals("error\n4\n", takeResponses());
+    }
+
+    /**
+     * Test a line longer than the read buffer while the write buffer is full: the line is kept
+     * until the responses are written, then answered once with an error, and the rest of it is
+     * skipped
+     */
+    @Test
+    public void testOverlongLineWithoutResponseRoom() {
+        ByteBuffer out = processor.getWriteBuffer();
+        out.position(out.limit() - 1);
+        assertFalse(processor.hasResponseRoom());
+
+        receive(repeat("9", RequestProcessor.MAX_LINE_LENGTH));
+        assertEquals(0, processor.process(Integer.MAX_VALUE));
+
+        // The responses are written to the client
+        out.clear();
+        assertEquals(1, processor.process(Integer.MAX_VALUE));
+        receive("0+1\n2+2\n");
+        assertEquals(1, processor.process(Integer.MAX_VALUE));
+        assertEquals("error\n4\n", takeResponses());
+    }
+
+    private void receive(String bytes) {
+        processor.getReadBuffer().put(bytes.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private String takeResponses() {
+        ByteBuffer out = processor.getWriteBuffer();
+        String responses = new String(out.array(), 0, out.position(), StandardCharsets.US_ASCII);
+        out.clear();
+        return responses;
+    }
+
+    private static String repeat(String text, int count) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            repeated.append(text);
+        }
+        return repeated.toString();
+    }
+}